@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate;
+
+import com.nathan.abupdate.util.CancellableDownload;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages of the prepare phase of an update that run in parallel, e.g. payload
+ * metadata verification and pre-streaming downloads.
+ *
+ * <p>The first stage that fails aborts the downloads of all the others, and fails the
+ * whole phase without waiting for them. The phase can also be {@link #cancel cancelled}
+ * from outside. The duration of every stage is recorded.</p>
+ */
+class PrepareStages {
+
+    private final long mStartNanos = System.nanoTime();
+    private final CompletableFuture<Void> mFailure = new CompletableFuture<>();
+    private final List<CancellableDownload> mDownloads = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> mDurationMillis = new LinkedHashMap<>();
+    private volatile boolean mDeletePartialFiles;
+    private volatile boolean mCancelled;
+
+    /**
+     * Adds a stage that started just now.
+     *
+     * @param download the download done by the stage, stopped when the phase fails;
+     *                 may be null
+     * @return future completing like {@code stage} once its duration is recorded
+     */
+    <T> CompletableFuture<T> add(String name, CompletableFuture<T> stage,
+            CancellableDownload download) {
+        long start = System.nanoTime();
+        if (download != null) {
+            mDownloads.add(download);
+            if (mFailure.isDone()) {
+                stop(download);
+            }
+        }
+        return stage.whenComplete((result, e) -> {
+            synchronized (mDurationMillis) {
+                mDurationMillis.put(name, elapsedMillis(start));
+            }
+            if (e != null) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * Fails the phase with a {@link CancellationException} and stops all downloads.
+     *
+     * @param deletePartialFiles whether files that are not completely downloaded are
+     *                           deleted, or kept to resume later; also done if the
+     *                           phase had already failed
+     */
+    void cancel(boolean deletePartialFiles) {
+        mDeletePartialFiles = deletePartialFiles;
+        mCancelled = true;
+        if (!fail(new CancellationException("Update preparation cancelled"))
+                && deletePartialFiles) {
+            // The phase failed before, its downloads were only aborted.
+            for (CancellableDownload download : mDownloads) {
+                download.cancel();
+            }
+        }
+    }
+
+    /**
+     * Fails the phase with {@code e}, thrown while starting a stage, and stops the
+     * downloads of the stages started before.
+     *
+     * @return future failed with {@code e}
+     */
+    <T> CompletableFuture<T> failWith(Throwable e) {
+        fail(e);
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+    }
+
+    /** @return whether {@link #cancel} was called */
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** @return false if the phase had already failed */
+    private boolean fail(Throwable e) {
+        if (!mFailure.completeExceptionally(e)) {
+            return false;
+        }
+        for (CancellableDownload download : mDownloads) {
+            stop(download);
+        }
+        return true;
+    }
+
+    private void stop(CancellableDownload download) {
+        if (mDeletePartialFiles) {
+            download.cancel();
+        } else {
+            download.abort();
+        }
+    }
+
+    /**
+     * @return future completing like {@code phase}, or failing as soon as a stage fails
+     */
+    <T> CompletableFuture<T> failFast(CompletableFuture<T> phase) {
+        return phase.applyToEither(mFailure.thenApply(v -> null), result -> result);
+    }
+
+    @Override
+    public String toString() {
+        List<String> stages = new ArrayList<>();
+        synchronized (mDurationMillis) {
+            for (Map.Entry<String, Long> stage : mDurationMillis.entrySet()) {
+                stages.add(stage.getKey() + " " + stage.getValue() + " ms");
+            }
+        }
+        return String.join(", ", stages) + "; total " + elapsedMillis(mStartNanos) + " ms";
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
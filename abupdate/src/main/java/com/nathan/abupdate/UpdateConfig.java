@@ -22,19 +22,20 @@ import android.util.Log;
 
 
 import com.nathan.abupdate.util.PackageFiles;
+import com.nathan.abupdate.util.StorageManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -67,6 +68,12 @@ public class UpdateConfig implements Parcelable {
         JSONObject o = new JSONObject(json);
         c.mName = o.getString("name");
         c.mUrl = o.getString("url");
+        if (o.has("mirrors")) {
+            JSONArray mirrorsJson = o.getJSONArray("mirrors");
+            for (int i = 0; i < mirrorsJson.length(); i++) {
+                c.mMirrors.add(mirrorsJson.getString(i));
+            }
+        }
         switch (o.getString("ab_install_type")) {
             case AB_INSTALL_TYPE_NON_STREAMING_JSON:
                 c.mAbInstallType = AB_INSTALL_TYPE_NON_STREAMING;
@@ -95,11 +102,21 @@ public class UpdateConfig implements Parcelable {
             }
         }
         String authorization = ab.optString("authorization", null);
+        HashMap<String, String> payloadProperties = new HashMap<>();
+        if (ab.has("payload_properties")) {
+            JSONObject payloadPropertiesJson = ab.getJSONObject("payload_properties");
+            for (String key : PAYLOAD_PROPERTY_KEYS) {
+                if (payloadPropertiesJson.has(key)) {
+                    payloadProperties.put(key, payloadPropertiesJson.getString(key));
+                }
+            }
+        }
         c.mAbConfig = new AbConfig(
                 forceSwitchSlot,
                 verifyPayloadMetadata,
                 propertyFiles.toArray(new PackageFile[0]),
-                authorization);
+                authorization,
+                payloadProperties);
 
         c.mRawJson = json;
         return c;
@@ -145,43 +162,25 @@ public class UpdateConfig implements Parcelable {
      * @return 成功标记
      */
     public static boolean string2File(String res, String filePath) {
-        boolean flag = true;
-        BufferedReader bufferedReader = null;
-        BufferedWriter bufferedWriter = null;
         try {
             File distFile = new File(filePath);
             if (!distFile.getParentFile().exists()) distFile.getParentFile().mkdirs();
-            bufferedReader = new BufferedReader(new StringReader(res));
-            bufferedWriter = new BufferedWriter(new FileWriter(distFile));
-            char[] buf = new char[1024];         //字符缓冲区
-            int len;
-            while ((len = bufferedReader.read(buf)) != -1) {
-                bufferedWriter.write(buf, 0, len);
-            }
-            bufferedWriter.flush();
+            // 先写临时文件再原子替换，崩溃时不会留下写了一半的文件
+            StorageManager.writeAtomically(distFile, res.getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             e.printStackTrace();
-            flag = false;
-            return flag;
-        } finally {
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (bufferedWriter != null) {
-                try {
-                    bufferedWriter.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            return false;
         }
-        return flag;
+        return true;
     }
 
+    /** keys of {@code ab_config.payload_properties} */
+    private static final String[] PAYLOAD_PROPERTY_KEYS = {
+            PackageFiles.FILE_HASH,
+            PackageFiles.FILE_SIZE,
+            PackageFiles.METADATA_HASH,
+            PackageFiles.METADATA_SIZE};
+
     /**
      * these strings are represent types in JSON config files
      */
@@ -194,6 +193,9 @@ public class UpdateConfig implements Parcelable {
     /** update zip file URI, can be https:// or file:// */
     private String mUrl;
 
+    /** other locations serving the same package as {@code mUrl} */
+    private ArrayList<String> mMirrors = new ArrayList<>();
+
     /** non-streaming (first saves locally) OR streaming (on the fly) */
     private int mAbInstallType;
 
@@ -211,6 +213,7 @@ public class UpdateConfig implements Parcelable {
         this.mAbInstallType = in.readInt();
         this.mAbConfig = (AbConfig) in.readSerializable();
         this.mRawJson = in.readString();
+        this.mMirrors = in.createStringArrayList();
     }
 
     public UpdateConfig(String name, String url, int installType) {
@@ -227,6 +230,13 @@ public class UpdateConfig implements Parcelable {
         return mUrl;
     }
 
+    /**
+     * @return urls of mirrors serving the same package as {@link #getUrl()}, may be empty
+     */
+    public List<String> getMirrors() {
+        return Collections.unmodifiableList(mMirrors);
+    }
+
     public String getRawJson() {
         return mRawJson;
     }
@@ -265,6 +275,7 @@ public class UpdateConfig implements Parcelable {
         dest.writeInt(mAbInstallType);
         dest.writeSerializable(mAbConfig);
         dest.writeString(mRawJson);
+        dest.writeStringList(mMirrors);
     }
 
     /**
@@ -331,15 +342,33 @@ public class UpdateConfig implements Parcelable {
          */
         private String mAuthorization;
 
+        /**
+         * Values of {@code payload_properties.txt} ({@code FILE_HASH}, {@code FILE_SIZE},
+         * {@code METADATA_HASH}, {@code METADATA_SIZE}) given in the config, used to verify
+         * downloaded data.
+         */
+        private HashMap<String, String> mPayloadProperties;
+
         public AbConfig(
                 boolean forceSwitchSlot,
                 boolean verifyPayloadMetadata,
                 PackageFile[] propertyFiles,
                 String authorization) {
+            this(forceSwitchSlot, verifyPayloadMetadata, propertyFiles, authorization,
+                    new HashMap<>());
+        }
+
+        public AbConfig(
+                boolean forceSwitchSlot,
+                boolean verifyPayloadMetadata,
+                PackageFile[] propertyFiles,
+                String authorization,
+                HashMap<String, String> payloadProperties) {
             this.mForceSwitchSlot = forceSwitchSlot;
             this.mVerifyPayloadMetadata = verifyPayloadMetadata;
             this.mPropertyFiles = propertyFiles;
             this.mAuthorization = authorization;
+            this.mPayloadProperties = payloadProperties;
         }
 
         public boolean getForceSwitchSlot() {
@@ -354,9 +383,26 @@ public class UpdateConfig implements Parcelable {
             return mPropertyFiles;
         }
 
+        /**
+         * Sets the property files derived from the package when the config has none.
+         */
+        void setPropertyFiles(PackageFile[] propertyFiles) {
+            this.mPropertyFiles = propertyFiles;
+        }
+
         public Optional<String> getAuthorization() {
             return mAuthorization == null ? Optional.empty() : Optional.of(mAuthorization);
         }
+
+        /**
+         * @param key one of the keys of {@code payload_properties.txt}
+         * @return value of the property if the config provides it
+         */
+        public Optional<String> getPayloadProperty(String key) {
+            return mPayloadProperties == null
+                    ? Optional.empty()
+                    : Optional.ofNullable(mPayloadProperties.get(key));
+        }
     }
 
 }
@@ -26,23 +26,46 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.AtomicDouble;
+import com.nathan.abupdate.util.BandwidthLimiter;
+import com.nathan.abupdate.util.DownloadExecutors;
+import com.nathan.abupdate.util.DownloadResult;
+import com.nathan.abupdate.util.DownloadTransport;
 import com.nathan.abupdate.util.FileDownloader;
+import com.nathan.abupdate.util.HttpTransport;
+import com.nathan.abupdate.util.MirrorTransport;
+import com.nathan.abupdate.util.PackageDirSweeper;
+import com.nathan.abupdate.util.PackageFileCache;
 import com.nathan.abupdate.util.PackageFiles;
+import com.nathan.abupdate.util.PackageIndexCache;
+import com.nathan.abupdate.util.PayloadMetadata;
 import com.nathan.abupdate.util.PayloadSpecs;
+import com.nathan.abupdate.util.RangeBatchDownloader;
+import com.nathan.abupdate.util.RemoteZipSource;
+import com.nathan.abupdate.util.RetryPolicy;
+import com.nathan.abupdate.util.SegmentedDownloader;
+import com.nathan.abupdate.util.StorageManager;
+import com.nathan.abupdate.util.StreamingProxy;
 import com.nathan.abupdate.util.UpdateConfigs;
 import com.nathan.abupdate.util.UpdateEngineErrorCodes;
 import com.nathan.abupdate.util.UpdateEngineProperties;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.DoubleConsumer;
@@ -52,8 +75,10 @@ import javax.annotation.concurrent.GuardedBy;
 
 import static com.nathan.abupdate.util.PackageFiles.COMPATIBILITY_ZIP_FILE_NAME;
 import static com.nathan.abupdate.util.PackageFiles.OTA_PACKAGE_DIR;
+import static com.nathan.abupdate.util.PackageFiles.PACKAGE_FILE_CACHE_DIR;
 import static com.nathan.abupdate.util.PackageFiles.PAYLOAD_BINARY_FILE_NAME;
 import static com.nathan.abupdate.util.PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME;
+import static com.nathan.abupdate.util.PackageFiles.UPDATE_PACKAGE_FILE_NAME;
 
 
 /**
@@ -84,6 +109,21 @@ public class UpdateManager {
     @GuardedBy("mLock")
     private UpdateData mLastUpdateData = null;
 
+    /** Prepare phase in progress, null once the payload is handed to the engine. */
+    @GuardedBy("mLock")
+    private PrepareStages mPrepareStages = null;
+
+    /** Config of the last prepare phase, prepared again when resuming. */
+    @GuardedBy("mLock")
+    private UpdateConfig mPreparingConfig = null;
+
+    /** Proxy the engine streams the current payload through, if any. */
+    @GuardedBy("mLock")
+    private StreamingProxy mStreamingProxy = null;
+
+    /** Metadata of the payload being prepared or applied, if it could be read. */
+    private volatile PayloadMetadata mPayloadMetadata = null;
+
     @GuardedBy("mLock")
     private IntConsumer mOnStateChangeCallback = null;
     @GuardedBy("mLock")
@@ -100,6 +140,21 @@ public class UpdateManager {
 
     private final Handler mHandler;
 
+    private volatile DownloadTransport mDownloadTransport = HttpTransport.getDefault();
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private final BandwidthLimiter mBandwidthLimiter =
+            BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED);
+    private volatile boolean mStreamingProxyEnabled = false;
+    private final PackageDirSweeper mSweeper = new PackageDirSweeper(new File(OTA_PACKAGE_DIR));
+    /** Runs the sweeps of {@code OTA_PACKAGE_DIR} in the background, one at a time. */
+    private final ExecutorService mSweepExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "abupdate-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final PackageFileCache mFileCache =
+            new PackageFileCache(new File(OTA_PACKAGE_DIR, PACKAGE_FILE_CACHE_DIR));
+
     /**
      * @param updateEngine UpdateEngine instance.
      * @param handler      Handler for {@link } intent service.
@@ -107,6 +162,8 @@ public class UpdateManager {
     public UpdateManager(UpdateEngine updateEngine, Handler handler) {
         this.mUpdateEngine = updateEngine;
         this.mHandler = handler;
+        this.mPayloadSpecs.setIndexCache(new PackageIndexCache(
+                new File(OTA_PACKAGE_DIR, PackageFiles.PACKAGE_INDEX_FILE_NAME)));
     }
 
     /**
@@ -130,6 +187,15 @@ public class UpdateManager {
         return mUpdaterState.get();
     }
 
+    /**
+     * Returns the partitions, operation counts and I/O totals of the payload being
+     * prepared or applied. Known once the payload metadata or the package is
+     * downloaded, i.e. before the payload is handed to update_engine.
+     */
+    public Optional<PayloadMetadata> getPayloadMetadata() {
+        return Optional.ofNullable(mPayloadMetadata);
+    }
+
     /**
      * Returns true if manual switching slot is required. Value depends on
      * the update config {@code ab_config.force_switch_slot}.
@@ -217,12 +283,59 @@ public class UpdateManager {
         }
     }
 
+    /**
+     * Sets the transport used to download update files, {@link HttpTransport} by default.
+     */
+    public void setDownloadTransport(DownloadTransport transport) {
+        this.mDownloadTransport = transport;
+    }
+
+    /**
+     * Sets how failed downloads are retried, {@link RetryPolicy#DEFAULT} by default.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Limits the bandwidth of the update downloads, on top of the process wide limit of
+     * {@link BandwidthLimiter#getGlobal()}. Applies to running downloads as well.
+     *
+     * @param bytesPerSecond maximum rate, {@link BandwidthLimiter#UNLIMITED} for none
+     */
+    public void setDownloadBandwidthLimit(long bytesPerSecond) {
+        mBandwidthLimiter.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Limits the size of {@code OTA_PACKAGE_DIR}. Files of previous updates are deleted,
+     * least recently used first, when an update is prepared. The budget covers the files
+     * directly in the directory; the {@link PackageFileCache} in its subdirectory is
+     * bounded separately by {@link PackageFileCache#DEFAULT_MAX_BYTES}.
+     *
+     * @param bytes maximum size, {@link PackageDirSweeper#UNLIMITED} for none
+     */
+    public void setPackageDirBudget(long bytes) {
+        mSweeper.setBudgetBytes(bytes);
+    }
+
+    /**
+     * Makes streaming updates go through a {@link StreamingProxy} on localhost, which
+     * reads ahead of update_engine over parallel connections. Disabled by default,
+     * applies to the next update.
+     */
+    public void setStreamingProxyEnabled(boolean enabled) {
+        this.mStreamingProxyEnabled = enabled;
+    }
+
     /**
      * Suspend running update.
      */
     public synchronized void suspend() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "suspend invoked");
         setUpdaterState(UpdaterState.PAUSED);
+        // Partial downloads are kept, resume() continues them.
+        stopPreparing(false);
         mUpdateEngine.cancel();
     }
 
@@ -232,6 +345,15 @@ public class UpdateManager {
     public synchronized void resume() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "resume invoked");
         setUpdaterState(UpdaterState.RUNNING);
+        UpdateConfig preparingConfig;
+        synchronized (mLock) {
+            preparingConfig = mLastUpdateData == null ? mPreparingConfig : null;
+        }
+        if (preparingConfig != null) {
+            // Suspended before the payload reached the engine, prepare again.
+            mHandler.post(() -> doWork(preparingConfig));
+            return;
+        }
         updateEngineReApplyPayload();
     }
 
@@ -283,7 +405,18 @@ public class UpdateManager {
                     "Can't transition from " + UpdaterState.getStateText(mUpdaterState.get()) + " to cancel ");
         }
         setUpdaterState(UpdaterState.IDLE);
+        stopPreparing(true);
         mUpdateEngine.cancel();
+        closeStreamingProxy();
+    }
+
+    /**
+     * Stops the downloads of an update being prepared and deletes the partially
+     * downloaded files. Returns immediately, without waiting for the downloads.
+     */
+    public void cancelDownloads() {
+        stopPreparing(true);
+        closeStreamingProxy();
     }
 
     /**
@@ -293,6 +426,7 @@ public class UpdateManager {
         Log.d(TAG, "resetUpdate invoked");
         setUpdaterState(UpdaterState.IDLE);
         mUpdateEngine.resetStatus();
+        closeStreamingProxy();
     }
 
     /**
@@ -347,6 +481,7 @@ public class UpdateManager {
             mManualSwitchSlotRequired.set(false);
         }
 
+        prewarmConnections(config);
         Log.d(TAG, "Starting PrepareUpdateService");
         mHandler.post(new Runnable() {
             @Override
@@ -356,6 +491,26 @@ public class UpdateManager {
         });
     }
 
+    /**
+     * Connects to the package host in the background while the update is prepared,
+     * the first downloads then skip DNS, TCP and TLS setup.
+     *
+     * <p>The prewarm request runs on a thread of its own, it may block for a whole
+     * connect timeout and must not hold up downloads queued on the shared
+     * {@link DownloadExecutors}. Mirrors are connected to when {@link MirrorTransport}
+     * probes them.</p>
+     */
+    private void prewarmConnections(UpdateConfig config) {
+        String url = config.getUrl();
+        if (!url.startsWith("http")) {
+            return;
+        }
+        DownloadTransport transport = mDownloadTransport;
+        Thread thread = new Thread(() -> transport.prewarm(url), "abupdate-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     private List<String> prepareExtraProperties(UpdateConfig config) {
         List<String> extraProperties = new ArrayList<>();
 
@@ -572,6 +727,10 @@ public class UpdateManager {
         } else if (errorCode != UpdateEngineErrorCodes.USER_CANCELLED) {
             setUpdaterStateSilent(UpdaterState.ERROR);
         }
+        if (errorCode != UpdateEngineErrorCodes.USER_CANCELLED) {
+            // A suspended update streams through the same proxy when resumed.
+            closeStreamingProxy();
+        }
 
         getOnEngineCompleteCallback()
                 .ifPresent(callback -> callback.accept(errorCode));
@@ -675,17 +834,69 @@ public class UpdateManager {
 
     private void doWork(UpdateConfig config) {
         Log.d(TAG, " doWork is called");
+        PrepareStages stages = new PrepareStages();
+        synchronized (mLock) {
+            mPrepareStages = stages;
+            mPreparingConfig = config;
+        }
+        CompletableFuture<PayloadSpec> prepared;
         try {
-            PayloadSpec spec = execute(config);
-            updateEngineApplyPayload(UpdateData.builder()
-                    .setExtraProperties(prepareExtraProperties(config))
-                    .setPayload(spec)
-                    .build());
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to prepare streaming update", e);
-            setUpdaterStateSilent(UpdaterState.ERROR);
+            prepared = execute(config, stages);
+        } catch (RuntimeException e) {
+            // E.g. a malformed METADATA_HASH or mirror url, fails like any stage.
+            prepared = stages.failWith(e);
         }
+        // Downloads run on the I/O executor, the handler thread stays free for
+        // engine callbacks until the payload is ready to be applied.
+        prepared
+                .thenAcceptAsync(spec -> {
+                    if (stages.isCancelled()) {
+                        closeStreamingProxy();
+                        return;
+                    }
+                    updateEngineApplyPayload(UpdateData.builder()
+                            .setExtraProperties(prepareExtraProperties(config))
+                            .setPayload(spec)
+                            .build());
+                }, mHandler::post)
+                .whenComplete((result, e) -> {
+                    synchronized (mLock) {
+                        if (mPrepareStages == stages) {
+                            mPrepareStages = null;
+                        }
+                    }
+                    if (e == null) {
+                        return;
+                    }
+                    if (stages.isCancelled()) {
+                        Log.i(TAG, "Update preparation stopped");
+                        return;
+                    }
+                    Log.e(TAG, "Failed to prepare streaming update",
+                            DownloadExecutors.unwrap(e));
+                    setUpdaterStateSilent(UpdaterState.ERROR);
+                });
+    }
 
+    /**
+     * Stops the downloads of the prepare phase, if it is running.
+     *
+     * @param deletePartialFiles whether partially downloaded files are deleted, or kept
+     *                           so the downloads resume when preparing again
+     * @return true if the prepare phase was running
+     */
+    private boolean stopPreparing(boolean deletePartialFiles) {
+        PrepareStages stages;
+        synchronized (mLock) {
+            stages = mPrepareStages;
+            mPrepareStages = null;
+        }
+        if (stages == null) {
+            return false;
+        }
+        Log.i(TAG, "Stopping update preparation");
+        stages.cancel(deletePartialFiles);
+        return true;
     }
 
     /**
@@ -693,21 +904,252 @@ public class UpdateManager {
      * 2. Makes sure required files are present.
      * 3. Checks OTA package compatibility with the device.
      * 4. Constructs {@link PayloadSpec} for streaming update.
+     *
+     * <p>Payload metadata and pre-streaming files are downloaded at the same time, the
+     * first one failing aborts the other. A non-streaming package is only downloaded once
+     * the metadata was verified, there's no point in fetching the whole package for an
+     * incompatible payload. Stage durations are logged when done.</p>
+     *
+     * <p>When the config lists mirrors, all downloads go through a {@link MirrorTransport}
+     * picking the fastest one, and the update engine streams from it as well.</p>
+     *
+     * <p>A streaming config without {@code ab_config.property_files} gets them from the
+     * zip headers of the remote package first, see {@link #derivePropertyFiles}.</p>
      */
-    private PayloadSpec execute(UpdateConfig config)
-            throws IOException{
+    private CompletableFuture<PayloadSpec> execute(UpdateConfig config, PrepareStages stages) {
+        if (config.getInstallType() != UpdateConfig.AB_INSTALL_TYPE_STREAMING
+                || config.getAbConfig().getPropertyFiles().length > 0
+                || !config.getUrl().startsWith("http")) {
+            return prepare(config, stages);
+        }
+        CompletableFuture<Void> derived = stages.add("property files",
+                DownloadExecutors.supply(() -> {
+                    derivePropertyFiles(config);
+                    return null;
+                }, DownloadExecutors.getDefault()),
+                null);
+        return stages.failFast(derived).thenCompose(v -> prepare(config, stages));
+    }
 
+    /**
+     * Reads the end of central directory record, the central directory and the headers
+     * of the package entries with a few range requests, and sets the property files of
+     * {@code config} computed from them.
+     */
+    private void derivePropertyFiles(UpdateConfig config) throws IOException {
+        RemoteZipSource source = new RemoteZipSource(mDownloadTransport, config.getUrl());
+        source.setRetryPolicy(mRetryPolicy);
+        UpdateConfig.PackageFile[] files = mPayloadSpecs.derivePropertyFiles(source);
+        Log.i(TAG, "Derived " + files.length + " property files of " + config.getUrl()
+                + " with " + source.getRequestCount() + " requests, "
+                + source.getFetchedBytes() + " bytes");
+        config.getAbConfig().setPropertyFiles(files);
+    }
+
+    private CompletableFuture<PayloadSpec> prepare(UpdateConfig config, PrepareStages stages) {
+        mPayloadMetadata = null;
+        // The downloads don't wait for the sweep, unless they need the space it frees.
+        Set<String> inUse = filesInUse(config);
+        CompletableFuture<Long> swept = CompletableFuture
+                .supplyAsync(() -> mSweeper.sweep(inUse), mSweepExecutor)
+                .exceptionally(e -> {
+                    Log.w(TAG, "Failed to sweep " + OTA_PACKAGE_DIR, e);
+                    return 0L;
+                });
+        try {
+            checkFreeSpace(config, swept);
+        } catch (IOException e) {
+            CompletableFuture<PayloadSpec> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        Executor executor = DownloadExecutors.getDefault();
+        MirrorTransport mirrors = config.getMirrors().isEmpty()
+                ? null
+                : new MirrorTransport(mDownloadTransport, config.getUrl(), config.getMirrors());
+        DownloadTransport transport = mirrors != null ? mirrors : mDownloadTransport;
+        CompletableFuture<Void> verified;
         if (config.getAbConfig().getVerifyPayloadMetadata()) {
             Log.i(TAG, "Verifying payload metadata with UpdateEngine.");
-            if (!verifyPayloadMetadata(config)) {
-                throw new IOException("Payload metadata is not compatible");
-            }
+            verified = verifyPayloadMetadata(config, transport, executor, stages);
+        } else {
+            verified = CompletableFuture.completedFuture(null);
         }
 
+        CompletableFuture<PayloadSpec> spec;
         if (config.getInstallType() == UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING) {
-            return mPayloadSpecs.forNonStreaming(config.getUpdatePackageFile());
+            spec = verified
+                    .thenCompose(v -> downloadUpdatePackage(config, transport, executor, stages))
+                    .thenApply(file -> {
+                        PayloadSpec payload;
+                        try {
+                            payload = mPayloadSpecs.forNonStreaming(file);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        if (mPayloadMetadata == null) {
+                            readPayloadMetadata(file, payload.getOffset());
+                        }
+                        return payload;
+                    });
+        } else {
+            CompletableFuture<List<DownloadResult>> files =
+                    downloadPreStreamingFiles(
+                            config, OTA_PACKAGE_DIR, transport, executor, stages);
+            spec = CompletableFuture.allOf(verified, files).thenCompose(v -> stages.add(
+                    "compatibility",
+                    DownloadExecutors.supply(() -> {
+                        PayloadSpec payload = prepareStreaming(config,
+                                mirrors != null ? mirrors.getSelectedUrl() : config.getUrl());
+                        return mStreamingProxyEnabled
+                                ? startStreamingProxy(config, payload, transport)
+                                : payload;
+                    }, executor),
+                    null));
         }
-        downloadPreStreamingFiles(config, OTA_PACKAGE_DIR);
+        return stages.failFast(spec).whenComplete(
+                (result, e) -> Log.i(TAG, "Prepare stages: " + stages));
+    }
+
+    /**
+     * @return names of the files in {@code OTA_PACKAGE_DIR} the update may use
+     */
+    private static Set<String> filesInUse(UpdateConfig config) {
+        Set<String> files = new HashSet<>();
+        for (UpdateConfig.PackageFile file : config.getAbConfig().getPropertyFiles()) {
+            files.add(file.getFilename());
+        }
+        files.add(PAYLOAD_PROPERTIES_FILE_NAME);
+        files.add(PackageFiles.PACKAGE_INDEX_FILE_NAME);
+        if (config.getInstallType() == UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING) {
+            files.add(UPDATE_PACKAGE_FILE_NAME);
+        }
+        if (config.getUrl().startsWith("file://")) {
+            files.add(new File(config.getUrl().substring("file://".length())).getName());
+        }
+        return files;
+    }
+
+    /**
+     * Fails before downloading anything if {@code OTA_PACKAGE_DIR} can't hold the files
+     * of the update. The size of a non-streaming package is only known once requested,
+     * the end of its last property file is used as a lower bound here and
+     * {@link SegmentedDownloader} checks the exact size when it preallocates the file.
+     *
+     * @param swept sweep of {@code OTA_PACKAGE_DIR} running in the background, waited for
+     *              if there isn't enough space without it
+     */
+    private void checkFreeSpace(UpdateConfig config, CompletableFuture<Long> swept)
+            throws IOException {
+        if (config.getUrl().startsWith("file://")) {
+            return;
+        }
+        File dir = new File(OTA_PACKAGE_DIR);
+        boolean streaming = config.getInstallType() == UpdateConfig.AB_INSTALL_TYPE_STREAMING;
+        List<UpdateConfig.PackageFile> files = new ArrayList<>();
+        long packageEnd = 0;
+        for (UpdateConfig.PackageFile file : config.getAbConfig().getPropertyFiles()) {
+            packageEnd = Math.max(packageEnd, file.getOffset() + file.getSize());
+            boolean metadata = config.getAbConfig().getVerifyPayloadMetadata()
+                    && file.getFilename().equals(PackageFiles.PAYLOAD_METADATA_FILE_NAME);
+            if (metadata || streaming && PRE_STREAMING_FILES_SET.contains(file.getFilename())) {
+                files.add(file);
+            }
+        }
+        long required = StorageManager.getRequiredBytes(dir, files);
+        if (!streaming) {
+            long existing = StorageManager.partFileOf(
+                    new File(dir, UPDATE_PACKAGE_FILE_NAME)).length();
+            required += Math.max(0, packageEnd - existing);
+        }
+        Log.d(TAG, "Update needs at least " + required + " more bytes in " + dir);
+        try {
+            StorageManager.getDefault().checkFreeSpace(dir, required);
+        } catch (StorageManager.InsufficientStorageException e) {
+            if (swept.join() == 0) {
+                throw e;
+            }
+            StorageManager.getDefault().checkFreeSpace(dir, required);
+        }
+    }
+
+    /**
+     * Parses the metadata of the payload at {@code offset} of {@code file} for
+     * {@link #getPayloadMetadata}. Errors are logged, update_engine validates the payload.
+     */
+    private void readPayloadMetadata(File file, long offset) {
+        try {
+            PayloadMetadata metadata = PayloadMetadata.read(file, offset);
+            Log.i(TAG, "Payload metadata: " + metadata);
+            mPayloadMetadata = metadata;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't parse payload metadata of " + file, e);
+        }
+    }
+
+    private static void checkPayloadMetadata(boolean compatible) {
+        if (!compatible) {
+            throw new CompletionException(
+                    new IOException("Payload metadata is not compatible"));
+        }
+    }
+
+    /**
+     * Starts a {@link StreamingProxy} of the package, replacing the previous one.
+     *
+     * @return {@code payload} pointing to the proxy, or unchanged if the proxy can't
+     *         be started
+     */
+    private PayloadSpec startStreamingProxy(UpdateConfig config, PayloadSpec payload,
+            DownloadTransport transport) {
+        if (!config.getUrl().startsWith("http")) {
+            return payload;
+        }
+        StreamingProxy proxy = new StreamingProxy(transport, config.getUrl());
+        proxy.setRetryPolicy(mRetryPolicy);
+        proxy.setBandwidthLimiter(mBandwidthLimiter);
+        String url;
+        try {
+            url = proxy.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start streaming proxy, streaming directly", e);
+            proxy.close();
+            return payload;
+        }
+        StreamingProxy previous;
+        synchronized (mLock) {
+            previous = mStreamingProxy;
+            mStreamingProxy = proxy;
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        return PayloadSpec.newBuilder()
+                .url(url)
+                .offset(payload.getOffset())
+                .size(payload.getSize())
+                .properties(payload.getProperties())
+                .build();
+    }
+
+    private void closeStreamingProxy() {
+        StreamingProxy proxy;
+        synchronized (mLock) {
+            proxy = mStreamingProxy;
+            mStreamingProxy = null;
+        }
+        if (proxy != null) {
+            proxy.close();
+        }
+    }
+
+    /**
+     * Checks the downloaded pre-streaming files and constructs the {@link PayloadSpec}
+     * for a streaming update.
+     *
+     * @param url url the update engine streams the payload from
+     */
+    private PayloadSpec prepareStreaming(UpdateConfig config, String url) throws IOException {
         Optional<UpdateConfig.PackageFile> payloadBinary =
                 UpdateConfigs.getPropertyFile(PAYLOAD_BINARY_FILE_NAME, config);
         if (!payloadBinary.isPresent()) {
@@ -736,22 +1178,48 @@ public class UpdateManager {
 //                payloadBinary.get().getOffset(),
 //                payloadBinary.get().getSize(),
 //                Paths.get(OTA_PACKAGE_DIR, PAYLOAD_PROPERTIES_FILE_NAME).toFile());
-        return mPayloadSpecs.forStreaming(config.getUrl(),
+        return mPayloadSpecs.forStreaming(url,
                 payloadBinary.get().getOffset(),
                 payloadBinary.get().getSize(),
                 file);
     }
 
 
+    /**
+     * Returns the local OTA package for a non-streaming update. Packages behind
+     * HTTP(S) urls are first downloaded to {@code OTA_PACKAGE_DIR} using
+     * {@link SegmentedDownloader}.
+     */
+    private CompletableFuture<File> downloadUpdatePackage(UpdateConfig config,
+            DownloadTransport transport, Executor executor, PrepareStages stages) {
+        if (config.getUrl().startsWith("file://")) {
+            return CompletableFuture.completedFuture(config.getUpdatePackageFile());
+        }
+        File packageFile = Paths.get(OTA_PACKAGE_DIR, UPDATE_PACKAGE_FILE_NAME).toFile();
+        SegmentedDownloader downloader = new SegmentedDownloader(
+                config.getUrl(),
+                packageFile,
+                SegmentedDownloader.DEFAULT_SEGMENTS);
+        downloader.setTransport(transport);
+        downloader.setRetryPolicy(mRetryPolicy);
+        downloader.setBandwidthLimiter(mBandwidthLimiter);
+        return stages.add("package", downloader.downloadAsync(executor), downloader)
+                .thenApply(DownloadResult::getFile);
+    }
+
     /**
      * Downloads only payload_metadata.bin and verifies with
      * {@link UpdateEngine#verifyPayloadMetadata}.
-     * Returns {@code true} if the payload is verified or the result is unknown because of
-     * exception from UpdateEngine.
+     * The returned stage succeeds if the payload is verified or the result is unknown
+     * because of exception from UpdateEngine. It fails if the payload is not compatible
+     * or the downloaded metadata doesn't match {@code METADATA_HASH} given in the config.
      * By downloading only small portion of the package, it allows to verify if UpdateEngine
-     * will install the update.
+     * will install the update. The metadata of a package prepared before is restored from
+     * the {@link PackageFileCache} instead, if the config identifies its content by a hash.
+     * A restored file must match {@code METADATA_HASH} as well.
      */
-    private boolean verifyPayloadMetadata(UpdateConfig config) {
+    private CompletableFuture<Void> verifyPayloadMetadata(UpdateConfig config,
+            DownloadTransport transport, Executor executor, PrepareStages stages) {
         Optional<UpdateConfig.PackageFile> metadataPackageFile =
                 Arrays.stream(config.getAbConfig().getPropertyFiles())
                         .filter(p -> p.getFilename().equals(
@@ -760,59 +1228,142 @@ public class UpdateManager {
         if (!metadataPackageFile.isPresent()) {
             Log.w(TAG, String.format("ab_config.property_files doesn't contain %s",
                     PackageFiles.PAYLOAD_METADATA_FILE_NAME));
-            return true;
+            return CompletableFuture.completedFuture(null);
         }
         Path metadataPath = Paths.get(OTA_PACKAGE_DIR, PackageFiles.PAYLOAD_METADATA_FILE_NAME);
-        try {
-            Files.deleteIfExists(metadataPath);
-            FileDownloader d = new FileDownloader(
-                    config.getUrl(),
-                    metadataPackageFile.get().getOffset(),
-                    metadataPackageFile.get().getSize(),
-                    metadataPath.toFile());
-            d.download();
-        } catch (IOException e) {
-            Log.w(TAG, String.format("Downloading %s from %s failed",
-                    PackageFiles.PAYLOAD_METADATA_FILE_NAME,
-                    config.getUrl()), e);
-            return true;
+        String cacheKey = metadataCacheKey(config, metadataPackageFile.get());
+        FileDownloader d = new FileDownloader(
+                config.getUrl(),
+                metadataPackageFile.get().getOffset(),
+                metadataPackageFile.get().getSize(),
+                metadataPath.toFile());
+        d.setTransport(transport);
+        d.setRetryPolicy(mRetryPolicy);
+        d.setBandwidthLimiter(mBandwidthLimiter);
+        // METADATA_HASH covers the first METADATA_SIZE bytes of the payload,
+        // i.e. the beginning of payload_metadata.bin.
+        Optional<String> metadataHash =
+                config.getAbConfig().getPayloadProperty(PackageFiles.METADATA_HASH);
+        Optional<String> metadataSize =
+                config.getAbConfig().getPayloadProperty(PackageFiles.METADATA_SIZE);
+        byte[] expectedSha256 = null;
+        long digestLength = 0;
+        if (metadataHash.isPresent() && metadataSize.isPresent()) {
+            expectedSha256 = Base64.getDecoder().decode(metadataHash.get());
+            digestLength = Long.parseLong(metadataSize.get());
+            d.setExpectedSha256(expectedSha256, digestLength);
         }
-        try {
-            return mUpdateEngine.verifyPayloadMetadata(metadataPath.toAbsolutePath().toString());
-        } catch (Exception e) {
-            Log.w(TAG, "UpdateEngine#verifyPayloadMetadata failed", e);
-            return true;
+        CompletableFuture<DownloadResult> download;
+        if (cacheKey != null && mFileCache.restore(cacheKey,
+                metadataPackageFile.get().getSize(), metadataPath.toFile(),
+                expectedSha256, digestLength)) {
+            download = CompletableFuture.completedFuture(null);
+        } else {
+            download = d.downloadAsync(executor).thenApply(result -> {
+                if (cacheKey != null) {
+                    mFileCache.store(cacheKey, result.getFile());
+                }
+                return result;
+            });
         }
+        CompletableFuture<Boolean> compatible = download.handle((result, e) -> {
+            Throwable cause = DownloadExecutors.unwrap(e);
+            if (cause instanceof FileDownloader.DigestMismatchException) {
+                Log.e(TAG, String.format("Downloaded %s doesn't match %s",
+                        PackageFiles.PAYLOAD_METADATA_FILE_NAME,
+                        PackageFiles.METADATA_HASH), cause);
+                return false;
+            }
+            if (cause != null) {
+                Log.w(TAG, String.format("Downloading %s from %s failed",
+                        PackageFiles.PAYLOAD_METADATA_FILE_NAME,
+                        config.getUrl()), cause);
+                return true;
+            }
+            readPayloadMetadata(metadataPath.toFile(), 0);
+            try {
+                return mUpdateEngine.verifyPayloadMetadata(
+                        metadataPath.toAbsolutePath().toString());
+            } catch (Exception ex) {
+                Log.w(TAG, "UpdateEngine#verifyPayloadMetadata failed", ex);
+                return true;
+            }
+        });
+        return stages.add("payload metadata",
+                compatible.thenAccept(UpdateManager::checkPayloadMetadata), d);
+    }
+
+    /**
+     * @return key of payload_metadata.bin in the {@link PackageFileCache}, or {@code null}
+     *         if the config has no hash identifying its content. Keyed by url only, the
+     *         metadata of a package re-published at the same url would be stale.
+     */
+    private static String metadataCacheKey(UpdateConfig config,
+            UpdateConfig.PackageFile file) {
+        Optional<String> metadataHash =
+                config.getAbConfig().getPayloadProperty(PackageFiles.METADATA_HASH);
+        if (metadataHash.isPresent()) {
+            return PackageFileCache.keyOf("metadata:" + metadataHash.get(), 0, file.getSize());
+        }
+        return PackageFileCache.keyOf(config, file);
     }
 
     /**
      * Downloads files defined in {@link UpdateConfig#getAbConfig()}
      * and exists in {@code PRE_STREAMING_FILES_SET}, and put them
-     * in directory {@code dir}.
+     * in directory {@code dir}. Files found in the {@link PackageFileCache} are not
+     * downloaded, the cache is only used for packages identified by their hash.
      *
-     * @throws IOException when can't download a file
+     * @return future failing with an {@link IOException} when can't download a file
      */
-    private void downloadPreStreamingFiles(UpdateConfig config, String dir)
-            throws IOException {
+    private CompletableFuture<List<DownloadResult>> downloadPreStreamingFiles(
+            UpdateConfig config, String dir, DownloadTransport transport, Executor executor,
+            PrepareStages stages) {
         Log.d(TAG, "Deleting existing files from " + dir);
         for (String file : PRE_STREAMING_FILES_SET) {
             Log.d(TAG, "Deleting existing files from " + file);
             //Files.deleteIfExists(Paths.get(OTA_PACKAGE_DIR, file));
         }
         Log.d(TAG, "Downloading files to " + dir);
+        List<UpdateConfig.PackageFile> files = new ArrayList<>();
+        List<DownloadResult> cached = new ArrayList<>();
         for (UpdateConfig.PackageFile file : config.getAbConfig().getPropertyFiles()) {
             Log.d(TAG, "Downloading getFilename "+file.getFilename());
-            if (PRE_STREAMING_FILES_SET.contains(file.getFilename())) {
+            if (!PRE_STREAMING_FILES_SET.contains(file.getFilename())) {
+                continue;
+            }
+            File destination = new File(dir, file.getFilename());
+            String key = PackageFileCache.keyOf(config, file);
+            if (key != null && mFileCache.restore(key, file.getSize(), destination)) {
+                cached.add(new DownloadResult(destination, file.getSize(), 0));
+            } else {
                 Log.d(TAG, "Downloading file " + file.getFilename());
-                FileDownloader downloader = new FileDownloader(
-                        config.getUrl(),
-                        file.getOffset(),
-                        file.getSize(),
-                        Paths.get(dir, file.getFilename()).toFile());
-                downloader.download();
+                files.add(file);
             }
         }
-        Log.d(TAG, "Downloading files end  ");
+        if (files.isEmpty()) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // Property files usually sit next to each other in the package,
+        // fetch them with as few requests as possible.
+        RangeBatchDownloader downloader =
+                new RangeBatchDownloader(config.getUrl(), files, new File(dir));
+        downloader.setTransport(transport);
+        downloader.setRetryPolicy(mRetryPolicy);
+        downloader.setBandwidthLimiter(mBandwidthLimiter);
+        return stages.add("pre-streaming files", downloader.downloadAsync(executor)
+                .thenApply(results -> {
+                    Log.d(TAG, "Downloading files end  ");
+                    for (int i = 0; i < files.size(); i++) {
+                        String key = PackageFileCache.keyOf(config, files.get(i));
+                        if (key != null) {
+                            mFileCache.store(key, results.get(i).getFile());
+                        }
+                    }
+                    List<DownloadResult> all = new ArrayList<>(cached);
+                    all.addAll(results);
+                    return all;
+                }), downloader);
     }
 
     /**
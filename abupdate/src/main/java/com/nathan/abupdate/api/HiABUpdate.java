@@ -2,6 +2,13 @@ package com.nathan.abupdate.api;
 
 import android.content.Context;
 
+import com.nathan.abupdate.util.BandwidthLimiter;
+import com.nathan.abupdate.util.DownloadTransport;
+import com.nathan.abupdate.util.PackageDirSweeper;
+import com.nathan.abupdate.util.PayloadMetadata;
+
+import java.util.Optional;
+
 
 public interface HiABUpdate {
 
@@ -15,6 +22,41 @@ public interface HiABUpdate {
 
     void switchSlot();
 
+    void setDownloadTransport(DownloadTransport transport);
+
+    /**
+     * Limits the bandwidth of all downloads of the process, can be changed at any time.
+     *
+     * @param bytesPerSecond maximum rate, {@link BandwidthLimiter#UNLIMITED} for none
+     */
+    void setGlobalBandwidthLimit(long bytesPerSecond);
+
+    /**
+     * Limits the bandwidth of the update downloads, can be changed at any time.
+     *
+     * @param bytesPerSecond maximum rate, {@link BandwidthLimiter#UNLIMITED} for none
+     */
+    void setDownloadBandwidthLimit(long bytesPerSecond);
+
+    /**
+     * Streams updates through a read-ahead proxy on localhost, applies to the next update.
+     */
+    void setStreamingProxyEnabled(boolean enabled);
+
+    /**
+     * Limits the disk space kept by downloaded update files, older ones are deleted
+     * when an update is prepared.
+     *
+     * @param bytes maximum size, {@link PackageDirSweeper#UNLIMITED} for none
+     */
+    void setPackageDirBudget(long bytes);
+
+    /**
+     * Returns the partitions, operation counts and I/O totals of the payload being
+     * prepared or applied, once known, e.g. to estimate the install duration.
+     */
+    Optional<PayloadMetadata> getPayloadMetadata();
+
     void destroy();
 
 }
@@ -13,7 +13,11 @@ import androidx.annotation.IntDef;
 import com.nathan.abupdate.UpdateConfig;
 import com.nathan.abupdate.UpdateManager;
 import com.nathan.abupdate.UpdaterState;
+import com.nathan.abupdate.util.BandwidthLimiter;
+import com.nathan.abupdate.util.DownloadTransport;
 import com.nathan.abupdate.util.FileDownloader;
+import com.nathan.abupdate.util.HttpTransport;
+import com.nathan.abupdate.util.PayloadMetadata;
 import com.nathan.abupdate.util.UpdateConfigs;
 import com.nathan.abupdate.util.UpdateEngineErrorCodes;
 import com.nathan.abupdate.util.UpdateEngineStatuses;
@@ -22,6 +26,7 @@ import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.file.Paths;
+import java.util.Optional;
 
 import static com.nathan.abupdate.util.PackageFiles.OTA_PACKAGE_DIR;
 
@@ -60,6 +65,8 @@ public class HiABUpdateImpl implements HiABUpdate {
     private static final String SUFFIX_ONLINE = ".json";
     private static final String JSON_STRING = "{";
 
+    private DownloadTransport mDownloadTransport = null;
+
     private UpdateCallback mUpdateCallback;
     public interface UpdateCallback{
         /**
@@ -87,6 +94,8 @@ public class HiABUpdateImpl implements HiABUpdate {
 
     @Override
     public void init(){
+        // Configures the shared connection pool before the first download.
+        mDownloadTransport = HttpTransport.getDefault();
         handlerThread = new HandlerThread("abupdate");
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper());
@@ -130,6 +139,7 @@ public class HiABUpdateImpl implements HiABUpdate {
                     FileDownloader downloader = new FileDownloader(
                             url,0,0,
                             Paths.get(localPath).toFile());
+                    downloader.setTransport(mDownloadTransport);
                     downloader.downloadFile();
                     //TODO 2 applyUpdate
                     UpdateConfig updateConfig =  UpdateConfigs.getUpdateConfigsFromLocal(localPath);
@@ -180,8 +190,46 @@ public class HiABUpdateImpl implements HiABUpdate {
         mUpdateManager.setSwitchSlotOnReboot();
     }
 
+    /**
+     * Replaces the transport used for config and package downloads.
+     * Must be called after {@link #init()}.
+     */
+    @Override
+    public void setDownloadTransport(DownloadTransport transport) {
+        mDownloadTransport = transport;
+        mUpdateManager.setDownloadTransport(transport);
+    }
+
+    @Override
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        BandwidthLimiter.getGlobal().setBytesPerSecond(bytesPerSecond);
+    }
+
+    @Override
+    public void setDownloadBandwidthLimit(long bytesPerSecond) {
+        mUpdateManager.setDownloadBandwidthLimit(bytesPerSecond);
+    }
+
+    @Override
+    public void setStreamingProxyEnabled(boolean enabled) {
+        mUpdateManager.setStreamingProxyEnabled(enabled);
+    }
+
+    @Override
+    public void setPackageDirBudget(long bytes) {
+        mUpdateManager.setPackageDirBudget(bytes);
+    }
+
+    @Override
+    public Optional<PayloadMetadata> getPayloadMetadata() {
+        return mUpdateManager.getPayloadMetadata();
+    }
+
     @Override
     public void destroy() {
+        // Gives the bandwidth and the handler thread back right away instead of
+        // letting a running download finish.
+        this.mUpdateManager.cancelDownloads();
         this.mUpdateManager.unbind();
         this.mUpdateManager.setOnEngineStatusUpdateCallback(null);
         this.mUpdateManager.setOnProgressUpdateCallback(null);
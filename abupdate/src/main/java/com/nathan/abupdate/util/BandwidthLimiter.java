@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket limiting the download bandwidth.
+ *
+ * <p>{@link #getGlobal()} limits the whole process. Per-download limiters are created
+ * with the global one as parent, a transfer is then bound by the lower of both rates.
+ * Rates can be changed at any time, running transfers pick up the new rate within
+ * 100 ms, also while waiting for tokens.</p>
+ *
+ * <p>The bucket is kept as the time at which it is empty again, updated with a
+ * compare-and-set, so {@link #acquire(long)} neither locks nor allocates and can be
+ * called from copy loops.</p>
+ */
+public final class BandwidthLimiter {
+
+    /** Rate meaning no limit. */
+    public static final long UNLIMITED = 0;
+
+    /** Bytes that may be transferred at once after the bucket was idle, at least. */
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    /** Time worth of bytes that may be transferred at once after the bucket was idle. */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /** Longest wait for tokens between checks for an abort or a rate change. */
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final BandwidthLimiter GLOBAL = new BandwidthLimiter(UNLIMITED, null);
+
+    private final BandwidthLimiter mParent;
+    private volatile long mBytesPerSecond;
+
+    /** Time at which all tokens handed out so far are paid for. */
+    private final AtomicLong mEmptyAtNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * Returns the process wide limiter, {@link #UNLIMITED} until a rate is set.
+     */
+    public static BandwidthLimiter getGlobal() {
+        return GLOBAL;
+    }
+
+    /**
+     * Creates a per-download limiter, bound by the global limiter as well.
+     *
+     * @param bytesPerSecond maximum rate, {@link #UNLIMITED} for none
+     */
+    public static BandwidthLimiter newLimiter(long bytesPerSecond) {
+        return new BandwidthLimiter(bytesPerSecond, GLOBAL);
+    }
+
+    private BandwidthLimiter(long bytesPerSecond, BandwidthLimiter parent) {
+        this.mParent = parent;
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Changes the rate, also for transfers already running. Note that a rate below the
+     * throughput floor of the {@link RetryPolicy} makes transfers fail as stalled.
+     *
+     * @param bytesPerSecond maximum rate, {@link #UNLIMITED} for none
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid rate " + bytesPerSecond);
+        }
+        mBytesPerSecond = bytesPerSecond;
+        // Forget the debt accumulated at the old rate.
+        long now = System.nanoTime();
+        mEmptyAtNanos.accumulateAndGet(now, Math::min);
+    }
+
+    /**
+     * Takes {@code count} bytes worth of tokens from this limiter and its parent,
+     * waiting as long as needed to stay under their rates.
+     *
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(long count) throws InterruptedIOException {
+        acquire(count, () -> false);
+    }
+
+    /**
+     * Same as {@link #acquire(long)}, but gives up once {@code aborted} returns
+     * {@code true}.
+     *
+     * <p>Tokens are taken one burst at a time, and the wait for them is checked every
+     * 100 ms: for an abort, and for a rate change, which scales the
+     * rest of the wait to the new rate.</p>
+     *
+     * @throws InterruptedIOException if the thread was interrupted or the transfer
+     *         aborted while waiting
+     */
+    public void acquire(long count, BooleanSupplier aborted) throws InterruptedIOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long chunk = remaining;
+            for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.mParent) {
+                long rate = limiter.mBytesPerSecond;
+                if (rate != UNLIMITED) {
+                    chunk = Math.min(chunk, burstBytes(rate));
+                }
+            }
+            long now = System.nanoTime();
+            long readyAt = now;
+            // The limiter the wait is for, and its rate when the tokens were taken.
+            BandwidthLimiter bound = null;
+            long boundRate = UNLIMITED;
+            for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.mParent) {
+                long rate = limiter.mBytesPerSecond;
+                long at = limiter.reserve(chunk, rate, now);
+                if (at > readyAt) {
+                    readyAt = at;
+                    bound = limiter;
+                    boundRate = rate;
+                }
+            }
+            long waitNanos;
+            while ((waitNanos = readyAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, Math.min(waitNanos, WAIT_SLICE_NANOS));
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttling download");
+                }
+                if (aborted.getAsBoolean()) {
+                    throw new InterruptedIOException("Download aborted while throttling");
+                }
+                long rate = bound.mBytesPerSecond;
+                if (rate != boundRate) {
+                    now = System.nanoTime();
+                    readyAt = rate == UNLIMITED
+                            ? now
+                            : now + (long) ((readyAt - now) * ((double) boundRate / rate));
+                    boundRate = rate;
+                }
+            }
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * @return bytes that may be transferred at once at {@code rate} after the bucket
+     *         was idle
+     */
+    private static long burstBytes(long rate) {
+        return Math.max(MIN_BURST_BYTES, rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * @return time at which the {@code count} bytes are paid for at {@code rate}
+     */
+    private long reserve(long count, long rate, long now) {
+        if (rate == UNLIMITED) {
+            return now;
+        }
+        long costNanos = count * TimeUnit.SECONDS.toNanos(1) / rate;
+        long burstNanos = Math.max(BURST_NANOS,
+                MIN_BURST_BYTES * TimeUnit.SECONDS.toNanos(1) / rate);
+        long emptyAt;
+        long next;
+        do {
+            emptyAt = mEmptyAtNanos.get();
+            // Tokens accumulated while idle are capped to the burst size.
+            next = Math.max(emptyAt, now - burstNanos) + costNanos;
+        } while (!mEmptyAtNanos.compareAndSet(emptyAt, next));
+        return next;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of copy buffers shared by the downloaders, so copy loops don't allocate once
+ * the pool is warm.
+ *
+ * <p>Buffers come in power of two sizes between {@link #MIN_BUFFER_SIZE} and
+ * {@link #MAX_BUFFER_SIZE}. {@link #acquire()} picks the size from the throughput
+ * observed by previous transfers, aiming at about {@link #TARGET_READ_MILLIS} worth of
+ * data per read: small buffers on slow links, large blocks and few syscalls on fast
+ * ones.</p>
+ *
+ * <p>Slots are taken and returned with compare-and-set, the pool never locks.</p>
+ */
+public final class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 16 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    /** Buffer size used until a throughput was observed. */
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** Time worth of data a buffer should hold at the observed throughput. */
+    private static final long TARGET_READ_MILLIS = 20;
+
+    /** Number of pooled buffers per size. */
+    private static final int SLOTS_PER_SIZE = 8;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    /** Pooled buffers, one array of slots per size. */
+    private final AtomicReferenceArray<byte[]>[] mSlots;
+
+    /** Moving average of the observed throughput, 0 until the first transfer. */
+    private final AtomicLong mBytesPerSecond = new AtomicLong();
+
+    /**
+     * Returns the pool shared by all downloaders.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** Use {@link #getDefault()}, tests may create their own pool. */
+    BufferPool() {
+        int sizes = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1;
+        // Arrays of a generic type can't be created, the raw array only holds our slots.
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AtomicReferenceArray<byte[]>[] slots = new AtomicReferenceArray[sizes];
+        mSlots = slots;
+        for (int i = 0; i < sizes; i++) {
+            mSlots[i] = new AtomicReferenceArray<>(SLOTS_PER_SIZE);
+        }
+    }
+
+    /**
+     * Takes a buffer sized for the observed throughput. It must be given back with
+     * {@link #release(byte[])}.
+     */
+    public byte[] acquire() {
+        return acquire(bufferSizeFor(mBytesPerSecond.get()));
+    }
+
+    /**
+     * Takes a buffer of {@code size} bytes, rounded up to a pooled size.
+     */
+    public byte[] acquire(int size) {
+        int index = indexOf(size);
+        AtomicReferenceArray<byte[]> slots = mSlots[index];
+        for (int i = 0; i < SLOTS_PER_SIZE; i++) {
+            byte[] buffer = slots.getAndSet(i, null);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[MIN_BUFFER_SIZE << index];
+    }
+
+    /**
+     * Gives a buffer back to the pool. It is dropped if the pool for its size is full.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length > MAX_BUFFER_SIZE
+                || buffer.length != MIN_BUFFER_SIZE << indexOf(buffer.length)) {
+            // Not one of ours.
+            return;
+        }
+        int index = indexOf(buffer.length);
+        AtomicReferenceArray<byte[]> slots = mSlots[index];
+        for (int i = 0; i < SLOTS_PER_SIZE; i++) {
+            if (slots.compareAndSet(i, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the throughput of a finished transfer, it sizes the buffers of the
+     * following ones. Transfers too short to be meaningful are ignored.
+     */
+    public void recordTransfer(long bytes, long nanos) {
+        if (bytes < MAX_BUFFER_SIZE || nanos <= 0) {
+            return;
+        }
+        long sample = bytes * TimeUnit.SECONDS.toNanos(1) / nanos;
+        mBytesPerSecond.accumulateAndGet(sample,
+                (average, next) -> average == 0 ? next : (average * 3 + next) / 4);
+    }
+
+    /**
+     * @return pooled size holding about {@link #TARGET_READ_MILLIS} of data
+     */
+    static int bufferSizeFor(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        long target = bytesPerSecond * TARGET_READ_MILLIS / 1000;
+        return MIN_BUFFER_SIZE << indexOf((int) Math.min(target, MAX_BUFFER_SIZE));
+    }
+
+    /**
+     * @return index of the smallest pooled size holding {@code size} bytes
+     */
+    static int indexOf(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        if (size > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size " + size + " too large");
+        }
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+/**
+ * A download that can be stopped from any thread, e.g. when the update is suspended
+ * or cancelled. Both methods return immediately; the download fails shortly after
+ * with an {@link java.io.InterruptedIOException}.
+ */
+public interface CancellableDownload {
+
+    /**
+     * Stops the download and closes its connections. Data written so far is kept, a
+     * later download of the same file resumes from its last checkpoint.
+     */
+    void abort();
+
+    /**
+     * Stops the download like {@link #abort()}, and deletes the partially downloaded
+     * files once it stopped, or right away if it is not running.
+     */
+    void cancel();
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor running asynchronous downloads, so they don't block the caller's thread
+ * (e.g. the {@code abupdate} handler thread that also receives engine callbacks).
+ */
+public final class DownloadExecutors {
+
+    /** Maximum number of downloads running at once, further ones are queued. */
+    public static final int MAX_THREADS = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor DEFAULT = createDefault();
+
+    /**
+     * Returns the shared bounded I/O executor. Its threads exit when idle.
+     */
+    public static Executor getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Runs {@code operation} on {@code executor}.
+     *
+     * @return future completed with the result, or exceptionally with the
+     *         {@link IOException} thrown by the operation
+     */
+    public static <T> CompletableFuture<T> supply(RetryPolicy.Operation<T> operation,
+            Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return operation.run();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * @return the cause of a failed future's exception, unwrapped from
+     *         {@link CompletionException}
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        while (throwable instanceof CompletionException && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private static ThreadPoolExecutor createDefault() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "abupdate-io-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private DownloadExecutors() {}
+}
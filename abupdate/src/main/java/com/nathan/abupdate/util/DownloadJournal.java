@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * On-disk checkpoint journal of a download. It records which byte ranges of the
+ * destination file were durably written, together with the source url, size and
+ * validator, so an interrupted download can resume from the last checkpoint.
+ *
+ * <p>The journal is stored next to the destination file as
+ * {@code <destination>.journal}. A journal written for another url, size or
+ * validator is discarded.</p>
+ *
+ * <p>The validator is what {@code If-Range} is sent with, see {@link #validatorOf}: the
+ * strong {@code ETag} of the source, else its {@code Last-Modified} date.</p>
+ */
+public final class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    /** Suffix of the journal file. */
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    /** Downloaders checkpoint after this many bytes were written. */
+    public static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+    private static final String KEY_URL = "url=";
+    private static final String KEY_SIZE = "size=";
+    /** Named after the ETags the first journals recorded, weak ones included. */
+    private static final String KEY_VALIDATOR = "etag=";
+    private static final String KEY_RANGE = "range=";
+
+    private final File mFile;
+    private final String mUrl;
+    private final long mSize;
+    private String mValidator;
+
+    /** Completed ranges of the destination file, start to end (exclusive). */
+    private final TreeMap<Long, Long> mRanges = new TreeMap<>();
+
+    private DownloadJournal(File file, String url, long size) {
+        this.mFile = file;
+        this.mUrl = url;
+        this.mSize = size;
+    }
+
+    /**
+     * Loads the journal of {@code destination}. If there is no journal, or it was
+     * written for a different url or size, an empty journal is returned.
+     */
+    public static DownloadJournal open(File destination, String url, long size) {
+        File file = new File(destination.getParentFile(), destination.getName() + JOURNAL_SUFFIX);
+        DownloadJournal journal = new DownloadJournal(file, url, size);
+        if (!file.isFile()) {
+            return journal;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            String journalUrl = null;
+            long journalSize = -1;
+            for (String line : lines) {
+                if (line.startsWith(KEY_URL)) {
+                    journalUrl = line.substring(KEY_URL.length());
+                } else if (line.startsWith(KEY_SIZE)) {
+                    journalSize = Long.parseLong(line.substring(KEY_SIZE.length()));
+                } else if (line.startsWith(KEY_VALIDATOR)) {
+                    journal.mValidator = line.substring(KEY_VALIDATOR.length());
+                } else if (line.startsWith(KEY_RANGE)) {
+                    String[] range = line.substring(KEY_RANGE.length()).split("-");
+                    long start = Long.parseLong(range[0]);
+                    journal.addRange(start, Long.parseLong(range[1]) - start);
+                }
+            }
+            if (!url.equals(journalUrl) || size != journalSize) {
+                Log.i(TAG, "Discarding journal of another download " + file.getName());
+                journal.reset();
+            } else if (destination.length() < journal.getCompleted(0)) {
+                // The destination was truncated or deleted behind our back.
+                journal.reset();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Can't read journal " + file.getName() + ", starting over", e);
+            journal.reset();
+        }
+        return journal;
+    }
+
+    /**
+     * Returns the validator to send in {@code If-Range} for a response with the headers of
+     * {@code response}: its {@code ETag} if strong, else its {@code Last-Modified} date.
+     * Weak {@code ETag}s aren't allowed in {@code If-Range} (RFC 7233), servers answer
+     * them with the whole file.
+     *
+     * @return the validator, or {@code null} if the response has none usable
+     */
+    public static String validatorOf(DownloadTransport.Response response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getHeader("Last-Modified");
+    }
+
+    /** @return the validator of the source, see {@link #validatorOf} */
+    public synchronized String getValidator() {
+        return mValidator;
+    }
+
+    /**
+     * Sets the validator of the source. If it differs from the recorded one, the source
+     * changed and all completed ranges are dropped.
+     */
+    public synchronized void setValidator(String validator) {
+        if (mValidator != null && !Objects.equals(mValidator, validator)) {
+            Log.i(TAG, "Source changed, validator " + mValidator + " -> " + validator);
+            mRanges.clear();
+        }
+        mValidator = validator;
+    }
+
+    /**
+     * @return number of completed bytes starting exactly at {@code offset}
+     */
+    public synchronized long getCompleted(long offset) {
+        Map.Entry<Long, Long> range = mRanges.floorEntry(offset);
+        if (range == null || range.getValue() <= offset) {
+            return 0;
+        }
+        return range.getValue() - offset;
+    }
+
+    /**
+     * Marks {@code length} bytes at {@code offset} as durably written. The caller must
+     * flush the data to disk before, and call {@link #save()} to persist the record.
+     */
+    public synchronized void markCompleted(long offset, long length) {
+        addRange(offset, length);
+    }
+
+    /** Drops all completed ranges. */
+    public synchronized void reset() {
+        mRanges.clear();
+        mValidator = null;
+    }
+
+    /**
+     * Persists the journal. The new journal replaces the old one atomically.
+     */
+    public synchronized void save() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(KEY_URL).append(mUrl).append('\n');
+        sb.append(KEY_SIZE).append(mSize).append('\n');
+        if (mValidator != null) {
+            sb.append(KEY_VALIDATOR).append(mValidator).append('\n');
+        }
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            sb.append(KEY_RANGE).append(range.getKey()).append('-').append(range.getValue())
+                    .append('\n');
+        }
+        StorageManager.writeAtomically(mFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Deletes the journal, should be called once the download is complete. */
+    public void delete() {
+        mFile.delete();
+    }
+
+    private void addRange(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> before = mRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = mRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mRanges.remove(next.getKey());
+            next = mRanges.ceilingEntry(start);
+        }
+        mRanges.put(start, end);
+    }
+}
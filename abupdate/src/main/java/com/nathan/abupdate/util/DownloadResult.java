@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a finished asynchronous download.
+ */
+public final class DownloadResult {
+
+    private final File mFile;
+    private final long mSize;
+    private final long mDurationNanos;
+
+    public DownloadResult(File file, long size, long durationNanos) {
+        this.mFile = file;
+        this.mSize = size;
+        this.mDurationNanos = durationNanos;
+    }
+
+    /** @return the downloaded file */
+    public File getFile() {
+        return mFile;
+    }
+
+    /** @return number of bytes in the file */
+    public long getSize() {
+        return mSize;
+    }
+
+    public long getDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mDurationNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadResult{file=" + mFile + ", size=" + mSize
+                + ", durationMillis=" + getDurationMillis() + "}";
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Transport used by the downloaders to fetch (ranges of) remote files. Responses follow
+ * HTTP semantics: status codes, {@code Range}/{@code Content-Range} and {@code ETag}
+ * headers.
+ *
+ * <p>{@link HttpTransport} is used by default. {@link LocalFileTransport} and
+ * {@link InMemoryTransport} serve local data the same way, e.g. as a stand-in server.</p>
+ */
+public interface DownloadTransport {
+
+    /**
+     * Sends a {@code GET} request.
+     *
+     * @param headers request headers, e.g. {@code Range}
+     * @return the response, must be closed by the caller
+     * @throws IOException when the request can't be sent
+     */
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    /**
+     * Same as {@link #get(String, Map)}, gives up waiting for a connection once
+     * {@code aborted} returns {@code true}. Transports that don't queue requests ignore
+     * {@code aborted}.
+     *
+     * @throws java.io.InterruptedIOException when aborted before the request was sent
+     */
+    default Response get(String url, Map<String, String> headers, BooleanSupplier aborted)
+            throws IOException {
+        return get(url, headers);
+    }
+
+    /**
+     * Sends a {@code HEAD} request.
+     *
+     * @return the response, must be closed by the caller
+     * @throws IOException when the request can't be sent
+     */
+    Response head(String url) throws IOException;
+
+    /**
+     * Resolves the host of {@code url} and opens a connection to it ahead of the first
+     * request, which then reuses the connection. Blocks, errors are ignored. Does nothing
+     * by default.
+     */
+    default void prewarm(String url) {
+    }
+
+    /**
+     * Response of a request. Closing it releases the underlying connection.
+     */
+    interface Response extends Closeable {
+
+        int getCode();
+
+        /** @return value of the response header, or {@code null} */
+        String getHeader(String name);
+
+        /** @return value of {@code Content-Type}, or {@code null} */
+        String getContentType();
+
+        /** @return length of the body, or {@code -1} if unknown */
+        long getContentLength();
+
+        /** @return the response body */
+        InputStream getBody() throws IOException;
+
+        @Override
+        void close();
+
+        /**
+         * Closes the response from any thread, dropping the connection instead of
+         * reusing it. A read blocked on the body fails with an {@link IOException}.
+         */
+        void abort();
+    }
+}
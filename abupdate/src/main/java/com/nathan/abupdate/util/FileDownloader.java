@@ -19,27 +19,69 @@ package com.nathan.abupdate.util;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Downloads chunk of a file from given url using {@code offset} and {@code size},
  * and saves to a given location.
  *
- * In a real-life application this helper class should download from HTTP Server,
- * but in this sample app it will only download from a local file.
+ * Works with {@code file://} urls as well as HTTP(S) servers; for the latter only
+ * the requested range is transferred.
  */
-public final class FileDownloader {
+public final class FileDownloader implements CancellableDownload {
+
+    /** How long an aborted duplicate request may take to stop before its files are deleted. */
+    private static final long HEDGE_STOP_TIMEOUT_MILLIS = 5000;
 
     private String mUrl;
     private long mOffset;
     private long mSize;
     private File mDestination;
 
+    /** Expected SHA-256 of the first {@code mDigestLength} downloaded bytes, or null. */
+    private byte[] mExpectedSha256;
+    private long mDigestLength;
+
+    private DownloadTransport mTransport = HttpTransport.getDefault();
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private BandwidthLimiter mBandwidthLimiter = BandwidthLimiter.getGlobal();
+
+    /** Set by {@link #abort()}, or when a competing hedged request won. */
+    private volatile boolean mAborted;
+
+    /** Set by {@link #cancel()}, partial files are deleted when the download stops. */
+    private volatile boolean mCancelled;
+
+    /** Set while {@link #download()} runs, partial files are left to it to delete. */
+    private volatile boolean mRunning;
+
+    /** Hedged requests in flight, aborted along with this download. */
+    private volatile FileDownloader[] mCandidates;
+
+    /** Response being read, aborted to unblock the copy loop. */
+    private volatile DownloadTransport.Response mResponse;
+
     public FileDownloader(String url, long offset, long size, File destination) {
         this.mUrl = url;
         this.mOffset = offset;
@@ -47,82 +89,712 @@ public final class FileDownloader {
         this.mDestination = destination;
     }
 
+    /**
+     * Sets the expected SHA-256 digest of the first {@code length} bytes of the downloaded
+     * file. The digest is updated while the bytes are copied, so no extra read pass is
+     * needed. On mismatch the download fails and the partial file is deleted.
+     *
+     * @param sha256 expected digest, {@code null} disables verification
+     * @param length number of leading bytes the digest covers
+     */
+    public void setExpectedSha256(byte[] sha256, long length) {
+        this.mExpectedSha256 = sha256;
+        this.mDigestLength = length;
+    }
+
+    /**
+     * Sets the transport used to fetch non-local urls, {@link HttpTransport} by default.
+     */
+    public void setTransport(DownloadTransport transport) {
+        this.mTransport = transport;
+    }
+
+    /**
+     * Sets how failed downloads are retried, {@link RetryPolicy#DEFAULT} by default.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the limiter throttling the transfer, {@link BandwidthLimiter#getGlobal()}
+     * by default.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.mBandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Stops a running download, its connection is closed so a blocked read returns
+     * right away. The download then fails with an {@link InterruptedIOException} and is
+     * not retried. Bytes up to the last checkpoint stay on disk, so the download can be
+     * resumed later.
+     */
+    @Override
+    public void abort() {
+        mAborted = true;
+        DownloadTransport.Response response = mResponse;
+        if (response != null) {
+            response.abort();
+        }
+        FileDownloader[] candidates = mCandidates;
+        if (candidates != null) {
+            for (FileDownloader candidate : candidates) {
+                candidate.abort();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #abort()}, and the partial file and its journal are deleted when the
+     * download stops, or right away if it isn't running.
+     */
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        abort();
+        if (!mRunning) {
+            deletePartialFiles();
+        }
+    }
+
+    /**
+     * Same as {@link #download()}, but runs on {@code executor} and returns immediately.
+     *
+     * @return future completed when the file is downloaded, or exceptionally with the
+     *         {@link IOException} that made the download fail
+     */
+    public CompletableFuture<DownloadResult> downloadAsync(Executor executor) {
+        return DownloadExecutors.supply(() -> {
+            long start = System.nanoTime();
+            download();
+            return new DownloadResult(mDestination, mSize, System.nanoTime() - start);
+        }, executor);
+    }
+
     /**
      * Downloads the file with given offset and size.
+     *
+     * <p>For HTTP(S) urls only the requested bytes are fetched using a
+     * {@code Range} request. Servers that ignore the header and answer with
+     * {@code 200 OK} are still supported, the leading bytes are skipped then.</p>
+     *
+     * <p>{@code file://} urls are copied with {@link FileChannel#transferTo}
+     * starting at the offset, without going through a heap buffer.</p>
+     *
+     * <p>Bytes are written to a partial file which replaces the destination once
+     * complete, see {@link StorageManager#commit}. Progress is checkpointed to a
+     * {@link DownloadJournal}, an interrupted download resumes from the last checkpoint.
+     * Failed attempts are retried according to the {@link RetryPolicy}; small remote
+     * ranges may also be hedged.</p>
      * @throws IOException when can't download the file
      */
     public void download() throws IOException {
+        boolean hedged = mRetryPolicy.getHedgeDelayMillis() > 0
+                && mSize <= StorageManager.getDefault().getSyncIntervalBytes()
+                && !isLocal(new URL(mUrl));
+        run(hedged ? this::downloadHedged : this::downloadOnce);
+    }
+
+    /**
+     * Fetches the range, and if it didn't finish within the hedge delay, fires a
+     * duplicate request. Whichever finishes first wins, the other one is aborted.
+     * Both write into their own temporary file, the winner's file is moved to the
+     * destination. Only used for ranges small enough not to be journaled.
+     *
+     * <p>The first request runs on the calling thread, the duplicate one on the shared
+     * {@link DownloadExecutors} pool. If the pool is busy the duplicate just starts
+     * late, the calling thread never waits for a pool thread.</p>
+     */
+    private void downloadHedged() throws IOException {
+        FileDownloader[] candidates = new FileDownloader[2];
+        for (int i = 0; i < candidates.length; i++) {
+            File file = new File(mDestination.getParentFile(),
+                    mDestination.getName() + ".hedge" + i);
+            candidates[i] = new FileDownloader(mUrl, mOffset, mSize, file);
+            candidates[i].mTransport = mTransport;
+            candidates[i].mExpectedSha256 = mExpectedSha256;
+            candidates[i].mDigestLength = mDigestLength;
+            candidates[i].mRetryPolicy = mRetryPolicy;
+            candidates[i].mBandwidthLimiter = mBandwidthLimiter;
+        }
+        mCandidates = candidates;
+        checkAborted();
+        AtomicReference<FileDownloader> winner = new AtomicReference<>();
+        CompletableFuture<Void> firstDone = new CompletableFuture<>();
+        AtomicBoolean hedging = new AtomicBoolean();
+        // Completed once the duplicate request returned or can no longer start, hedge
+        // can't tell as it may be cancelled while the request runs.
+        CompletableFuture<Void> hedgeStopped = new CompletableFuture<>();
+        CompletableFuture<FileDownloader> hedge = DownloadExecutors.supply(() -> {
+            try {
+                firstDone.get(mRetryPolicy.getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+                return null;
+            } catch (TimeoutException e) {
+                // Still running, hedge it.
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+            if (!hedging.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                Log.d("FileDownloader", "hedging slow download of " + mDestination.getName());
+                candidates[1].downloadOnce();
+                if (winner.compareAndSet(null, candidates[1])) {
+                    candidates[0].abort();
+                }
+                return candidates[1];
+            } finally {
+                hedgeStopped.complete(null);
+            }
+        }, DownloadExecutors.getDefault());
+        try {
+            IOException failure = null;
+            try {
+                candidates[0].downloadOnce();
+                if (winner.compareAndSet(null, candidates[0])) {
+                    candidates[1].abort();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            firstDone.complete(null);
+            // Once set, the duplicate request is never started.
+            if (hedging.compareAndSet(false, true)) {
+                hedgeStopped.complete(null);
+                hedge.cancel(false);
+            } else if (winner.get() == null) {
+                try {
+                    hedge.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = asIOException(DownloadExecutors.unwrap(e.getCause()));
+                    }
+                }
+            }
+            if (winner.get() != null) {
+                StorageManager.commit(winner.get().mDestination, mDestination);
+                return;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + mUrl);
+        } finally {
+            mCandidates = null;
+            hedge.cancel(false);
+            for (FileDownloader candidate : candidates) {
+                candidate.abort();
+            }
+            if (hedging.compareAndSet(false, true)) {
+                hedgeStopped.complete(null);
+            }
+            // The aborted duplicate may still be committing its file.
+            awaitHedgeStopped(hedgeStopped);
+            for (FileDownloader candidate : candidates) {
+                candidate.mDestination.delete();
+                candidate.deletePartialFiles();
+            }
+        }
+    }
+
+    private void awaitHedgeStopped(CompletableFuture<Void> hedgeStopped) {
+        try {
+            hedgeStopped.get(HEDGE_STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w("FileDownloader", "Duplicate request of " + mDestination.getName()
+                    + " didn't stop, its file may be left behind");
+        }
+    }
+
+    private IOException asIOException(Throwable cause) {
+        return cause instanceof IOException
+                ? (IOException) cause
+                : new IOException("Can't download file " + mUrl, cause);
+    }
+
+    private void downloadOnce() throws IOException {
         Log.d("FileDownloader", "downloading " + mDestination.getName()
                 + " from " + mUrl
                 + " to " + mDestination.getAbsolutePath());
 
+        File part = StorageManager.partFileOf(mDestination);
+        DownloadJournal journal = DownloadJournal.open(part, mUrl, mSize);
+        long completed = Math.min(journal.getCompleted(0), mSize);
+        if (mSize > 0 && completed == mSize) {
+            // Finished before, but not committed.
+            checkDigest(startDigest(completed), journal);
+            StorageManager.commit(part, mDestination);
+            journal.delete();
+            return;
+        }
+        long requestStart = mOffset + completed;
+        if (completed > 0) {
+            Log.d("FileDownloader", "resuming " + mDestination.getName() + " at " + completed);
+        }
+
         URL url = new URL(mUrl);
-        URLConnection connection = url.openConnection();
-        connection.connect();
-
-        // download the file
-        Log.d("FileDownloader", "download: step1");
-        try (InputStream input = connection.getInputStream()) {
-            Log.d("FileDownloader", "download: step2");
-            try (OutputStream output = new FileOutputStream(mDestination)) {
-                Log.d("FileDownloader", "download: step3");
-
-                Log.d("FileDownloader", "download: step44444");
-                long skipped = input.skip(mOffset);
-                Log.d("FileDownloader", "download: step4");
-                if (skipped != mOffset) {
-                    throw new IOException("Can't download file "
-                            + mUrl
-                            + " with given offset "
-                            + mOffset);
+        if (isLocal(url)) {
+            downloadLocal(new File(url.getPath()), part, journal, completed);
+            StorageManager.commit(part, mDestination);
+            journal.delete();
+            Log.d("FileDownloader", "copied " + mSize + " bytes of " + mDestination.getName());
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        if (mSize > completed) {
+            headers.put("Range", "bytes=" + requestStart + "-" + (mOffset + mSize - 1));
+            if (completed > 0 && journal.getValidator() != null) {
+                headers.put("If-Range", journal.getValidator());
+            }
+        }
+
+        try (DownloadTransport.Response response =
+                     track(mTransport.get(mUrl, headers, () -> mAborted))) {
+            long toSkip;
+            if (checkRangeResponse(response, requestStart)) {
+                toSkip = 0;
+            } else {
+                if (completed > 0) {
+                    Log.w("FileDownloader", "Can't resume " + mUrl + ", starting over");
+                    journal.reset();
+                    completed = 0;
                 }
-                Log.d("FileDownloader", "download: step5");
-                byte[] data = new byte[4096];
-                long total = 0;
-                while (total < mSize) {
-                    int needToRead = (int) Math.min(4096, mSize - total);
-                    int count = input.read(data, 0, needToRead);
-                    if (count <= 0) {
-                        break;
+                toSkip = mOffset;
+            }
+            journal.setValidator(DownloadJournal.validatorOf(response));
+
+            // download the file
+            InputStream input = response.getBody();
+            try (RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+                // Bytes written after the last checkpoint are overwritten.
+                StorageManager.getDefault().preallocate(part, output, mSize);
+                output.seek(completed);
+                long syncInterval = StorageManager.getDefault().getSyncIntervalBytes();
+                MessageDigest digest = startDigest(completed);
+                RetryPolicy.StallDetector stallDetector = mRetryPolicy.newStallDetector();
+                skipFully(input, toSkip);
+                byte[] data = BufferPool.getDefault().acquire();
+                long start = System.nanoTime();
+                long total = completed;
+                long checkpoint = completed;
+                try {
+                    while (total < mSize) {
+                        int needToRead = (int) Math.min(data.length, mSize - total);
+                        int count = input.read(data, 0, needToRead);
+                        if (count <= 0) {
+                            break;
+                        }
+                        checkAborted();
+                        stallDetector.onProgress(count);
+                        mBandwidthLimiter.acquire(count, () -> mAborted);
+                        output.write(data, 0, count);
+                        updateDigest(digest, total, data, count);
+                        total += count;
+                        if (total - checkpoint >= syncInterval) {
+                            output.getChannel().force(false);
+                            journal.markCompleted(0, total);
+                            journal.save();
+                            checkpoint = total;
+                        }
                     }
-                    output.write(data, 0, count);
-                    total += count;
+                } finally {
+                    BufferPool.getDefault().release(data);
                 }
-                Log.d("FileDownloader", "download: step6");
+                BufferPool.getDefault().recordTransfer(
+                        total - completed, System.nanoTime() - start);
                 if (total != mSize) {
                     throw new IOException("Can't download file "
                             + mUrl
                             + " with given size "
                             + mSize);
                 }
-                Log.d("FileDownloader", "download: step7");
+                checkDigest(digest, journal);
+            }
+        }
+        StorageManager.commit(part, mDestination);
+        journal.delete();
+        Log.d("FileDownloader", "downloaded " + mSize + " bytes of " + mDestination.getName());
+    }
+
+    /**
+     * Checks the response to a (possibly) ranged request.
+     *
+     * @return {@code true} if the body starts at {@code requestStart}, {@code false} if
+     *         the server ignored the {@code Range} header and returned the whole file
+     * @throws IOException when the server returned an error or an unexpected range
+     */
+    private boolean checkRangeResponse(DownloadTransport.Response response, long requestStart)
+            throws IOException {
+        int code = response.getCode();
+        if (code == HttpURLConnection.HTTP_PARTIAL) {
+            long start = parseContentRangeStart(response.getHeader("Content-Range"));
+            if (start != requestStart) {
+                throw new IOException("Can't download file " + mUrl
+                        + ", requested offset " + requestStart
+                        + " but server returned range starting at " + start);
+            }
+            return true;
+        }
+        if (code == HttpURLConnection.HTTP_OK) {
+            if (requestStart > 0) {
+                Log.w("FileDownloader", "Server ignored range request for " + mUrl
+                        + ", skipping " + mOffset + " bytes");
             }
-            Log.d("FileDownloader", "download: step8");
+            return false;
         }
-        Log.d("FileDownloader", "download: step end");
+        throw new IOException("Can't download file " + mUrl
+                + ", server returned HTTP " + code);
     }
 
+    /**
+     * Parses the first byte position of a {@code Content-Range} header value,
+     * e.g. {@code bytes 100-199/2000}.
+     *
+     * @return first byte position, or {@code -1} if the value can't be parsed
+     */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
+    /**
+     * {@link InputStream#skip} may skip fewer bytes than requested even if the stream
+     * is not exhausted, so keep skipping until {@code count} bytes are consumed.
+     */
+    private void skipFully(InputStream input, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("Can't download file "
+                            + mUrl
+                            + " with given offset "
+                            + mOffset);
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Downloads the whole file.
+     * @throws IOException when can't download the file
+     */
     public void downloadFile() throws IOException {
+        run(this::downloadFileOnce);
+    }
+
+    private interface Attempt {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs download attempts according to the retry policy. Errors caused by an abort,
+     * e.g. a closed socket, are reported as {@link InterruptedIOException} so they are
+     * not retried.
+     */
+    private void run(Attempt attempt) throws IOException {
+        mRunning = true;
+        try {
+            mRetryPolicy.execute("Downloading " + mDestination.getName(), () -> {
+                checkAborted();
+                try {
+                    attempt.run();
+                } catch (IOException e) {
+                    checkAborted();
+                    throw e;
+                }
+                return null;
+            }, () -> mAborted);
+        } catch (IOException e) {
+            // Cleared before checking mCancelled, so either this or cancel() deletes.
+            mRunning = false;
+            if (mCancelled) {
+                Log.d("FileDownloader", "Download of " + mDestination.getName()
+                        + " cancelled, deleting partial file");
+                deletePartialFiles();
+            }
+            throw e;
+        } finally {
+            mRunning = false;
+        }
+    }
+
+    private void downloadFileOnce() throws IOException {
         Log.d("FileDownloader", "downloading " + mDestination.getName()
                 + " from " + mUrl
                 + " to " + mDestination.getAbsolutePath());
 
+        File part = StorageManager.partFileOf(mDestination);
         URL url = new URL(mUrl);
-        URLConnection connection = url.openConnection();
-        connection.connect();
-
-        // download the file
-        try (InputStream input = connection.getInputStream()) {
-            try (OutputStream output = new FileOutputStream(mDestination)) {
-                Log.d("FileDownloader", "download: step5");
-                byte[] data = new byte[1024];
-                int count;
-                while ((count = input.read(data)) != -1) {
-                    output.write(data, 0, count);
+        if (isLocal(url)) {
+            try (FileChannel in = FileChannel.open(Paths.get(url.getPath()),
+                    StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(part.toPath(),
+                         StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (mExpectedSha256 == null) {
+                    transfer(in, 0, in.size(), out);
+                } else {
+                    MessageDigest digest = startDigest(0);
+                    copyMapped(in, 0, in.size(), out, digest, 0);
+                    checkDigest(digest, null);
+                }
+            }
+            StorageManager.commit(part, mDestination);
+            return;
+        }
+
+        try (DownloadTransport.Response response =
+                     track(mTransport.get(mUrl, Collections.emptyMap(), () -> mAborted))) {
+            if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Can't download file " + mUrl
+                        + ", server returned HTTP " + response.getCode());
+            }
+            // download the file
+            InputStream input = response.getBody();
+            try (RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+                output.setLength(0);
+                if (response.getContentLength() > 0) {
+                    StorageManager.getDefault().preallocate(
+                            part, output, response.getContentLength());
+                }
+                MessageDigest digest = startDigest(0);
+                RetryPolicy.StallDetector stallDetector = mRetryPolicy.newStallDetector();
+                byte[] data = BufferPool.getDefault().acquire();
+                long start = System.nanoTime();
+                long total = 0;
+                try {
+                    int count;
+                    while ((count = input.read(data)) != -1) {
+                        checkAborted();
+                        stallDetector.onProgress(count);
+                        mBandwidthLimiter.acquire(count, () -> mAborted);
+                        output.write(data, 0, count);
+                        updateDigest(digest, total, data, count);
+                        total += count;
+                    }
+                } finally {
+                    BufferPool.getDefault().release(data);
+                }
+                BufferPool.getDefault().recordTransfer(total, System.nanoTime() - start);
+                if (output.length() != total) {
+                    output.setLength(total);
+                }
+                checkDigest(digest, null);
+            }
+        }
+        StorageManager.commit(part, mDestination);
+    }
+
+    private void deletePartialFiles() {
+        File part = StorageManager.partFileOf(mDestination);
+        part.delete();
+        new File(part.getPath() + DownloadJournal.JOURNAL_SUFFIX).delete();
+    }
+
+    /**
+     * Makes {@code response} the one {@link #abort()} closes.
+     */
+    private DownloadTransport.Response track(DownloadTransport.Response response) {
+        mResponse = response;
+        if (mAborted) {
+            response.abort();
+        }
+        return response;
+    }
+
+    private void checkAborted() throws InterruptedIOException {
+        if (mAborted) {
+            throw new InterruptedIOException("Download of " + mUrl + " aborted");
+        }
+    }
+
+    private static boolean isLocal(URL url) {
+        return "file".equals(url.getProtocol());
+    }
+
+    /**
+     * Copies {@code mSize} bytes at {@code mOffset} of a local file, resuming after
+     * {@code completed} bytes. Data is moved with {@link FileChannel#transferTo} from the
+     * requested position, so the kernel can copy it without passing through the heap.
+     */
+    private void downloadLocal(File source, File part, DownloadJournal journal,
+            long completed) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+            FileChannel out = output.getChannel();
+            if (in.size() < mOffset + mSize) {
+                throw new IOException("Can't download file "
+                        + mUrl
+                        + " with given offset "
+                        + mOffset
+                        + " and size "
+                        + mSize);
+            }
+            // Bytes written after the last checkpoint are overwritten.
+            StorageManager.getDefault().preallocate(part, output, mSize);
+            long syncInterval = StorageManager.getDefault().getSyncIntervalBytes();
+            MessageDigest digest = startDigest(completed);
+            long total = completed;
+            while (total < mSize) {
+                checkAborted();
+                long count = Math.min(syncInterval, mSize - total);
+                out.position(total);
+                if (digest == null) {
+                    transfer(in, mOffset + total, count, out);
+                } else {
+                    copyMapped(in, mOffset + total, count, out, digest, total);
+                }
+                total += count;
+                if (total < mSize) {
+                    out.force(false);
+                    journal.markCompleted(0, total);
+                    journal.save();
+                }
+            }
+            checkDigest(digest, journal);
+        }
+    }
+
+    /**
+     * Same as {@link #transfer}, but maps the source region so it can be hashed and
+     * written without copying it into the heap.
+     *
+     * @param written number of bytes of the destination written before this region
+     */
+    private void copyMapped(FileChannel in, long position, long count, FileChannel out,
+            MessageDigest digest, long written) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            long chunk = Math.min(DownloadJournal.CHECKPOINT_BYTES, count - copied);
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position + copied, chunk);
+            updateDigest(digest, written + copied, buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            copied += chunk;
+        }
+    }
+
+    /**
+     * Creates the digest if verification is requested, and feeds it with the bytes
+     * already present in the destination when a download is resumed.
+     */
+    private MessageDigest startDigest(long completed) throws IOException {
+        if (mExpectedSha256 == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        long toHash = Math.min(completed, mDigestLength);
+        if (toHash > 0) {
+            try (FileChannel existing = FileChannel.open(
+                    StorageManager.partFileOf(mDestination).toPath(),
+                    StandardOpenOption.READ)) {
+                for (long hashed = 0; hashed < toHash; ) {
+                    long chunk = Math.min(DownloadJournal.CHECKPOINT_BYTES, toHash - hashed);
+                    digest.update(existing.map(FileChannel.MapMode.READ_ONLY, hashed, chunk));
+                    hashed += chunk;
                 }
             }
         }
+        return digest;
+    }
+
+    /**
+     * Updates {@code digest} with the part of {@code data} that falls into the first
+     * {@code mDigestLength} bytes of the file.
+     *
+     * @param position position of {@code data} in the destination file
+     */
+    private void updateDigest(MessageDigest digest, long position, ByteBuffer data) {
+        if (digest == null || position >= mDigestLength) {
+            return;
+        }
+        long remaining = mDigestLength - position;
+        if (data.remaining() > remaining) {
+            data.limit(data.position() + (int) remaining);
+        }
+        digest.update(data);
+    }
+
+    /**
+     * Same as {@link #updateDigest(MessageDigest, long, ByteBuffer)} for the first
+     * {@code count} bytes of an array, without wrapping it.
+     */
+    private void updateDigest(MessageDigest digest, long position, byte[] data, int count) {
+        if (digest == null || position >= mDigestLength) {
+            return;
+        }
+        digest.update(data, 0, (int) Math.min(count, mDigestLength - position));
+    }
+
+    /**
+     * Compares the computed digest with the expected one. On mismatch the partial file
+     * and its journal are deleted, since resuming would keep the corrupted bytes.
+     */
+    private void checkDigest(MessageDigest digest, DownloadJournal journal)
+            throws IOException {
+        if (digest == null) {
+            return;
+        }
+        if (!MessageDigest.isEqual(mExpectedSha256, digest.digest())) {
+            StorageManager.partFileOf(mDestination).delete();
+            if (journal != null) {
+                journal.delete();
+            }
+            throw new DigestMismatchException("Can't download file " + mUrl
+                    + ", SHA-256 mismatch");
+        }
+    }
+
+    /**
+     * Transfers exactly {@code count} bytes at {@code position} of {@code in} to the
+     * current position of {@code out}.
+     */
+    private void transfer(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = in.transferTo(position + transferred, count - transferred, out);
+            if (n <= 0) {
+                throw new IOException("Can't download file "
+                        + mUrl
+                        + ", unexpected end of file at "
+                        + (position + transferred));
+            }
+            transferred += n;
+        }
     }
 
+    /**
+     * Thrown when the downloaded bytes don't match the expected digest.
+     */
+    public static class DigestMismatchException extends IOException {
+        public DigestMismatchException(String msg) {
+            super(msg);
+        }
+    }
 }
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Shared HTTP(S) {@link DownloadTransport}, used by all downloaders by default.
+ *
+ * <p>Connections are kept alive and reused by the platform connection pool, which is
+ * configured here with an idle timeout and a pool size. A connection only goes back to
+ * the pool when its response body was fully consumed and closed (not
+ * {@link HttpURLConnection#disconnect() disconnected}), {@link Response#close()} takes
+ * care of that. The number of concurrent connections per host is capped.</p>
+ *
+ * <p>{@link #prewarm(String)} connects to a host early. Requests to the host made
+ * meanwhile wait for it, to pick the warm connection from the pool.</p>
+ */
+public final class HttpTransport implements DownloadTransport {
+
+    private static final String TAG = "HttpTransport";
+
+    /** Default maximum number of concurrent connections to one host. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** Default time an idle connection stays in the pool. */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60 * 1000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** How often a request waiting for a connection permit checks for an abort. */
+    private static final long PERMIT_POLL_MILLIS = 100;
+
+    /**
+     * Unread bytes up to this size are drained on close to make the connection
+     * reusable, if they have already arrived. Larger leftovers are cheaper to drop with
+     * the connection.
+     */
+    private static final long MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static HttpTransport sDefault;
+
+    private final int mMaxConnectionsPerHost;
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+    /** Hosts being prewarmed, completed once their connection is in the pool. */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> mPrewarming =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Returns the process wide transport. The first call configures the platform
+     * connection pool, so it should happen before any connection is opened.
+     */
+    public static synchronized HttpTransport getDefault() {
+        if (sDefault == null) {
+            sDefault = new HttpTransport(
+                    DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_MILLIS);
+        }
+        return sDefault;
+    }
+
+    private HttpTransport(int maxConnectionsPerHost, long keepAliveMillis) {
+        this.mMaxConnectionsPerHost = maxConnectionsPerHost;
+        // Read by the platform connection pool when it is created.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        return open("GET", url, headers, true, () -> false);
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers, BooleanSupplier aborted)
+            throws IOException {
+        return open("GET", url, headers, true, aborted);
+    }
+
+    @Override
+    public Response head(String url) throws IOException {
+        return open("HEAD", url, Collections.emptyMap(), true, () -> false);
+    }
+
+    /**
+     * Sends a {@code HEAD} request and closes its response, which leaves the connection,
+     * TLS session included, in the pool.
+     */
+    @Override
+    public void prewarm(String url) {
+        String host;
+        try {
+            host = hostKey(new URL(url));
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Not prewarming malformed url " + url, e);
+            return;
+        }
+        CompletableFuture<Void> prewarmed = new CompletableFuture<>();
+        if (mPrewarming.putIfAbsent(host, prewarmed) != null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (Response response = open("HEAD", url, Collections.emptyMap(), false, () -> false)) {
+            Log.d(TAG, "Prewarmed connection to " + host + " in "
+                    + (System.currentTimeMillis() - start) + " ms, HTTP " + response.getCode());
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to prewarm connection to " + host, e);
+        } finally {
+            mPrewarming.remove(host, prewarmed);
+            prewarmed.complete(null);
+        }
+    }
+
+    private static String hostKey(URL url) {
+        return url.getHost() + ":" + url.getPort();
+    }
+
+    /**
+     * Waits until a connection being prewarmed to {@code host} is pooled, at most as
+     * long as it takes to connect.
+     */
+    private void awaitPrewarm(String host) throws IOException {
+        CompletableFuture<Void> prewarmed = mPrewarming.get(host);
+        if (prewarmed == null) {
+            return;
+        }
+        try {
+            prewarmed.get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + host, e);
+        } catch (ExecutionException | TimeoutException e) {
+            // Connect on our own.
+        }
+    }
+
+    /**
+     * Waits for a connection permit to the host, at most {@link #CONNECT_TIMEOUT_MILLIS}
+     * like a connect. The wait is polled so that {@code aborted} is honored while the
+     * host's connections are all in use.
+     */
+    private static void acquirePermit(Semaphore permits, String url, BooleanSupplier aborted)
+            throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+        try {
+            while (!permits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (aborted.getAsBoolean()) {
+                    throw new InterruptedIOException(
+                            "Aborted while waiting for a connection to " + url);
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    throw new SocketTimeoutException("Timed out after "
+                            + CONNECT_TIMEOUT_MILLIS + " ms waiting for a connection to " + url);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a connection to " + url);
+        }
+        if (aborted.getAsBoolean()) {
+            permits.release();
+            throw new InterruptedIOException("Aborted while waiting for a connection to " + url);
+        }
+    }
+
+    private Response open(String method, String url, Map<String, String> headers,
+            boolean awaitPrewarm, BooleanSupplier aborted) throws IOException {
+        URL u = new URL(url);
+        String hostKey = hostKey(u);
+        if (awaitPrewarm) {
+            awaitPrewarm(hostKey);
+        }
+        Semaphore permits = mHostPermits.computeIfAbsent(
+                hostKey, host -> new Semaphore(mMaxConnectionsPerHost));
+        acquirePermit(permits, url, aborted);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) u.openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            return new HttpResponse(connection, connection.getResponseCode(), permits);
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Response of an HTTP request. Closing it returns the connection to the pool.
+     */
+    private static final class HttpResponse implements Response {
+        private static final int OPEN = 0;
+        private static final int CLOSING = 1;
+        private static final int CLOSED = 2;
+
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private final Semaphore mPermits;
+        private BodyStream mBody;
+        private final AtomicInteger mState = new AtomicInteger(OPEN);
+
+        HttpResponse(HttpURLConnection connection, int code, Semaphore permits) {
+            this.mConnection = connection;
+            this.mCode = code;
+            this.mPermits = permits;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public String getContentType() {
+            return mConnection.getContentType();
+        }
+
+        @Override
+        public long getContentLength() {
+            return mConnection.getContentLengthLong();
+        }
+
+        /** @return the response body, or an error body for failed requests */
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream body = mCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream()
+                        : mConnection.getInputStream();
+                if (body == null) {
+                    return null;
+                }
+                mBody = new BodyStream(body);
+            }
+            return mBody;
+        }
+
+        /**
+         * Returns the connection to the pool if the rest of the body is small and has
+         * already arrived, and closes it otherwise.
+         */
+        @Override
+        public void close() {
+            if (!mState.compareAndSet(OPEN, CLOSING)) {
+                return;
+            }
+            try {
+                if (!isDrainable()) {
+                    mConnection.disconnect();
+                    return;
+                }
+                if (getBody() == null) {
+                    return;
+                }
+                // A concurrent abort() disconnects, failing the drain, or wins the state.
+                if ((hasNoBody() || drain(mBody, mConnection.getContentLengthLong()))
+                        && mState.compareAndSet(CLOSING, CLOSED)) {
+                    mBody.close();
+                } else {
+                    mConnection.disconnect();
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Dropping connection to " + mConnection.getURL().getHost(), e);
+                mConnection.disconnect();
+            } finally {
+                mState.set(CLOSED);
+                mPermits.release();
+            }
+        }
+
+        /**
+         * Closes the connection, also while {@link #close()} is reading the rest of the
+         * body.
+         */
+        @Override
+        public void abort() {
+            if (mState.compareAndSet(OPEN, CLOSED)) {
+                mConnection.disconnect();
+                mPermits.release();
+            } else if (mState.compareAndSet(CLOSING, CLOSED)) {
+                // close() releases the permit.
+                mConnection.disconnect();
+            }
+        }
+
+        private boolean hasNoBody() {
+            return "HEAD".equals(mConnection.getRequestMethod())
+                    || mCode == HttpURLConnection.HTTP_NO_CONTENT
+                    || mCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return whether the body was read to its end, or no more than
+         *         {@link #MAX_DRAIN_BYTES} of it are left
+         */
+        private boolean isDrainable() {
+            if (hasNoBody() || (mBody != null && mBody.mEnded)) {
+                return true;
+            }
+            long length = mConnection.getContentLengthLong();
+            long read = mBody == null ? 0 : mBody.mRead;
+            return length >= 0 && length - read <= MAX_DRAIN_BYTES;
+        }
+
+        /**
+         * Reads the rest of the body, as far as it has already arrived.
+         *
+         * @param length length of the body, {@code -1} if unknown
+         * @return true if the body was fully consumed
+         */
+        private static boolean drain(BodyStream body, long length) throws IOException {
+            byte[] data = new byte[8 * 1024];
+            while (!body.mEnded) {
+                boolean complete = length >= 0 && body.mRead >= length;
+                if (!complete && body.available() <= 0) {
+                    // Waiting for the server costs more than a new connection.
+                    return false;
+                }
+                body.read(data);
+            }
+            return true;
+        }
+
+        /**
+         * Body keeping track of how much of it was read.
+         */
+        private static final class BodyStream extends FilterInputStream {
+            long mRead;
+            boolean mEnded;
+
+            BodyStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    mEnded = true;
+                } else {
+                    mRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count < 0) {
+                    mEnded = true;
+                } else {
+                    mRead += count;
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                mRead += skipped;
+                return skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link DownloadTransport} serving byte arrays registered per url with HTTP range
+ * semantics. Handy to exercise the downloaders without a network.
+ */
+public final class InMemoryTransport extends StaticContentTransport {
+
+    private final ConcurrentHashMap<String, byte[]> mContents = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the content served for {@code url}.
+     */
+    public void put(String url, byte[] content) {
+        mContents.put(url, content);
+    }
+
+    public void remove(String url) {
+        mContents.remove(url);
+    }
+
+    @Override
+    protected Content find(String url) {
+        byte[] data = mContents.get(url);
+        if (data == null) {
+            return null;
+        }
+        return new Content() {
+            @Override
+            public long getLength() {
+                return data.length;
+            }
+
+            @Override
+            public String getEtag() {
+                return "\"" + Integer.toHexString(Arrays.hashCode(data))
+                        + "-" + Integer.toHexString(data.length) + "\"";
+            }
+
+            @Override
+            public InputStream open(long offset, long length) {
+                return new ByteArrayInputStream(data, (int) offset, (int) length);
+            }
+        };
+    }
+}
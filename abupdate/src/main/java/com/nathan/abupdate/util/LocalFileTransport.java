@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link DownloadTransport} serving local files with HTTP range semantics.
+ *
+ * <p>By default it serves {@code file://} urls. With a root directory it serves any
+ * url by resolving the url path under that directory, which makes it a stand-in for
+ * a package server.</p>
+ */
+public final class LocalFileTransport extends StaticContentTransport {
+
+    private final File mRoot;
+
+    /** Serves {@code file://} urls. */
+    public LocalFileTransport() {
+        this(null);
+    }
+
+    /**
+     * @param root directory the url paths are resolved against, {@code null} to serve
+     *             {@code file://} urls
+     */
+    public LocalFileTransport(File root) {
+        this.mRoot = root;
+    }
+
+    @Override
+    protected Content find(String url) throws IOException {
+        URL u = new URL(url);
+        File file;
+        if (mRoot == null) {
+            if (!"file".equals(u.getProtocol())) {
+                return null;
+            }
+            file = new File(u.getPath());
+        } else {
+            file = new File(mRoot, u.getPath());
+        }
+        if (!file.isFile()) {
+            return null;
+        }
+        return new Content() {
+            @Override
+            public long getLength() {
+                return file.length();
+            }
+
+            @Override
+            public String getEtag() {
+                return "\"" + Long.toHexString(file.lastModified())
+                        + "-" + Long.toHexString(file.length()) + "\"";
+            }
+
+            @Override
+            public InputStream open(long offset, long length) throws IOException {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                channel.position(offset);
+                return ByteStreams.limit(Channels.newInputStream(channel), length);
+            }
+        };
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * {@link DownloadTransport} spreading the requests for one file over mirrors serving
+ * identical copies of it.
+ *
+ * <p>Downloaders keep using the primary url, which also identifies their journals.
+ * Requests for it are sent to the selected mirror instead. Before the first request
+ * all mirrors are probed with a small range request, and the fastest one (connection
+ * setup plus transfer time) is selected. When a request or a read from the selected
+ * mirror fails, the next one in probe order takes over; ranges completed so far are
+ * kept, the downloader's retry continues from its last checkpoint.</p>
+ *
+ * <p>{@code ETag}s are not comparable across mirrors, so they are neither forwarded
+ * nor sent as {@code If-Range}. Consistency across mirrors relies on the file size and
+ * on the hashes the payload is verified with.</p>
+ */
+public final class MirrorTransport implements DownloadTransport {
+
+    private static final String TAG = "MirrorTransport";
+
+    /** Number of bytes fetched from every mirror when probing. */
+    private static final long PROBE_BYTES = 64 * 1024;
+
+    private static final long PROBE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final DownloadTransport mDelegate;
+    private final String mPrimaryUrl;
+    private final List<String> mUrls;
+
+    /** Urls in order of preference, once probed. */
+    private List<String> mRanked;
+    private int mSelected;
+
+    /**
+     * @param delegate   transport sending the requests
+     * @param primaryUrl url used by the downloaders
+     * @param mirrors    other urls of the same file
+     */
+    public MirrorTransport(DownloadTransport delegate, String primaryUrl, List<String> mirrors) {
+        this.mDelegate = delegate;
+        this.mPrimaryUrl = primaryUrl;
+        List<String> urls = new ArrayList<>();
+        urls.add(primaryUrl);
+        for (String mirror : mirrors) {
+            if (!urls.contains(mirror)) {
+                urls.add(mirror);
+            }
+        }
+        this.mUrls = Collections.unmodifiableList(urls);
+    }
+
+    /**
+     * @return the mirror requests for the primary url currently go to, probing the
+     *         mirrors first if needed
+     */
+    public synchronized String getSelectedUrl() {
+        return ranked().get(mSelected);
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        return get(url, headers, () -> false);
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers, BooleanSupplier aborted)
+            throws IOException {
+        if (!mPrimaryUrl.equals(url)) {
+            return mDelegate.get(url, headers, aborted);
+        }
+        Map<String, String> mirrorHeaders = new HashMap<>(headers);
+        mirrorHeaders.remove("If-Range");
+        return send(mirrorUrl -> mDelegate.get(mirrorUrl, mirrorHeaders, aborted));
+    }
+
+    @Override
+    public Response head(String url) throws IOException {
+        if (!mPrimaryUrl.equals(url)) {
+            return mDelegate.head(url);
+        }
+        return send(mDelegate::head);
+    }
+
+    @Override
+    public void prewarm(String url) {
+        mDelegate.prewarm(url);
+    }
+
+    private interface Request {
+        Response send(String url) throws IOException;
+    }
+
+    /**
+     * Sends the request to the selected mirror, failing over to the next ones while it
+     * fails with an I/O or server error.
+     */
+    private Response send(Request request) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < mUrls.size(); attempt++) {
+            String url = getSelectedUrl();
+            Response response;
+            try {
+                response = request.send(url);
+            } catch (IOException e) {
+                failure = e;
+                failover(url, e.toString());
+                continue;
+            }
+            int code = response.getCode();
+            if (code >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || code == HttpURLConnection.HTTP_NOT_FOUND) {
+                response.close();
+                failure = new IOException("Mirror " + url + " returned HTTP " + code);
+                failover(url, "HTTP " + code);
+                continue;
+            }
+            return new MirrorResponse(response, url);
+        }
+        throw failure;
+    }
+
+    /**
+     * Switches to the next mirror if {@code url} is still the selected one.
+     */
+    private synchronized void failover(String url, String reason) {
+        List<String> ranked = ranked();
+        if (!ranked.get(mSelected).equals(url)) {
+            return;
+        }
+        mSelected = (mSelected + 1) % ranked.size();
+        Log.w(TAG, "Mirror " + url + " failed (" + reason + "), switching to "
+                + ranked.get(mSelected));
+    }
+
+    private synchronized List<String> ranked() {
+        if (mRanked == null) {
+            mRanked = mUrls.size() == 1 ? mUrls : probe();
+        }
+        return mRanked;
+    }
+
+    /**
+     * Probes all urls in parallel.
+     *
+     * @return urls sorted by probe time, unreachable ones last
+     */
+    private List<String> probe() {
+        ExecutorService executor = Executors.newFixedThreadPool(mUrls.size());
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (String url : mUrls) {
+                futures.add(executor.submit(() -> probe(url)));
+            }
+            // All probes share one deadline, slow mirrors don't add up.
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+            Map<String, Long> nanos = new HashMap<>();
+            for (int i = 0; i < mUrls.size(); i++) {
+                String url = mUrls.get(i);
+                try {
+                    nanos.put(url, futures.get(i).get(
+                            Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (ExecutionException | TimeoutException e) {
+                    Log.w(TAG, "Probing mirror " + url + " failed", e);
+                    nanos.put(url, Long.MAX_VALUE);
+                }
+            }
+            List<String> ranked = new ArrayList<>(mUrls);
+            // Stable sort, unreachable mirrors keep the configured order.
+            ranked.sort((a, b) -> Long.compare(nanos.get(a), nanos.get(b)));
+            Log.i(TAG, "Selected mirror " + ranked.get(0) + " out of " + mUrls.size());
+            return ranked;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return mUrls;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return time to connect to {@code url} and read its first {@link #PROBE_BYTES}
+     */
+    private long probe(String url) throws IOException {
+        long start = System.nanoTime();
+        try (Response response = mDelegate.get(url, Collections.singletonMap(
+                "Range", "bytes=0-" + (PROBE_BYTES - 1)))) {
+            int code = response.getCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Mirror " + url + " returned HTTP " + code);
+            }
+            long connectNanos = System.nanoTime() - start;
+            InputStream body = response.getBody();
+            byte[] data = new byte[8 * 1024];
+            long total = 0;
+            int count;
+            while (total < PROBE_BYTES && (count = body.read(data)) != -1) {
+                total += count;
+            }
+            long nanos = System.nanoTime() - start;
+            Log.d(TAG, "Probed " + url + ": connected in "
+                    + TimeUnit.NANOSECONDS.toMillis(connectNanos) + " ms, " + total
+                    + " bytes in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+            return nanos;
+        }
+    }
+
+    /**
+     * Response from a mirror. A failing read of its body switches to the next mirror,
+     * unless the response was closed or aborted by the reader. Validators are hidden.
+     */
+    private final class MirrorResponse implements Response {
+        private final Response mResponse;
+        private final String mUrl;
+        private InputStream mBody;
+        /** Set before the response is closed, its reads then fail without the mirror failing. */
+        private volatile boolean mClosed;
+
+        MirrorResponse(Response response, String url) {
+            this.mResponse = response;
+            this.mUrl = url;
+        }
+
+        @Override
+        public int getCode() {
+            return mResponse.getCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return "ETag".equalsIgnoreCase(name) ? null : mResponse.getHeader(name);
+        }
+
+        @Override
+        public String getContentType() {
+            return mResponse.getContentType();
+        }
+
+        @Override
+        public long getContentLength() {
+            return mResponse.getContentLength();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = new FilterInputStream(mResponse.getBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        try {
+                            return super.read();
+                        } catch (IOException e) {
+                            onReadFailed(e);
+                            throw e;
+                        }
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        try {
+                            return super.read(b, off, len);
+                        } catch (IOException e) {
+                            onReadFailed(e);
+                            throw e;
+                        }
+                    }
+                };
+            }
+            return mBody;
+        }
+
+        private void onReadFailed(IOException e) {
+            if (!mClosed) {
+                failover(mUrl, e.toString());
+            }
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mResponse.close();
+        }
+
+        @Override
+        public void abort() {
+            mClosed = true;
+            mResponse.abort();
+        }
+    }
+}
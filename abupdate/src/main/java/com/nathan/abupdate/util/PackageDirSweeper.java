@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the directory updates are downloaded to within a disk budget.
+ *
+ * <p>Files other updates left behind are deleted: partial files nothing wrote to for
+ * a while, and, when the directory exceeds its budget, complete files, least recently
+ * used first. Files of the update being prepared are kept and marked as used.</p>
+ *
+ * <p>Only files directly in the directory are swept and counted. Subdirectories manage
+ * their own size, e.g. the {@link PackageFileCache} has its own limit. Its entries are
+ * mostly hard links to files swept here, counting them as well would count the same
+ * blocks twice.</p>
+ */
+public final class PackageDirSweeper {
+
+    private static final String TAG = "PackageDirSweeper";
+
+    /** No budget, only orphaned partial files are deleted. */
+    public static final long UNLIMITED = 0;
+
+    /** Partial files not written for this long are considered orphaned. */
+    private static final long ORPHAN_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** Suffixes of files written while downloading, see {@link #baseName}. */
+    private static final String[] PARTIAL_SUFFIXES = {
+            DownloadJournal.JOURNAL_SUFFIX,
+            StorageManager.PART_SUFFIX,
+            StorageManager.TMP_SUFFIX,
+            ".hedge0",
+            ".hedge1"};
+
+    private final File mDir;
+    private volatile long mBudgetBytes = UNLIMITED;
+
+    public PackageDirSweeper(File dir) {
+        this.mDir = dir;
+    }
+
+    /**
+     * Sets the maximum total size of the directory, {@link #UNLIMITED} by default.
+     */
+    public void setBudgetBytes(long budgetBytes) {
+        this.mBudgetBytes = Math.max(UNLIMITED, budgetBytes);
+    }
+
+    /**
+     * Deletes orphaned partial files, then least recently used files until the directory
+     * fits in its budget.
+     *
+     * @param keep names of the files in use; their partial files are kept as well
+     * @return number of bytes freed
+     */
+    public long sweep(Collection<String> keep) {
+        File[] entries = mDir.listFiles(File::isFile);
+        if (entries == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long total = 0;
+        long freed = 0;
+        List<File> candidates = new ArrayList<>();
+        for (File file : entries) {
+            String baseName = baseName(file.getName());
+            if (keep.contains(baseName)) {
+                if (baseName.equals(file.getName())) {
+                    file.setLastModified(now);
+                }
+                total += file.length();
+                continue;
+            }
+            boolean partial = !baseName.equals(file.getName());
+            if (partial && now - file.lastModified() > ORPHAN_AGE_MILLIS) {
+                freed += delete(file, "orphaned");
+                continue;
+            }
+            total += file.length();
+            candidates.add(file);
+        }
+        long budget = mBudgetBytes;
+        if (budget != UNLIMITED && total > budget) {
+            candidates.sort(Comparator.comparingLong(File::lastModified));
+            for (File file : candidates) {
+                if (total <= budget) {
+                    break;
+                }
+                long length = delete(file, "over budget");
+                total -= length;
+                freed += length;
+            }
+        }
+        if (freed > 0) {
+            Log.i(TAG, "Freed " + freed + " bytes in " + mDir + ", " + total + " bytes left");
+        }
+        return freed;
+    }
+
+    /**
+     * @return name of the file {@code name} belongs to, e.g. {@code update.zip} for
+     *         {@code update.zip.part.journal}
+     */
+    static String baseName(String name) {
+        boolean stripped;
+        do {
+            stripped = false;
+            for (String suffix : PARTIAL_SUFFIXES) {
+                if (name.endsWith(suffix) && name.length() > suffix.length()) {
+                    name = name.substring(0, name.length() - suffix.length());
+                    stripped = true;
+                }
+            }
+        } while (stripped);
+        return name;
+    }
+
+    private static long delete(File file, String reason) {
+        long length = file.length();
+        if (!file.delete()) {
+            Log.w(TAG, "Can't delete " + reason + " file " + file);
+            return 0;
+        }
+        Log.d(TAG, "Deleted " + reason + " file " + file.getName() + ", " + length + " bytes");
+        return length;
+    }
+}
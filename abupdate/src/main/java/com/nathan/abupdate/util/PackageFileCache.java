@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Content-addressed cache of files extracted from OTA packages, e.g. property files and
+ * payload metadata, so attempts to apply the same package again don't fetch them again.
+ *
+ * <p>Entries are keyed by the package they come from and their position in it. A
+ * package is identified by the hash of its payload ({@code FILE_HASH}), so mirrors share
+ * entries; files of packages the config gives no hash for aren't cached.
+ * Entries are hard links to the downloaded files where the filesystem allows, so
+ * caching costs no extra space while the files are around. The least recently used
+ * entries are evicted beyond a size limit.</p>
+ */
+public final class PackageFileCache {
+
+    private static final String TAG = "PackageFileCache";
+
+    /** Default maximum total size of the entries. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private final File mDir;
+    private volatile long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * @param dir directory of the entries, created when needed
+     */
+    public PackageFileCache(File dir) {
+        this.mDir = dir;
+    }
+
+    /**
+     * Sets the maximum total size of the entries, {@code 0} disables the cache.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.mMaxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @return key of {@code file} of the package described by {@code config}, or
+     *         {@code null} if the config has no hash identifying the package. Keyed by
+     *         url, the files of a package re-published at the same url would be stale.
+     */
+    public static String keyOf(UpdateConfig config, UpdateConfig.PackageFile file) {
+        return config.getAbConfig().getPayloadProperty(PackageFiles.FILE_HASH)
+                .map(hash -> keyOf("payload:" + hash, file.getOffset(), file.getSize()))
+                .orElse(null);
+    }
+
+    /**
+     * @return key of {@code size} bytes at {@code offset} of the package identified by
+     *         {@code packageId}
+     */
+    public static String keyOf(String packageId, long offset, long size) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        byte[] hash = digest.digest((packageId + ":" + offset + ":" + size)
+                .getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder();
+        for (byte b : hash) {
+            key.append(String.format("%02x", b & 0xff));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Replaces {@code destination} with the entry of {@code key}, if there is one of
+     * {@code size} bytes.
+     *
+     * @return true if the file was restored from the cache
+     */
+    public synchronized boolean restore(String key, long size, File destination) {
+        return restore(key, size, destination, null, 0);
+    }
+
+    /**
+     * Same as {@link #restore(String, long, File)}, the entry is only restored if the
+     * SHA-256 of its first {@code digestLength} bytes is {@code sha256}. An entry that
+     * doesn't match is dropped.
+     *
+     * @param sha256 expected hash, or {@code null} not to verify the entry
+     */
+    public synchronized boolean restore(String key, long size, File destination,
+            byte[] sha256, long digestLength) {
+        File entry = new File(mDir, key);
+        if (!entry.isFile()) {
+            return false;
+        }
+        if (entry.length() != size) {
+            Log.w(TAG, "Dropping entry " + key + " of unexpected size " + entry.length());
+            entry.delete();
+            return false;
+        }
+        if (sha256 != null && !matches(entry, sha256, digestLength)) {
+            Log.w(TAG, "Dropping entry " + key + " not matching its hash");
+            entry.delete();
+            return false;
+        }
+        try {
+            link(entry, destination);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't restore " + destination.getName() + " from the cache", e);
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        Log.d(TAG, "Restored " + destination.getName() + " from the cache");
+        return true;
+    }
+
+    /**
+     * @return whether the SHA-256 of the first {@code length} bytes of {@code file} is
+     *         {@code sha256}
+     */
+    private static boolean matches(File file, byte[] sha256, long length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (InputStream input = new FileInputStream(file)) {
+            byte[] buffer = new byte[8 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    return false;
+                }
+                digest.update(buffer, 0, count);
+                remaining -= count;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read entry " + file.getName(), e);
+            return false;
+        }
+        return MessageDigest.isEqual(sha256, digest.digest());
+    }
+
+    /**
+     * Adds {@code source} to the cache as the entry of {@code key}. Errors are logged,
+     * caching is best effort.
+     */
+    public synchronized void store(String key, File source) {
+        if (mMaxBytes == 0 || source.length() > mMaxBytes) {
+            return;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Can't create cache directory " + mDir);
+            return;
+        }
+        try {
+            link(source, new File(mDir, key));
+        } catch (IOException e) {
+            Log.w(TAG, "Can't cache " + source.getName(), e);
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Makes {@code target} a hard link to {@code source}, or a copy of it if links are not
+     * supported. {@code target} is replaced atomically.
+     */
+    private static void link(File source, File target) throws IOException {
+        File tmp = new File(target.getPath() + StorageManager.TMP_SUFFIX);
+        Files.deleteIfExists(tmp.toPath());
+        try {
+            Files.createLink(tmp.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits in its limit.
+     */
+    private void trim() {
+        File[] entries = mDir.listFiles(File::isFile);
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < entries.length && total > mMaxBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete()) {
+                Log.d(TAG, "Evicted entry " + entries[i].getName());
+                total -= length;
+            }
+        }
+    }
+}
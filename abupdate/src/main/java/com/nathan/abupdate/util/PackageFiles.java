@@ -16,6 +16,10 @@
 
 package com.nathan.abupdate.util;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /** Utility class for an OTA package. */
 public final class PackageFiles {
 
@@ -24,6 +28,16 @@ public final class PackageFiles {
      */
     public static final String OTA_PACKAGE_DIR = "/data/ota_package";
 
+    /**
+     * Directory in {@code OTA_PACKAGE_DIR} holding the {@link PackageFileCache}.
+     */
+    public static final String PACKAGE_FILE_CACHE_DIR = "cache";
+
+    /**
+     * File in {@code OTA_PACKAGE_DIR} holding the {@link PackageIndexCache}.
+     */
+    public static final String PACKAGE_INDEX_FILE_NAME = "package_index";
+
     /**
      * update payload, it will be passed to {@code UpdateEngine#applyPayload}.
      */
@@ -42,6 +56,11 @@ public final class PackageFiles {
      */
     public static final String PAYLOAD_METADATA_FILE_NAME = "payload_metadata.bin";
 
+    /**
+     * Full OTA package downloaded from an HTTP(S) url for non-streaming updates.
+     */
+    public static final String UPDATE_PACKAGE_FILE_NAME = "update.zip";
+
     public static final String PAYLOAD_PROPERTIES_FILE_NAME = "payload_properties.txt";
 
     /** The zip entry in an A/B OTA package, which will be used by update_verifier. */
@@ -49,12 +68,21 @@ public final class PackageFiles {
 
     public static final String METADATA_FILE_NAME = "metadata";
 
+    /** The zip entry holding {@link #METADATA_FILE_NAME} in an OTA package. */
+    public static final String METADATA_ENTRY_NAME = "META-INF/com/android/metadata";
+
     /**
      * The zip file that claims the compatibility of the update package to check against the Android
      * framework to ensure that the package can be installed on the device.
      */
     public static final String COMPATIBILITY_ZIP_FILE_NAME = "compatibility.zip";
 
+    /** Entries of an OTA package located by {@link PayloadSpecs#indexPackage}. */
+    public static final List<String> PACKAGE_ENTRY_NAMES = Collections.unmodifiableList(
+            Arrays.asList(PAYLOAD_BINARY_FILE_NAME, PAYLOAD_PROPERTIES_FILE_NAME,
+                    PAYLOAD_METADATA_FILE_NAME, CARE_MAP_FILE_NAME, METADATA_FILE_NAME,
+                    METADATA_ENTRY_NAME, COMPATIBILITY_ZIP_FILE_NAME));
+
     private PackageFiles() {}
 
     public static final String FILE_HASH = "FILE_HASH";
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.system.StructTimespec;
+import android.util.Log;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Cache of the parsed indexes of local OTA packages, so building the
+ * {@link com.nathan.abupdate.PayloadSpec} of a package again, e.g. when an update is
+ * re-applied or resumed, costs a {@code stat} instead of a zip scan.
+ *
+ * <p>Packages are identified by their path, device, inode, size and modification time
+ * in nanoseconds, a package replaced or modified in place misses the cache, even within
+ * the second it was indexed. The most recently used
+ * indexes are kept in memory and in a small file, so they survive restarts of the
+ * process.</p>
+ */
+public final class PackageIndexCache {
+
+    private static final String TAG = "PackageIndexCache";
+
+    /** Default number of indexes kept. */
+    public static final int DEFAULT_MAX_ENTRIES = 8;
+
+    /** Version 2 keys packages by modification time in nanoseconds instead of seconds. */
+    private static final int FORMAT_VERSION = 2;
+
+    private final File mFile;
+    private final int mMaxEntries;
+    /** Indexes in access order, loaded from {@code mFile} on first use. */
+    private LinkedHashMap<Key, PackageIndex> mIndexes;
+
+    /**
+     * @param file file the indexes are persisted to
+     */
+    public PackageIndexCache(File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    public PackageIndexCache(File file, int maxEntries) {
+        this.mFile = file;
+        this.mMaxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Identity of a package file.
+     */
+    public static final class Key {
+        private final String mPath;
+        private final long mDevice;
+        private final long mInode;
+        private final long mSize;
+        private final long mModifiedTimeNanos;
+
+        Key(String path, long device, long inode, long size, long modifiedTimeNanos) {
+            this.mPath = path;
+            this.mDevice = device;
+            this.mInode = inode;
+            this.mSize = size;
+            this.mModifiedTimeNanos = modifiedTimeNanos;
+        }
+
+        /**
+         * Stats {@code file}. Must be called before reading the file, so an index built
+         * from a file modified meanwhile is never found again.
+         *
+         * @throws IOException when the file can't be stat'ed
+         */
+        public static Key of(File file) throws IOException {
+            String path = file.getAbsolutePath();
+            try {
+                StructStat stat = Os.stat(path);
+                StructTimespec mtime = stat.st_mtim;
+                return new Key(path, stat.st_dev, stat.st_ino, stat.st_size,
+                        mtime.tv_sec * 1_000_000_000L + mtime.tv_nsec);
+            } catch (ErrnoException e) {
+                throw new IOException("Can't stat " + path, e);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mDevice == key.mDevice
+                    && mInode == key.mInode
+                    && mSize == key.mSize
+                    && mModifiedTimeNanos == key.mModifiedTimeNanos
+                    && mPath.equals(key.mPath);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mPath.hashCode();
+            result = 31 * result + Long.hashCode(mInode);
+            result = 31 * result + Long.hashCode(mSize);
+            result = 31 * result + Long.hashCode(mModifiedTimeNanos);
+            return result;
+        }
+    }
+
+    /**
+     * Offsets and sizes of the entries of a package, and its payload properties.
+     */
+    public static final class PackageIndex {
+        private final List<UpdateConfig.PackageFile> mEntries;
+        private final List<String> mProperties;
+
+        public PackageIndex(List<UpdateConfig.PackageFile> entries, List<String> properties) {
+            this.mEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+            this.mProperties = Collections.unmodifiableList(new ArrayList<>(properties));
+        }
+
+        /** @return position and size of the data of the indexed entries */
+        public List<UpdateConfig.PackageFile> getEntries() {
+            return mEntries;
+        }
+
+        public Optional<UpdateConfig.PackageFile> getEntry(String name) {
+            return mEntries.stream().filter(e -> e.getFilename().equals(name)).findFirst();
+        }
+
+        /** @return lines of payload_properties.txt */
+        public List<String> getProperties() {
+            return mProperties;
+        }
+    }
+
+    /**
+     * @return the index of the package identified by {@code key}, or {@code null}
+     */
+    public synchronized PackageIndex get(Key key) {
+        PackageIndex index = indexes().get(key);
+        if (index != null) {
+            Log.d(TAG, "Found index of " + key.mPath);
+        }
+        return index;
+    }
+
+    /**
+     * Adds the index of the package identified by {@code key}, evicting the least
+     * recently used one beyond the limit, and persists the indexes. Errors are logged,
+     * caching is best effort.
+     */
+    public synchronized void put(Key key, PackageIndex index) {
+        LinkedHashMap<Key, PackageIndex> indexes = indexes();
+        // A package replaced at the same path makes its previous index useless.
+        indexes.keySet().removeIf(k -> k.mPath.equals(key.mPath));
+        indexes.put(key, index);
+        try {
+            StorageManager.writeAtomically(mFile, encode(indexes));
+        } catch (IOException e) {
+            Log.w(TAG, "Can't persist package indexes to " + mFile, e);
+        }
+    }
+
+    private LinkedHashMap<Key, PackageIndex> indexes() {
+        if (mIndexes == null) {
+            mIndexes = new LinkedHashMap<Key, PackageIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, PackageIndex> eldest) {
+                    return size() > mMaxEntries;
+                }
+            };
+            if (mFile.isFile()) {
+                try {
+                    decode(Files.readAllBytes(mFile.toPath()), mIndexes);
+                } catch (IOException e) {
+                    Log.w(TAG, "Dropping unreadable package indexes " + mFile, e);
+                    mIndexes.clear();
+                    mFile.delete();
+                }
+            }
+        }
+        return mIndexes;
+    }
+
+    private static byte[] encode(Map<Key, PackageIndex> indexes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(indexes.size());
+        for (Map.Entry<Key, PackageIndex> entry : indexes.entrySet()) {
+            Key key = entry.getKey();
+            out.writeUTF(key.mPath);
+            out.writeLong(key.mDevice);
+            out.writeLong(key.mInode);
+            out.writeLong(key.mSize);
+            out.writeLong(key.mModifiedTimeNanos);
+            PackageIndex index = entry.getValue();
+            out.writeInt(index.mEntries.size());
+            for (UpdateConfig.PackageFile file : index.mEntries) {
+                out.writeUTF(file.getFilename());
+                out.writeLong(file.getOffset());
+                out.writeLong(file.getSize());
+            }
+            out.writeInt(index.mProperties.size());
+            for (String property : index.mProperties) {
+                out.writeUTF(property);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] data, Map<Key, PackageIndex> indexes)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown format");
+        }
+        int count = readCount(in, data.length);
+        for (int i = 0; i < count; i++) {
+            Key key = new Key(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong());
+            int entryCount = readCount(in, data.length);
+            List<UpdateConfig.PackageFile> entries = new ArrayList<>(entryCount);
+            for (int j = 0; j < entryCount; j++) {
+                entries.add(new UpdateConfig.PackageFile(in.readUTF(), in.readLong(),
+                        in.readLong()));
+            }
+            int propertyCount = readCount(in, data.length);
+            List<String> properties = new ArrayList<>(propertyCount);
+            for (int j = 0; j < propertyCount; j++) {
+                properties.add(in.readUTF());
+            }
+            indexes.put(key, new PackageIndex(entries, properties));
+        }
+    }
+
+    private static int readCount(DataInputStream in, int max) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > max) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Header and manifest of a payload ({@code payload.bin}), read before handing the payload
+ * to update_engine, e.g. to estimate the install duration or check the disk budget.
+ *
+ * <p>A payload starts with the {@code CrAU} header, followed by the
+ * {@code DeltaArchiveManifest} protobuf and the metadata signature. Both a whole payload
+ * and {@code payload_metadata.bin}, which is just this beginning, can be parsed. Only
+ * the manifest fields needed for the totals are decoded, with a minimal protobuf reader
+ * following system/update_engine/update_metadata.proto.</p>
+ *
+ * <p>Usage:</p>
+ *
+ * {@code
+ *   PayloadMetadata metadata = PayloadMetadata.read(packageFile, spec.getOffset());
+ *   long written = metadata.getWriteBytes();
+ * }
+ */
+public final class PayloadMetadata {
+
+    /** Magic number at the beginning of a payload. */
+    private static final byte[] MAGIC = "CrAU".getBytes(StandardCharsets.US_ASCII);
+
+    /** Magic, major version and manifest size. */
+    private static final int HEADER_SIZE_V1 = 4 + 8 + 8;
+
+    /** Version 2 adds the metadata signature size. */
+    private static final int HEADER_SIZE_V2 = HEADER_SIZE_V1 + 4;
+
+    /** Manifests are a few MB at most, larger sizes come from corrupt headers. */
+    private static final long MAX_MANIFEST_SIZE = 64 * 1024 * 1024;
+
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    // DeltaArchiveManifest
+    private static final int MANIFEST_BLOCK_SIZE = 3;
+    private static final int MANIFEST_PARTITIONS = 13;
+    // PartitionUpdate
+    private static final int PARTITION_NAME = 1;
+    private static final int PARTITION_OLD_INFO = 6;
+    private static final int PARTITION_NEW_INFO = 7;
+    private static final int PARTITION_OPERATIONS = 8;
+    // PartitionInfo
+    private static final int INFO_SIZE = 1;
+    // InstallOperation
+    private static final int OPERATION_DATA_LENGTH = 3;
+    private static final int OPERATION_SRC_EXTENTS = 4;
+    private static final int OPERATION_DST_EXTENTS = 6;
+    // Extent
+    private static final int EXTENT_NUM_BLOCKS = 2;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    /**
+     * The {@code CrAU} header.
+     */
+    public static final class Header {
+        private final long mMajorVersion;
+        private final long mManifestSize;
+        private final long mMetadataSignatureSize;
+
+        Header(long majorVersion, long manifestSize, long metadataSignatureSize) {
+            this.mMajorVersion = majorVersion;
+            this.mManifestSize = manifestSize;
+            this.mMetadataSignatureSize = metadataSignatureSize;
+        }
+
+        /**
+         * Reads the header of the payload at {@code offset} of {@code source}.
+         *
+         * @param payloadSize size of the payload, bounds the metadata
+         * @throws IOException when the header is invalid
+         */
+        public static Header read(ZipIndex.Source source, long offset, long payloadSize)
+                throws IOException {
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(HEADER_SIZE_V2,
+                    Math.max(0, payloadSize)));
+            source.read(offset, header);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE_V1) {
+                throw new IOException("Invalid payload, too small");
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Invalid payload, bad magic");
+            }
+            long version = header.getLong();
+            long manifestSize = header.getLong();
+            long signatureSize = 0;
+            if (version >= 2) {
+                if (!header.hasRemaining()) {
+                    throw new IOException("Invalid payload, truncated header");
+                }
+                signatureSize = header.getInt() & 0xffffffffL;
+            }
+            Header result = new Header(version, manifestSize, signatureSize);
+            if (manifestSize < 0 || manifestSize > MAX_MANIFEST_SIZE
+                    || result.getMetadataSize() > payloadSize) {
+                throw new IOException("Invalid payload, metadata of " + manifestSize
+                        + " bytes doesn't fit in the payload");
+            }
+            return result;
+        }
+
+        public long getMajorVersion() {
+            return mMajorVersion;
+        }
+
+        public long getManifestSize() {
+            return mManifestSize;
+        }
+
+        public long getMetadataSignatureSize() {
+            return mMetadataSignatureSize;
+        }
+
+        /** @return size of this header */
+        public int getSize() {
+            return mMajorVersion >= 2 ? HEADER_SIZE_V2 : HEADER_SIZE_V1;
+        }
+
+        /**
+         * @return size of the header, manifest and metadata signature, i.e. of
+         *         {@code payload_metadata.bin}
+         */
+        public long getMetadataSize() {
+            return getSize() + mManifestSize + mMetadataSignatureSize;
+        }
+    }
+
+    /**
+     * Totals of a {@code PartitionUpdate}.
+     */
+    public static final class Partition {
+        private final String mName;
+        private final long mOldSize;
+        private final long mNewSize;
+        private final int mOperationCount;
+        private final long mDataBytes;
+        private final long mSourceReadBytes;
+        private final long mWriteBytes;
+
+        Partition(String name, long oldSize, long newSize, int operationCount,
+                long dataBytes, long sourceReadBytes, long writeBytes) {
+            this.mName = name;
+            this.mOldSize = oldSize;
+            this.mNewSize = newSize;
+            this.mOperationCount = operationCount;
+            this.mDataBytes = dataBytes;
+            this.mSourceReadBytes = sourceReadBytes;
+            this.mWriteBytes = writeBytes;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** @return size of the partition before the update, {@code 0} for full updates */
+        public long getOldSize() {
+            return mOldSize;
+        }
+
+        /** @return size of the partition after the update */
+        public long getNewSize() {
+            return mNewSize;
+        }
+
+        public int getOperationCount() {
+            return mOperationCount;
+        }
+
+        /** @return bytes of the payload read by the operations */
+        public long getDataBytes() {
+            return mDataBytes;
+        }
+
+        /** @return bytes of the source partition read by the operations */
+        public long getSourceReadBytes() {
+            return mSourceReadBytes;
+        }
+
+        /** @return bytes written to the target partition by the operations */
+        public long getWriteBytes() {
+            return mWriteBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{operations=" + mOperationCount + ", data=" + mDataBytes
+                    + ", read=" + mSourceReadBytes + ", write=" + mWriteBytes + "}";
+        }
+    }
+
+    private final Header mHeader;
+    private final int mBlockSize;
+    private final List<Partition> mPartitions;
+
+    private PayloadMetadata(Header header, int blockSize, List<Partition> partitions) {
+        this.mHeader = header;
+        this.mBlockSize = blockSize;
+        this.mPartitions = Collections.unmodifiableList(partitions);
+    }
+
+    /**
+     * Reads a {@code payload.bin} or {@code payload_metadata.bin} file.
+     */
+    public static PayloadMetadata read(File file) throws IOException {
+        return read(file, 0);
+    }
+
+    /**
+     * Reads the payload at {@code offset} of {@code file}, e.g. the offset of
+     * {@code payload.bin} in an OTA package.
+     */
+    public static PayloadMetadata read(File file, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(ZipIndex.Source.of(channel), offset, channel.size() - offset);
+        }
+    }
+
+    /**
+     * Reads the payload of {@code payloadSize} bytes at {@code offset} of {@code source}.
+     * Only its metadata is read.
+     */
+    public static PayloadMetadata read(ZipIndex.Source source, long offset, long payloadSize)
+            throws IOException {
+        Header header = Header.read(source, offset, payloadSize);
+        ByteBuffer manifest = ByteBuffer.allocate((int) header.getManifestSize());
+        source.read(offset + header.getSize(), manifest);
+        manifest.flip();
+        return parseManifest(header, manifest);
+    }
+
+    public Header getHeader() {
+        return mHeader;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public List<Partition> getPartitions() {
+        return mPartitions;
+    }
+
+    public int getOperationCount() {
+        int count = 0;
+        for (Partition partition : mPartitions) {
+            count += partition.mOperationCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return bytes read by the update, from the payload and from the source partitions
+     */
+    public long getReadBytes() {
+        long bytes = 0;
+        for (Partition partition : mPartitions) {
+            bytes += partition.mDataBytes + partition.mSourceReadBytes;
+        }
+        return bytes;
+    }
+
+    /** @return bytes written to the target partitions by the update */
+    public long getWriteBytes() {
+        long bytes = 0;
+        for (Partition partition : mPartitions) {
+            bytes += partition.mWriteBytes;
+        }
+        return bytes;
+    }
+
+    /** @return total size of the target partitions */
+    public long getNewPartitionsSize() {
+        long bytes = 0;
+        for (Partition partition : mPartitions) {
+            bytes += partition.mNewSize;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadMetadata{version=" + mHeader.mMajorVersion
+                + ", operations=" + getOperationCount()
+                + ", read=" + getReadBytes()
+                + ", write=" + getWriteBytes()
+                + ", partitions=" + mPartitions + "}";
+    }
+
+    private static PayloadMetadata parseManifest(Header header, ByteBuffer manifest)
+            throws IOException {
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        List<ByteBuffer> partitions = new ArrayList<>();
+        ProtoReader reader = new ProtoReader(manifest);
+        while (reader.next()) {
+            if (reader.field() == MANIFEST_BLOCK_SIZE) {
+                blockSize = (int) reader.varint();
+            } else if (reader.field() == MANIFEST_PARTITIONS) {
+                // The block size may follow the partitions.
+                partitions.add(reader.message());
+            } else {
+                reader.skip();
+            }
+        }
+        if (blockSize <= 0) {
+            throw new IOException("Invalid manifest, block size " + blockSize);
+        }
+        List<Partition> result = new ArrayList<>(partitions.size());
+        for (ByteBuffer partition : partitions) {
+            result.add(parsePartition(partition, blockSize));
+        }
+        return new PayloadMetadata(header, blockSize, result);
+    }
+
+    private static Partition parsePartition(ByteBuffer partition, int blockSize)
+            throws IOException {
+        String name = "";
+        long oldSize = 0;
+        long newSize = 0;
+        int operations = 0;
+        long dataBytes = 0;
+        long readBlocks = 0;
+        long writeBlocks = 0;
+        ProtoReader reader = new ProtoReader(partition);
+        while (reader.next()) {
+            switch (reader.field()) {
+                case PARTITION_NAME:
+                    name = reader.string();
+                    break;
+                case PARTITION_OLD_INFO:
+                    oldSize = parseInfoSize(reader.message());
+                    break;
+                case PARTITION_NEW_INFO:
+                    newSize = parseInfoSize(reader.message());
+                    break;
+                case PARTITION_OPERATIONS:
+                    operations++;
+                    ProtoReader operation = new ProtoReader(reader.message());
+                    while (operation.next()) {
+                        if (operation.field() == OPERATION_DATA_LENGTH) {
+                            dataBytes += operation.varint();
+                        } else if (operation.field() == OPERATION_SRC_EXTENTS) {
+                            readBlocks += parseExtentBlocks(operation.message());
+                        } else if (operation.field() == OPERATION_DST_EXTENTS) {
+                            writeBlocks += parseExtentBlocks(operation.message());
+                        } else {
+                            operation.skip();
+                        }
+                    }
+                    break;
+                default:
+                    reader.skip();
+                    break;
+            }
+        }
+        return new Partition(name, oldSize, newSize, operations, dataBytes,
+                readBlocks * blockSize, writeBlocks * blockSize);
+    }
+
+    private static long parseInfoSize(ByteBuffer info) throws IOException {
+        ProtoReader reader = new ProtoReader(info);
+        long size = 0;
+        while (reader.next()) {
+            if (reader.field() == INFO_SIZE) {
+                size = reader.varint();
+            } else {
+                reader.skip();
+            }
+        }
+        return size;
+    }
+
+    private static long parseExtentBlocks(ByteBuffer extent) throws IOException {
+        ProtoReader reader = new ProtoReader(extent);
+        long blocks = 0;
+        while (reader.next()) {
+            if (reader.field() == EXTENT_NUM_BLOCKS) {
+                blocks = reader.varint();
+            } else {
+                reader.skip();
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Reads the fields of a protobuf message one after the other.
+     */
+    private static final class ProtoReader {
+        private final ByteBuffer mBuffer;
+        private int mTag;
+
+        ProtoReader(ByteBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        /** @return whether there is another field, whose value must then be read */
+        boolean next() throws IOException {
+            if (!mBuffer.hasRemaining()) {
+                return false;
+            }
+            long tag = readVarint();
+            if (tag >>> 3 == 0 || tag > Integer.MAX_VALUE) {
+                throw new IOException("Invalid manifest, bad tag " + tag);
+            }
+            mTag = (int) tag;
+            return true;
+        }
+
+        int field() {
+            return mTag >>> 3;
+        }
+
+        long varint() throws IOException {
+            expect(WIRE_VARINT);
+            return readVarint();
+        }
+
+        String string() throws IOException {
+            ByteBuffer value = message();
+            byte[] bytes = new byte[value.remaining()];
+            value.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** @return the bytes of a length-delimited field, e.g. an embedded message */
+        ByteBuffer message() throws IOException {
+            expect(WIRE_LENGTH_DELIMITED);
+            long length = readVarint();
+            if (length < 0 || length > mBuffer.remaining()) {
+                throw new IOException("Invalid manifest, truncated field " + field());
+            }
+            ByteBuffer value = mBuffer.slice();
+            value.limit((int) length);
+            mBuffer.position(mBuffer.position() + (int) length);
+            return value;
+        }
+
+        void skip() throws IOException {
+            switch (mTag & 7) {
+                case WIRE_VARINT:
+                    readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    advance(8);
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    message();
+                    break;
+                case WIRE_FIXED32:
+                    advance(4);
+                    break;
+                default:
+                    throw new IOException("Invalid manifest, unsupported wire type "
+                            + (mTag & 7) + " of field " + field());
+            }
+        }
+
+        private void expect(int wireType) throws IOException {
+            if ((mTag & 7) != wireType) {
+                throw new IOException("Invalid manifest, unexpected wire type "
+                        + (mTag & 7) + " of field " + field());
+            }
+        }
+
+        private void advance(int count) throws IOException {
+            if (count > mBuffer.remaining()) {
+                throw new IOException("Invalid manifest, truncated field " + field());
+            }
+            mBuffer.position(mBuffer.position() + count);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (!mBuffer.hasRemaining()) {
+                    throw new IOException("Invalid manifest, truncated varint");
+                }
+                byte b = mBuffer.get();
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid manifest, malformed varint");
+        }
+    }
+}
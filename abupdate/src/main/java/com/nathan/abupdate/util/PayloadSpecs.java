@@ -17,89 +17,162 @@
 package com.nathan.abupdate.util;
 
 
+import android.util.Log;
+
 import com.nathan.abupdate.PayloadSpec;
+import com.nathan.abupdate.UpdateConfig;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /** The helper class that creates {@link PayloadSpec}. */
 public class PayloadSpecs {
 
+    private static final String TAG = "PayloadSpecs";
+
+    private volatile PackageIndexCache mIndexCache;
+
     public PayloadSpecs() {}
 
+    /**
+     * Sets the cache of package indexes used by {@link #forNonStreaming}, none by default.
+     */
+    public void setIndexCache(PackageIndexCache indexCache) {
+        this.mIndexCache = indexCache;
+    }
+
     /**
      * The payload PAYLOAD_ENTRY is stored in the zip package to comply with the Android OTA package
      * format. We want to find out the offset of the entry, so that we can pass it over to the A/B
      * updater without making an extra copy of the payload.
      *
-     * <p>According to Android docs, the entries are listed in the order in which they appear in the
-     * zip file. So we enumerate the entries to identify the offset of the payload file.
-     * http://developer.android.com/reference/java/util/zip/ZipFile.html#entries()
+     * <p>The offset is read from the local header of the entry, located through the zip central
+     * directory by {@link ZipIndex}, so neither all entries nor the extra fields of the central
+     * directory, which may differ from the local ones, are relied on. A package indexed before
+     * is found in the {@link PackageIndexCache} instead, if one is set.</p>
      */
     public PayloadSpec forNonStreaming(File packageFile) throws IOException {
-        boolean payloadFound = false;
-        long payloadOffset = 0;
-        long payloadSize = 0;
+        PackageIndexCache cache = mIndexCache;
+        PackageIndexCache.Key key = cache != null ? PackageIndexCache.Key.of(packageFile) : null;
+        PackageIndexCache.PackageIndex index = cache != null ? cache.get(key) : null;
+        if (index == null) {
+            index = scanPackage(packageFile);
+            if (cache != null) {
+                cache.put(key, index);
+            }
+        }
+        UpdateConfig.PackageFile payload =
+                index.getEntry(PackageFiles.PAYLOAD_BINARY_FILE_NAME).get();
+		//Log.d("PayloadSpecs", "zyf forNonStreaming offset "+payload.getOffset());
+		//Log.d("PayloadSpecs", "zyf forNonStreaming size "+payload.getSize());
+        return PayloadSpec.newBuilder()
+                        .url("file://" + packageFile.getAbsolutePath())
+                        .offset(payload.getOffset())
+                        .size(payload.getSize())
+                        .properties(index.getProperties())
+                        .build();
+    }
 
+    /**
+     * Locates the stored package entries and reads payload_properties.txt.
+     *
+     * @throws IOException when the package has no stored payload.bin
+     */
+    private static PackageIndexCache.PackageIndex scanPackage(File packageFile)
+            throws IOException {
+        List<UpdateConfig.PackageFile> entries = new ArrayList<>();
         List<String> properties = new ArrayList<>();
-        try (ZipFile zip = new ZipFile(packageFile)) {
-            Enumeration<? extends ZipEntry> entries = zip.entries();
-            long offset = 0;
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String name = entry.getName();
-                // Zip local file header has 30 bytes + filename + sizeof extra field.
-                // https://en.wikipedia.org/wiki/Zip_(file_format)
-                long extraSize = entry.getExtra() == null ? 0 : entry.getExtra().length;
-                offset += 30 + name.length() + extraSize;
-
-                if (entry.isDirectory()) {
-                    continue;
+        try (FileChannel channel = FileChannel.open(packageFile.toPath(),
+                StandardOpenOption.READ)) {
+            ZipIndex.Source source = ZipIndex.Source.of(channel);
+            ZipIndex index = ZipIndex.read(source, PackageFiles.PACKAGE_ENTRY_NAMES);
+            ZipIndex.Entry payload = index.getEntry(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+            if (payload == null) {
+                throw new IOException("Failed to find payload entry in the given package.");
+            }
+            if (payload.getMethod() != ZipEntry.STORED) {
+                throw new IOException("Invalid compression method.");
+            }
+            for (ZipIndex.Entry entry : index.getEntries()) {
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    entries.add(new UpdateConfig.PackageFile(entry.getName(),
+                            entry.getDataOffset(), entry.getCompressedSize()));
                 }
-
-                long length = entry.getCompressedSize();
-                if (PackageFiles.PAYLOAD_BINARY_FILE_NAME.equals(name)) {
-                    if (entry.getMethod() != ZipEntry.STORED) {
-                        throw new IOException("Invalid compression method.");
-                    }
-                    payloadFound = true;
-                    payloadOffset = offset;
-                    payloadSize = length;
-                } else if (PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME.equals(name)) {
-                    InputStream inputStream = zip.getInputStream(entry);
-                    if (inputStream != null) {
-                        BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            properties.add(line);
-                        }
-                    }
+            }
+            ZipIndex.Entry propertiesEntry =
+                    index.getEntry(PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
+            if (propertiesEntry != null) {
+                BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new ByteArrayInputStream(ZipIndex.readEntry(source, propertiesEntry))));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    properties.add(line);
                 }
-                offset += length;
             }
         }
+        return new PackageIndexCache.PackageIndex(entries, properties);
+    }
 
-        if (!payloadFound) {
-            throw new IOException("Failed to find payload entry in the given package.");
+    /**
+     * Locates the {@link PackageFiles#PACKAGE_ENTRY_NAMES} entries of an OTA package,
+     * including Zip64 packages larger than 4 GB. Only the zip headers are read.
+     */
+    public ZipIndex indexPackage(File packageFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(packageFile.toPath(),
+                StandardOpenOption.READ)) {
+            return ZipIndex.read(ZipIndex.Source.of(channel), PackageFiles.PACKAGE_ENTRY_NAMES);
         }
-		//Log.d("PayloadSpecs", "zyf forNonStreaming offset "+payloadOffset);
-		//Log.d("PayloadSpecs", "zyf forNonStreaming size "+payloadSize);
-        return PayloadSpec.newBuilder()
-                        .url("file://" + packageFile.getAbsolutePath())
-                        .offset(payloadOffset)
-                        .size(payloadSize)
-                        .properties(properties)
-                        .build();
+    }
+
+    /**
+     * Computes the {@code ab_config.property_files} of a streaming update from the zip
+     * headers of its package, e.g. read with a {@link RemoteZipSource}.
+     *
+     * <p>Offsets and sizes of the stored {@link PackageFiles#PACKAGE_ENTRY_NAMES} entries
+     * are taken from the {@link ZipIndex}. payload_metadata.bin isn't an entry, it's the
+     * beginning of payload.bin up to the end of the metadata signature, its size is read
+     * from the payload header.</p>
+     *
+     * @throws IOException when the package can't be read or has no stored payload.bin
+     */
+    public UpdateConfig.PackageFile[] derivePropertyFiles(ZipIndex.Source source)
+            throws IOException {
+        ZipIndex index = ZipIndex.read(source, PackageFiles.PACKAGE_ENTRY_NAMES);
+        Map<String, UpdateConfig.PackageFile> files = new LinkedHashMap<>();
+        for (ZipIndex.Entry entry : index.getEntries()) {
+            String filename = PackageFiles.METADATA_ENTRY_NAME.equals(entry.getName())
+                    ? PackageFiles.METADATA_FILE_NAME
+                    : entry.getName();
+            if (entry.getMethod() != ZipEntry.STORED) {
+                // update_engine and the pre-streaming downloads read the raw bytes.
+                Log.w(TAG, "Skipping compressed package entry " + entry.getName());
+                continue;
+            }
+            files.putIfAbsent(filename, new UpdateConfig.PackageFile(
+                    filename, entry.getDataOffset(), entry.getCompressedSize()));
+        }
+        UpdateConfig.PackageFile payload = files.get(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+        if (payload == null) {
+            throw new IOException("Failed to find stored payload entry in the given package.");
+        }
+        files.put(PackageFiles.PAYLOAD_METADATA_FILE_NAME, new UpdateConfig.PackageFile(
+                PackageFiles.PAYLOAD_METADATA_FILE_NAME,
+                payload.getOffset(),
+                PayloadMetadata.Header.read(source, payload.getOffset(), payload.getSize())
+                        .getMetadataSize()));
+        return files.values().toArray(new UpdateConfig.PackageFile[0]);
     }
 
     /**
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Downloads several {@link UpdateConfig.PackageFile}s of an OTA package with as few
+ * requests as possible.
+ *
+ * <p>Requested files are coalesced into spans by {@link RangePlanner}, and all spans
+ * are requested at once with a multi-range {@code Range} header. The response, which
+ * may be {@code multipart/byteranges} or a single coalesced range, is split back into
+ * the individual files. Files the response didn't cover, or all of them when the
+ * server ignores the ranges, are downloaded one by one with {@link FileDownloader}.</p>
+ *
+ * <p>Files are written to partial files which replace the destinations once
+ * complete.</p>
+ */
+public final class RangeBatchDownloader implements CancellableDownload {
+
+    private static final String TAG = "RangeBatchDownloader";
+
+    private final String mUrl;
+    private final List<UpdateConfig.PackageFile> mFiles;
+    private final File mDirectory;
+    private DownloadTransport mTransport = HttpTransport.getDefault();
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private BandwidthLimiter mBandwidthLimiter = BandwidthLimiter.getGlobal();
+
+    /** Number of bytes written to each file of {@code mFiles}. */
+    private final long[] mWritten;
+
+    private volatile boolean mAborted;
+    private volatile boolean mCancelled;
+
+    /** Set while {@link #download()} runs, partial files are left to it to delete. */
+    private volatile boolean mRunning;
+
+    /** Response of the batched request while it is read. */
+    private volatile DownloadTransport.Response mResponse;
+
+    /** Downloader of the file currently fetched on its own, if any. */
+    private volatile FileDownloader mCurrent;
+
+    public RangeBatchDownloader(String url, List<UpdateConfig.PackageFile> files,
+            File directory) {
+        this.mUrl = url;
+        this.mFiles = new ArrayList<>(files);
+        Collections.sort(mFiles, Comparator.comparingLong(UpdateConfig.PackageFile::getOffset));
+        this.mDirectory = directory;
+        this.mWritten = new long[mFiles.size()];
+    }
+
+    /**
+     * Sets the transport used to fetch non-local urls, {@link HttpTransport} by default.
+     */
+    public void setTransport(DownloadTransport transport) {
+        this.mTransport = transport;
+    }
+
+    /**
+     * Sets how failed requests are retried, {@link RetryPolicy#DEFAULT} by default.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the limiter throttling the transfer, {@link BandwidthLimiter#getGlobal()}
+     * by default.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.mBandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Stops a running download, its connection is closed so a blocked read returns
+     * right away. The download then fails with an {@link InterruptedIOException}.
+     */
+    @Override
+    public void abort() {
+        mAborted = true;
+        DownloadTransport.Response response = mResponse;
+        if (response != null) {
+            response.abort();
+        }
+        FileDownloader current = mCurrent;
+        if (current != null) {
+            current.abort();
+        }
+    }
+
+    /**
+     * Same as {@link #abort()}, and the partial files are deleted when the download
+     * stops, or right away if it isn't running.
+     */
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        abort();
+        if (!mRunning) {
+            deletePartialFiles();
+        }
+    }
+
+    /**
+     * Same as {@link #download()}, but runs on {@code executor} and returns immediately.
+     *
+     * @return future completed with one result per file when all are downloaded, or
+     *         exceptionally with the {@link IOException} that made the download fail
+     */
+    public CompletableFuture<List<DownloadResult>> downloadAsync(Executor executor) {
+        return DownloadExecutors.supply(() -> {
+            long start = System.nanoTime();
+            download();
+            long duration = System.nanoTime() - start;
+            List<DownloadResult> results = new ArrayList<>();
+            for (UpdateConfig.PackageFile file : mFiles) {
+                results.add(new DownloadResult(destinationOf(file), file.getSize(), duration));
+            }
+            return results;
+        }, executor);
+    }
+
+    /**
+     * Downloads all files into the directory, each file is named after
+     * {@link UpdateConfig.PackageFile#getFilename()}.
+     * @throws IOException when can't download a file
+     */
+    public void download() throws IOException {
+        mRunning = true;
+        try {
+            downloadFiles();
+        } catch (IOException e) {
+            // Cleared before checking mCancelled, so either this or cancel() deletes.
+            mRunning = false;
+            if (mCancelled) {
+                Log.d(TAG, "Download from " + mUrl + " cancelled, deleting partial files");
+                deletePartialFiles();
+            }
+            throw e;
+        } finally {
+            mRunning = false;
+        }
+    }
+
+    private void deletePartialFiles() {
+        for (UpdateConfig.PackageFile file : mFiles) {
+            File part = StorageManager.partFileOf(destinationOf(file));
+            part.delete();
+            new File(part.getPath() + DownloadJournal.JOURNAL_SUFFIX).delete();
+        }
+    }
+
+    private void downloadFiles() throws IOException {
+        List<RangePlanner.Span> spans = RangePlanner.plan(mFiles, RangePlanner.DEFAULT_MAX_GAP);
+        URL url = new URL(mUrl);
+        boolean batched = !spans.isEmpty() && !"file".equals(url.getProtocol());
+        if (batched) {
+            for (UpdateConfig.PackageFile file : mFiles) {
+                // Files are written from their start, the ones the response doesn't
+                // cover are downloaded again below.
+                File part = StorageManager.partFileOf(destinationOf(file));
+                try (RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+                    StorageManager.getDefault().preallocate(part, output, file.getSize());
+                }
+            }
+            Log.d(TAG, "fetching " + mFiles.size() + " files in " + spans.size() + " ranges");
+            try {
+                fetch(spans);
+            } catch (IOException e) {
+                checkAborted();
+                Log.w(TAG, "Batched download from " + mUrl + " failed", e);
+            }
+        }
+        for (int i = 0; i < mFiles.size(); i++) {
+            UpdateConfig.PackageFile file = mFiles.get(i);
+            if (batched && mWritten[i] == file.getSize()) {
+                StorageManager.commit(
+                        StorageManager.partFileOf(destinationOf(file)), destinationOf(file));
+            } else {
+                FileDownloader downloader = new FileDownloader(
+                        mUrl, file.getOffset(), file.getSize(), destinationOf(file));
+                downloader.setTransport(mTransport);
+                downloader.setRetryPolicy(mRetryPolicy);
+                downloader.setBandwidthLimiter(mBandwidthLimiter);
+                mCurrent = downloader;
+                try {
+                    checkAborted();
+                    downloader.download();
+                } finally {
+                    mCurrent = null;
+                }
+            }
+        }
+    }
+
+    private File destinationOf(UpdateConfig.PackageFile file) {
+        return new File(mDirectory, file.getFilename());
+    }
+
+    private void fetch(List<RangePlanner.Span> spans) throws IOException {
+        try (DownloadTransport.Response response = mTransport.get(mUrl,
+                Collections.singletonMap("Range", RangePlanner.toRangeHeader(spans)),
+                () -> mAborted)) {
+            mResponse = response;
+            if (mAborted) {
+                response.abort();
+            }
+            int code = response.getCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                // Streaming the whole package to reach the files would cost more than
+                // requesting them one by one, which the server may still honour.
+                Log.w(TAG, "Server ignored range request for " + mUrl
+                        + ", downloading files one by one");
+                response.abort();
+                return;
+            }
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Can't download files from " + mUrl
+                        + ", server returned HTTP " + code);
+            }
+            InputStream input = new BufferedInputStream(response.getBody());
+            String contentType = response.getContentType();
+            if (contentType != null
+                    && contentType.toLowerCase().startsWith("multipart/byteranges")) {
+                readMultipart(input, boundaryOf(contentType));
+            } else {
+                long[] range = parseContentRange(response.getHeader("Content-Range"));
+                dispatch(input, range[0], range[1] - range[0] + 1);
+            }
+        }
+    }
+
+    /**
+     * Reads a {@code multipart/byteranges} body, every part carries its own
+     * {@code Content-Range} header.
+     */
+    private void readMultipart(InputStream input, String boundary) throws IOException {
+        String delimiter = "--" + boundary;
+        String line;
+        while ((line = readLine(input)) != null) {
+            if (line.equals(delimiter + "--")) {
+                return;
+            }
+            if (!line.equals(delimiter)) {
+                continue;
+            }
+            long[] range = null;
+            while ((line = readLine(input)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0
+                        && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")) {
+                    range = parseContentRange(line.substring(colon + 1).trim());
+                }
+            }
+            if (range == null) {
+                throw new IOException("Missing Content-Range in multipart response of " + mUrl);
+            }
+            dispatch(input, range[0], range[1] - range[0] + 1);
+        }
+    }
+
+    /**
+     * Consumes exactly {@code length} bytes of the package starting at {@code start}
+     * from {@code input}, and writes them into the files they belong to.
+     */
+    private void dispatch(InputStream input, long start, long length) throws IOException {
+        long position = start;
+        long end = start + length;
+        for (int i = 0; i < mFiles.size() && position < end; i++) {
+            UpdateConfig.PackageFile file = mFiles.get(i);
+            long fileEnd = file.getOffset() + file.getSize();
+            if (fileEnd <= position || file.getOffset() >= end
+                    || file.getOffset() + mWritten[i] < position
+                    || mWritten[i] == file.getSize()) {
+                // Not in this range, or the bytes it needs were already consumed.
+                continue;
+            }
+            long from = file.getOffset() + mWritten[i];
+            position += skip(input, from - position);
+            long to = Math.min(fileEnd, end);
+            byte[] data = BufferPool.getDefault().acquire(BufferPool.MIN_BUFFER_SIZE);
+            File part = StorageManager.partFileOf(destinationOf(file));
+            try (RandomAccessFile output = new RandomAccessFile(part, "rw")) {
+                output.seek(mWritten[i]);
+                while (position < to) {
+                    int count = input.read(data, 0, (int) Math.min(data.length, to - position));
+                    if (count <= 0) {
+                        throw new IOException("Unexpected end of response from " + mUrl);
+                    }
+                    checkAborted();
+                    mBandwidthLimiter.acquire(count, () -> mAborted);
+                    output.write(data, 0, count);
+                    position += count;
+                    mWritten[i] += count;
+                }
+            } finally {
+                BufferPool.getDefault().release(data);
+            }
+        }
+        skip(input, end - position);
+    }
+
+    private void checkAborted() throws InterruptedIOException {
+        if (mAborted) {
+            throw new InterruptedIOException("Download from " + mUrl + " aborted");
+        }
+    }
+
+    private long skip(InputStream input, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("Unexpected end of response from " + mUrl);
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a CRLF terminated line.
+     *
+     * @return the line without terminator, or {@code null} at the end of the stream
+     */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = input.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private String boundaryOf(String contentType) throws IOException {
+        for (String parameter : contentType.split(";")) {
+            String p = parameter.trim();
+            if (p.toLowerCase().startsWith("boundary=")) {
+                String boundary = p.substring("boundary=".length());
+                if (boundary.startsWith("\"") && boundary.endsWith("\"")
+                        && boundary.length() > 1) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary;
+            }
+        }
+        throw new IOException("Missing multipart boundary in response of " + mUrl);
+    }
+
+    /**
+     * Parses {@code bytes first-last/total}.
+     *
+     * @return {@code {first, last}}
+     */
+    private long[] parseContentRange(String contentRange) throws IOException {
+        long first = FileDownloader.parseContentRangeStart(contentRange);
+        int dash = contentRange == null ? -1 : contentRange.indexOf('-');
+        int slash = contentRange == null ? -1 : contentRange.indexOf('/');
+        if (first < 0 || dash < 0 || slash < dash) {
+            throw new IOException("Invalid Content-Range " + contentRange + " from " + mUrl);
+        }
+        try {
+            return new long[] {first,
+                    Long.parseLong(contentRange.substring(dash + 1, slash).trim())};
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Range " + contentRange + " from " + mUrl, e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plans the byte ranges needed to fetch a set of {@link UpdateConfig.PackageFile}s
+ * from an OTA package. Files are sorted by offset, and files that are adjacent or
+ * separated by at most {@code maxGap} bytes are merged into one {@link Span}, so
+ * they can be fetched with a single range.
+ */
+public final class RangePlanner {
+
+    /**
+     * Default gap that is cheaper to download than to pay for an extra range.
+     */
+    public static final long DEFAULT_MAX_GAP = 64 * 1024;
+
+    /**
+     * @param files  files to fetch, empty files are ignored
+     * @param maxGap maximum number of unneeded bytes between two merged files
+     * @return spans sorted by offset
+     */
+    public static List<Span> plan(List<UpdateConfig.PackageFile> files, long maxGap) {
+        List<UpdateConfig.PackageFile> sorted = new ArrayList<>();
+        for (UpdateConfig.PackageFile file : files) {
+            if (file.getSize() > 0) {
+                sorted.add(file);
+            }
+        }
+        Collections.sort(sorted, Comparator.comparingLong(UpdateConfig.PackageFile::getOffset));
+
+        List<Span> spans = new ArrayList<>();
+        Span current = null;
+        for (UpdateConfig.PackageFile file : sorted) {
+            long end = file.getOffset() + file.getSize();
+            if (current != null && file.getOffset() <= current.getEnd() + maxGap) {
+                current.mEnd = Math.max(current.mEnd, end);
+                current.mFiles.add(file);
+            } else {
+                current = new Span(file.getOffset(), end);
+                current.mFiles.add(file);
+                spans.add(current);
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * @return value of an HTTP {@code Range} header requesting all {@code spans}
+     */
+    public static String toRangeHeader(List<Span> spans) {
+        StringBuilder sb = new StringBuilder("bytes=");
+        for (int i = 0; i < spans.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(spans.get(i).getOffset()).append('-').append(spans.get(i).getEnd() - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Contiguous byte range of the package covering one or more files.
+     */
+    public static final class Span {
+        private final long mOffset;
+        private long mEnd;
+        private final List<UpdateConfig.PackageFile> mFiles = new ArrayList<>();
+
+        Span(long offset, long end) {
+            this.mOffset = offset;
+            this.mEnd = end;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /** @return end of the span, exclusive */
+        public long getEnd() {
+            return mEnd;
+        }
+
+        public long getLength() {
+            return mEnd - mOffset;
+        }
+
+        /** @return files covered by the span, sorted by offset */
+        public List<UpdateConfig.PackageFile> getFiles() {
+            return mFiles;
+        }
+    }
+
+    private RangePlanner() {}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link ZipIndex.Source} reading a remote zip file, e.g. an OTA package, with range
+ * requests.
+ *
+ * <p>Reads are served from the ranges fetched before. On a miss, a window of at least
+ * {@link #DEFAULT_WINDOW_SIZE} bytes is fetched, so the neighbouring headers come with
+ * it. The first request fetches the end of the file, which holds the end of central
+ * directory record and, for OTA packages, the whole central directory. Indexing a
+ * package then usually takes two or three small requests. A read spanning several
+ * fetched ranges is assembled from them, a server answering with shorter ranges than
+ * asked for just takes more requests.</p>
+ */
+public final class RemoteZipSource implements ZipIndex.Source {
+
+    private static final String TAG = "RemoteZipSource";
+
+    /** Default minimum number of bytes fetched by a request. */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    /** End of central directory record with a comment of maximum size. */
+    private static final int TAIL_SIZE = 22 + 0xffff;
+
+    private final DownloadTransport mTransport;
+    private final String mUrl;
+    private final int mWindowSize;
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    /** Fetched ranges by offset. */
+    private final TreeMap<Long, byte[]> mRanges = new TreeMap<>();
+    private long mSize = -1;
+    private int mRequests;
+    private long mFetchedBytes;
+
+    public RemoteZipSource(DownloadTransport transport, String url) {
+        this(transport, url, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize minimum number of bytes fetched by a request
+     */
+    public RemoteZipSource(DownloadTransport transport, String url, int windowSize) {
+        this.mTransport = transport;
+        this.mUrl = url;
+        this.mWindowSize = windowSize;
+    }
+
+    /**
+     * Sets how failed requests are retried, {@link RetryPolicy#DEFAULT} by default.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /** @return number of range requests sent so far */
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    /** @return number of bytes fetched so far */
+    public synchronized long getFetchedBytes() {
+        return mFetchedBytes;
+    }
+
+    /**
+     * Fetches the end of the file on the first call, the size is taken from its
+     * {@code Content-Range}.
+     */
+    @Override
+    public synchronized long size() throws IOException {
+        if (mSize < 0) {
+            fetch("bytes=-" + TAIL_SIZE, -1, TAIL_SIZE);
+        }
+        return mSize;
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer dst) throws IOException {
+        long size = size();
+        int length = dst.remaining();
+        if (position < 0 || position + length > size) {
+            throw new EOFException("Range " + position + "+" + length + " is out of "
+                    + mUrl + " of " + size + " bytes");
+        }
+        int done = 0;
+        while (done < length) {
+            long at = position + done;
+            Map.Entry<Long, byte[]> range = mRanges.floorEntry(at);
+            if (range == null || range.getKey() + range.getValue().length <= at) {
+                long end = Math.min(size, at + Math.max(length - done, mWindowSize));
+                fetch("bytes=" + at + "-" + (end - 1), at, end - at);
+                range = mRanges.floorEntry(at);
+                if (range == null || range.getKey() + range.getValue().length <= at) {
+                    throw new IOException("Can't fetch bytes=" + at + "-" + (end - 1) + " of "
+                            + mUrl + ", server returned an empty range");
+                }
+            }
+            // The range may end early, e.g. when the server sent less than asked for,
+            // the rest is fetched in the next round.
+            int from = (int) (at - range.getKey());
+            int count = Math.min(length - done, range.getValue().length - from);
+            dst.put(range.getValue(), from, count);
+            done += count;
+        }
+    }
+
+    /**
+     * Fetches {@code range} and keeps it.
+     *
+     * @param offset expected offset of the range, or {@code -1} for a suffix range
+     * @param maxLength length of the range, more bytes are not read
+     */
+    private void fetch(String range, long offset, long maxLength) throws IOException {
+        mRetryPolicy.execute("Fetching " + range + " of " + mUrl, () -> {
+            try (DownloadTransport.Response response = mTransport.get(mUrl,
+                    Collections.singletonMap("Range", range))) {
+                mRequests++;
+                int code = response.getCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Can't fetch " + range + " of " + mUrl
+                            + ", server returned HTTP " + code);
+                }
+                String contentRange = response.getHeader("Content-Range");
+                long start = FileDownloader.parseContentRangeStart(contentRange);
+                long total = parseContentRangeTotal(contentRange);
+                if (start < 0 || total < 0 || offset >= 0 && start != offset) {
+                    throw new IOException("Can't fetch " + range + " of " + mUrl
+                            + ", server returned Content-Range " + contentRange);
+                }
+                long length = response.getContentLength();
+                // Without Content-Length, the body is read until it ends.
+                boolean lengthKnown = length >= 0;
+                length = Math.min(total - start, lengthKnown ? length : maxLength);
+                byte[] data = new byte[(int) length];
+                InputStream input = response.getBody();
+                int count = 0;
+                while (count < data.length) {
+                    int read = input.read(data, count, data.length - count);
+                    if (read < 0) {
+                        if (!lengthKnown) {
+                            data = Arrays.copyOf(data, count);
+                            break;
+                        }
+                        throw new IOException("Can't fetch " + range + " of " + mUrl
+                                + ", got only " + count + " bytes");
+                    }
+                    count += read;
+                }
+                mSize = total;
+                mFetchedBytes += data.length;
+                mRanges.put(start, data);
+                Log.d(TAG, "Fetched " + contentRange + " of " + mUrl);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return complete length of {@code bytes first-last/total}, or {@code -1}
+     */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.indexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Describes how downloads are retried: number of attempts, exponential backoff with
+ * jitter between them, a stall timeout for transfers whose throughput drops below a
+ * floor, and an optional delay after which a duplicate (hedged) request is fired for
+ * a slow range.
+ *
+ * <p>Usage:</p>
+ *
+ * {@code
+ *   RetryPolicy policy = RetryPolicy.newBuilder()
+ *     .maxAttempts(5)
+ *     .hedgeDelayMillis(2000)
+ *     .build();
+ * }
+ */
+public final class RetryPolicy {
+
+    private static final String TAG = "RetryPolicy";
+
+    /** How often an abort is checked for while waiting for the next attempt. */
+    private static final long ABORT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Policy used when none is given. */
+    public static final RetryPolicy DEFAULT = newBuilder().build();
+
+    /** Runs every operation exactly once. */
+    public static final RetryPolicy NO_RETRY = newBuilder()
+            .maxAttempts(1)
+            .stallTimeoutMillis(0)
+            .build();
+
+    /**
+     * Creates a retry policy {@link Builder}
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final double mBackoffMultiplier;
+    private final double mJitter;
+    private final long mStallTimeoutMillis;
+    private final long mMinBytesPerSecond;
+    private final long mHedgeDelayMillis;
+
+    private RetryPolicy(Builder b) {
+        this.mMaxAttempts = Math.max(1, b.mMaxAttempts);
+        this.mInitialBackoffMillis = b.mInitialBackoffMillis;
+        this.mMaxBackoffMillis = b.mMaxBackoffMillis;
+        this.mBackoffMultiplier = b.mBackoffMultiplier;
+        this.mJitter = Math.max(0, Math.min(1, b.mJitter));
+        this.mStallTimeoutMillis = b.mStallTimeoutMillis;
+        this.mMinBytesPerSecond = b.mMinBytesPerSecond;
+        this.mHedgeDelayMillis = b.mHedgeDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /** @return delay before a hedged request is fired, {@code 0} if hedging is disabled */
+    public long getHedgeDelayMillis() {
+        return mHedgeDelayMillis;
+    }
+
+    /**
+     * An operation that can be retried.
+     */
+    public interface Operation<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs {@code operation} until it succeeds, fails with a non-retryable error or the
+     * attempts are exhausted. The last error is rethrown.
+     *
+     * @param name used in logs
+     */
+    public <T> T execute(String name, Operation<T> operation) throws IOException {
+        return execute(name, operation, () -> false);
+    }
+
+    /**
+     * Same as {@link #execute(String, Operation)}, but gives up waiting for the next
+     * attempt as soon as {@code aborted} returns true.
+     *
+     * @throws InterruptedIOException if aborted while waiting
+     */
+    public <T> T execute(String name, Operation<T> operation, BooleanSupplier aborted)
+            throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return operation.run();
+            } catch (IOException e) {
+                if (attempt >= mMaxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                long backoff = backoffMillis(attempt);
+                Log.w(TAG, name + " failed, attempt " + attempt + "/" + mMaxAttempts
+                        + ", retrying in " + backoff + " ms", e);
+                sleep(name, backoff, aborted);
+            }
+        }
+    }
+
+    private static void sleep(String name, long millis, BooleanSupplier aborted)
+            throws InterruptedIOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (aborted.getAsBoolean()) {
+                throw new InterruptedIOException(name + " aborted");
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, ABORT_POLL_NANOS));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying " + name);
+            }
+        }
+    }
+
+    /**
+     * @return backoff after the failed {@code attempt} (1-based): exponential, capped
+     *         and randomly shortened by up to {@code jitter}
+     */
+    long backoffMillis(int attempt) {
+        double backoff = mInitialBackoffMillis * Math.pow(mBackoffMultiplier, attempt - 1);
+        backoff = Math.min(backoff, mMaxBackoffMillis);
+        double jitter = backoff * mJitter * ThreadLocalRandom.current().nextDouble();
+        return (long) (backoff - jitter);
+    }
+
+    /**
+     * Missing files, full storage and cancellations are final, other I/O errors are worth
+     * a retry.
+     */
+    private static boolean isRetryable(IOException e) {
+        if (e instanceof FileNotFoundException
+                || e instanceof StorageManager.InsufficientStorageException
+                || e instanceof SegmentedDownloader.SourceChangedException) {
+            return false;
+        }
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * @return a new detector for one transfer
+     */
+    public StallDetector newStallDetector() {
+        return new StallDetector(mStallTimeoutMillis, mMinBytesPerSecond);
+    }
+
+    /**
+     * Fails a transfer whose throughput over the last {@code timeout} stays below the
+     * floor. Called from copy loops, so it doesn't allocate.
+     */
+    public static final class StallDetector {
+        private final long mTimeoutNanos;
+        private final long mMinBytesPerSecond;
+        private long mWindowStart = System.nanoTime();
+        private long mWindowBytes;
+
+        StallDetector(long timeoutMillis, long minBytesPerSecond) {
+            this.mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.mMinBytesPerSecond = minBytesPerSecond;
+        }
+
+        /**
+         * Records {@code count} transferred bytes.
+         *
+         * @throws SocketTimeoutException if the transfer stalled
+         */
+        public void onProgress(long count) throws SocketTimeoutException {
+            if (mTimeoutNanos <= 0) {
+                return;
+            }
+            mWindowBytes += count;
+            long now = System.nanoTime();
+            long elapsed = now - mWindowStart;
+            if (elapsed < mTimeoutNanos) {
+                return;
+            }
+            long bytesPerSecond = mWindowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            if (bytesPerSecond < mMinBytesPerSecond) {
+                throw new SocketTimeoutException("Transfer stalled at " + bytesPerSecond
+                        + " B/s, expected at least " + mMinBytesPerSecond + " B/s");
+            }
+            mWindowStart = now;
+            mWindowBytes = 0;
+        }
+    }
+
+    /**
+     * retry policy builder.
+     */
+    public static class Builder {
+        private int mMaxAttempts = 4;
+        private long mInitialBackoffMillis = 1000;
+        private long mMaxBackoffMillis = 30 * 1000;
+        private double mBackoffMultiplier = 2;
+        private double mJitter = 0.5;
+        private long mStallTimeoutMillis = 20 * 1000;
+        private long mMinBytesPerSecond = 1024;
+        private long mHedgeDelayMillis = 0;
+
+        public Builder() {
+        }
+
+        /**
+         * set maximum number of attempts, including the first one
+         */
+        public Builder maxAttempts(int maxAttempts) {
+            this.mMaxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * set backoff after the first failure, and its upper bound
+         */
+        public Builder backoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+            this.mInitialBackoffMillis = initialBackoffMillis;
+            this.mMaxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        /**
+         * set factor the backoff grows by after every failure
+         */
+        public Builder backoffMultiplier(double backoffMultiplier) {
+            this.mBackoffMultiplier = backoffMultiplier;
+            return this;
+        }
+
+        /**
+         * set jitter, a fraction from {@code 0} to {@code 1} of the backoff that is
+         * randomly taken off
+         */
+        public Builder jitter(double jitter) {
+            this.mJitter = jitter;
+            return this;
+        }
+
+        /**
+         * set stall timeout, {@code 0} disables stall detection
+         */
+        public Builder stallTimeoutMillis(long stallTimeoutMillis) {
+            this.mStallTimeoutMillis = stallTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * set throughput floor used by stall detection
+         */
+        public Builder minBytesPerSecond(long minBytesPerSecond) {
+            this.mMinBytesPerSecond = minBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * set delay after which a duplicate request is fired for a slow range,
+         * {@code 0} disables hedging
+         */
+        public Builder hedgeDelayMillis(long hedgeDelayMillis) {
+            this.mHedgeDelayMillis = hedgeDelayMillis;
+            return this;
+        }
+
+        /**
+         * build {@link RetryPolicy}
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads a whole file from an HTTP(S) server over several parallel connections.
+ *
+ * <p>The file is split into byte ranges, every range is fetched with its own
+ * {@code Range} request and written at its position into a destination file which
+ * is preallocated up front by the {@link StorageManager}. Servers that don't
+ * advertise {@code Accept-Ranges: bytes} are downloaded over a single connection.</p>
+ *
+ * <p>Ranges are written to a partial file which replaces the destination once complete.
+ * Completed ranges are checkpointed to a {@link DownloadJournal}, so an interrupted
+ * download only fetches the missing ranges next time.</p>
+ */
+public final class SegmentedDownloader implements CancellableDownload {
+
+    private static final String TAG = "SegmentedDownloader";
+
+    /** Default number of parallel connections. */
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    /** Don't split the file into ranges smaller than this. */
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** Number of times the download starts over when the source changes. */
+    private static final int MAX_RESTARTS = 1;
+
+    /** How long the remaining segments are waited for once one failed. */
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    private final String mUrl;
+    private final File mDestination;
+    private final int mSegments;
+    private DownloadTransport mTransport = HttpTransport.getDefault();
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private BandwidthLimiter mBandwidthLimiter = BandwidthLimiter.getGlobal();
+
+    private volatile boolean mAborted;
+    private volatile boolean mCancelled;
+
+    /** Set while {@link #download()} runs, partial files are left to it to delete. */
+    private volatile boolean mRunning;
+
+    /** Responses being read by the segments, aborted to unblock their copy loops. */
+    private final Set<DownloadTransport.Response> mResponses = ConcurrentHashMap.newKeySet();
+
+    /** Downloader used when the server doesn't support ranges, if any. */
+    private volatile FileDownloader mCurrent;
+
+    public SegmentedDownloader(String url, File destination, int segments) {
+        this.mUrl = url;
+        this.mDestination = destination;
+        this.mSegments = Math.max(1, segments);
+    }
+
+    /**
+     * Sets the transport used to fetch non-local urls, {@link HttpTransport} by default.
+     */
+    public void setTransport(DownloadTransport transport) {
+        this.mTransport = transport;
+    }
+
+    /**
+     * Sets how failed requests are retried, {@link RetryPolicy#DEFAULT} by default.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the limiter throttling the transfer, {@link BandwidthLimiter#getGlobal()}
+     * by default.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.mBandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Stops all segments, their connections are closed so blocked reads return right
+     * away. The download then fails with an {@link InterruptedIOException}. Completed
+     * ranges stay on disk and in the journal, so the download can be resumed later.
+     */
+    @Override
+    public void abort() {
+        mAborted = true;
+        for (DownloadTransport.Response response : mResponses) {
+            response.abort();
+        }
+        FileDownloader current = mCurrent;
+        if (current != null) {
+            current.abort();
+        }
+    }
+
+    /**
+     * Same as {@link #abort()}, and the partial file and its journal are deleted when the
+     * download stops, or right away if it isn't running.
+     */
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        abort();
+        if (!mRunning) {
+            deletePartialFiles();
+        }
+    }
+
+    /**
+     * Same as {@link #download()}, but runs on {@code executor} and returns immediately.
+     * Segments are still fetched by the downloader's own threads.
+     *
+     * @return future completed when the file is downloaded, or exceptionally with the
+     *         {@link IOException} that made the download fail
+     */
+    public CompletableFuture<DownloadResult> downloadAsync(Executor executor) {
+        return DownloadExecutors.supply(() -> {
+            long start = System.nanoTime();
+            download();
+            return new DownloadResult(mDestination, mDestination.length(),
+                    System.nanoTime() - start);
+        }, executor);
+    }
+
+    /**
+     * Downloads the file to the destination.
+     * @throws IOException when can't download the file
+     */
+    public void download() throws IOException {
+        mRunning = true;
+        try {
+            checkAborted();
+            downloadSegments();
+        } catch (IOException e) {
+            // Cleared before checking mCancelled, so either this or cancel() deletes.
+            mRunning = false;
+            if (mCancelled) {
+                Log.d(TAG, "Download of " + mUrl + " cancelled, deleting partial file");
+                deletePartialFiles();
+            }
+            checkAborted();
+            throw e;
+        } finally {
+            mRunning = false;
+        }
+    }
+
+    private void deletePartialFiles() {
+        File part = StorageManager.partFileOf(mDestination);
+        part.delete();
+        new File(part.getPath() + DownloadJournal.JOURNAL_SUFFIX).delete();
+    }
+
+    private void downloadSegments() throws IOException {
+        for (int restarts = 0; ; restarts++) {
+            try {
+                downloadSegmentsOnce();
+                return;
+            } catch (SourceChangedException e) {
+                if (restarts >= MAX_RESTARTS) {
+                    throw e;
+                }
+                Log.w(TAG, e.getMessage() + ", starting over");
+            }
+        }
+    }
+
+    private void downloadSegmentsOnce() throws IOException {
+        Log.d(TAG, "downloading " + mUrl + " to " + mDestination.getAbsolutePath());
+        long size;
+        boolean acceptsRanges;
+        String validator;
+        try (DownloadTransport.Response head = mTransport.head(mUrl)) {
+            int code = head.getCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Can't download file " + mUrl
+                        + ", server returned HTTP " + code);
+            }
+            size = head.getContentLength();
+            acceptsRanges = "bytes".equalsIgnoreCase(head.getHeader("Accept-Ranges"));
+            validator = DownloadJournal.validatorOf(head);
+        }
+
+        if (size <= 0 || !acceptsRanges) {
+            Log.w(TAG, "Server doesn't support ranges for " + mUrl
+                    + ", downloading over a single connection");
+            FileDownloader downloader = new FileDownloader(mUrl, 0, 0, mDestination);
+            downloader.setTransport(mTransport);
+            downloader.setRetryPolicy(mRetryPolicy);
+            downloader.setBandwidthLimiter(mBandwidthLimiter);
+            mCurrent = downloader;
+            try {
+                checkAborted();
+                downloader.downloadFile();
+            } finally {
+                mCurrent = null;
+            }
+            return;
+        }
+
+        File part = StorageManager.partFileOf(mDestination);
+        DownloadJournal journal = DownloadJournal.open(part, mUrl, size);
+        journal.setValidator(validator);
+        List<long[]> ranges = split(size);
+        Log.d(TAG, "downloading " + size + " bytes in " + ranges.size() + " segments");
+        long start = System.currentTimeMillis();
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            StorageManager.getDefault().preallocate(part, file, size);
+            FileChannel channel = file.getChannel();
+            ExecutorService executor = Executors.newFixedThreadPool(ranges.size());
+            AtomicBoolean stopped = new AtomicBoolean();
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (long[] range : ranges) {
+                    futures.add(executor.submit(() -> {
+                        // A retry resumes the segment from its last checkpoint.
+                        return mRetryPolicy.execute("Downloading range " + range[0], () -> {
+                            checkAborted();
+                            try {
+                                downloadRange(channel, journal, range[0], range[1]);
+                            } catch (IOException e) {
+                                checkAborted();
+                                throw e;
+                            }
+                            return null;
+                        }, () -> mAborted || stopped.get());
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + mUrl, e);
+            } catch (ExecutionException e) {
+                stopSegments(executor, stopped);
+                Throwable cause = e.getCause();
+                if (cause instanceof SourceChangedException) {
+                    // The completed ranges belong to the previous version of the file.
+                    journal.reset();
+                    journal.save();
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Can't download file " + mUrl, cause);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        StorageManager.commit(part, mDestination);
+        journal.delete();
+        Log.d(TAG, "downloaded " + size + " bytes in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Stops the segments still running after one failed, and waits for them so none of
+     * them writes to the file or the journal afterwards.
+     */
+    private void stopSegments(ExecutorService executor, AtomicBoolean stopped) {
+        stopped.set(true);
+        for (DownloadTransport.Response response : mResponses) {
+            response.abort();
+        }
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Segments of " + mUrl + " didn't stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Splits {@code [0, size)} into at most {@code mSegments} ranges of
+     * {@code {offset, length}}.
+     */
+    private List<long[]> split(long size) {
+        long count = Math.max(1, Math.min(mSegments, size / MIN_SEGMENT_SIZE));
+        long segmentSize = (size + count - 1) / count;
+        List<long[]> ranges = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += segmentSize) {
+            ranges.add(new long[] {offset, Math.min(segmentSize, size - offset)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Downloads the part of range {@code segmentOffset}+{@code segmentLength} that isn't recorded
+     * as completed in {@code journal}.
+     */
+    private void downloadRange(FileChannel channel, DownloadJournal journal,
+            long segmentOffset, long segmentLength) throws IOException {
+        long done = Math.min(journal.getCompleted(segmentOffset), segmentLength);
+        if (done == segmentLength) {
+            return;
+        }
+        long offset = segmentOffset + done;
+        long length = segmentLength - done;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        String validator = journal.getValidator();
+        if (validator != null) {
+            // Makes the server return the whole file if it changed meanwhile.
+            headers.put("If-Range", validator);
+        }
+        try (DownloadTransport.Response response = openRange(headers, validator)) {
+            mResponses.add(response);
+            try {
+                if (validator != null
+                        && response.getCode() == HttpURLConnection.HTTP_PARTIAL) {
+                    checkValidator(validator, DownloadJournal.validatorOf(response));
+                }
+                copyRange(response, channel, journal, offset, length);
+            } finally {
+                mResponses.remove(response);
+            }
+        }
+    }
+
+    /**
+     * Requests a range with the {@code headers}, which carry {@code If-Range} if the
+     * file has a {@code validator}. A server answering with the whole file of the same
+     * validator doesn't evaluate {@code If-Range}, the range is requested again without.
+     *
+     * @throws SourceChangedException if the server answered with another file
+     */
+    private DownloadTransport.Response openRange(Map<String, String> headers, String validator)
+            throws IOException {
+        DownloadTransport.Response response = mTransport.get(mUrl, headers, () -> mAborted);
+        if (validator == null || response.getCode() != HttpURLConnection.HTTP_OK) {
+            return response;
+        }
+        String current = DownloadJournal.validatorOf(response);
+        response.abort();
+        response.close();
+        checkValidator(validator, current);
+        Log.w(TAG, "Server ignored If-Range " + validator + " of " + mUrl
+                + ", requesting the range without it");
+        Map<String, String> withoutValidator = new HashMap<>(headers);
+        withoutValidator.remove("If-Range");
+        return mTransport.get(mUrl, withoutValidator, () -> mAborted);
+    }
+
+    /**
+     * @throws SourceChangedException if {@code current}, the validator of a response,
+     *         differs from the {@code expected} one of the file being downloaded
+     */
+    private void checkValidator(String expected, String current)
+            throws SourceChangedException {
+        if (current != null && !current.equals(expected)) {
+            throw new SourceChangedException(mUrl, expected, current);
+        }
+    }
+
+    /**
+     * Checks the response to a range request and writes its body at {@code offset}.
+     */
+    private void copyRange(DownloadTransport.Response response, FileChannel channel,
+            DownloadJournal journal, long offset, long length) throws IOException {
+        if (mAborted) {
+            response.abort();
+        }
+        int code = response.getCode();
+        if (code != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("Can't download range " + offset + "+" + length
+                    + " of " + mUrl + ", server returned HTTP " + code);
+        }
+        long start = FileDownloader.parseContentRangeStart(
+                response.getHeader("Content-Range"));
+        if (start != offset) {
+            throw new IOException("Can't download range " + offset + "+" + length
+                    + " of " + mUrl + ", server returned range starting at " + start);
+        }
+        InputStream input = response.getBody();
+        RetryPolicy.StallDetector stallDetector = mRetryPolicy.newStallDetector();
+        byte[] data = BufferPool.getDefault().acquire();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long syncInterval = StorageManager.getDefault().getSyncIntervalBytes();
+        long startNanos = System.nanoTime();
+        long total = 0;
+        long checkpoint = 0;
+        try {
+            while (total < length) {
+                int count = input.read(data, 0,
+                        (int) Math.min(data.length, length - total));
+                if (count <= 0) {
+                    break;
+                }
+                stallDetector.onProgress(count);
+                mBandwidthLimiter.acquire(count, () -> mAborted);
+                buffer.clear().limit(count);
+                long position = offset + total;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                total += count;
+                if (total - checkpoint >= syncInterval) {
+                    channel.force(false);
+                    journal.markCompleted(offset + checkpoint, total - checkpoint);
+                    journal.save();
+                    checkpoint = total;
+                }
+            }
+        } finally {
+            BufferPool.getDefault().release(data);
+        }
+        BufferPool.getDefault().recordTransfer(total, System.nanoTime() - startNanos);
+        if (total != length) {
+            throw new IOException("Can't download range " + offset + "+" + length
+                    + " of " + mUrl + ", got only " + total + " bytes");
+        }
+    }
+    /**
+     * Thrown when a response carries another validator than the file being downloaded,
+     * e.g. the whole file in answer to a range request because {@code If-Range} didn't
+     * match anymore, i.e. the file was replaced.
+     */
+    public static class SourceChangedException extends IOException {
+        public SourceChangedException(String url, String validator, String newValidator) {
+            super("Source " + url + " changed, validator " + validator + " -> "
+                    + newValidator);
+        }
+    }
+
+    private void checkAborted() throws InterruptedIOException {
+        if (mAborted) {
+            throw new InterruptedIOException("Download of " + mUrl + " aborted");
+        }
+    }
+}
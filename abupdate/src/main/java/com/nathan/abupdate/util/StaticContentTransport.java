@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Base of transports serving static content without a server. It answers requests
+ * the way an HTTP server with byte range support would: {@code 206} for satisfiable
+ * ranges (several ranges are coalesced into one covering range), {@code 200} when
+ * {@code If-Range} doesn't match, {@code 404} and {@code 416} on errors.
+ */
+abstract class StaticContentTransport implements DownloadTransport {
+
+    /**
+     * Content of one url.
+     */
+    interface Content {
+        long getLength();
+
+        String getEtag();
+
+        /** @return stream of {@code length} bytes starting at {@code offset} */
+        InputStream open(long offset, long length) throws IOException;
+    }
+
+    /**
+     * @return content of the url, or {@code null} if there is none
+     */
+    protected abstract Content find(String url) throws IOException;
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        Content content = find(url);
+        if (content == null) {
+            return new StaticResponse(HttpURLConnection.HTTP_NOT_FOUND, new HashMap<>(), null, 0);
+        }
+        long length = content.getLength();
+        Map<String, String> responseHeaders = new HashMap<>();
+        responseHeaders.put("Accept-Ranges", "bytes");
+        responseHeaders.put("ETag", content.getEtag());
+
+        String range = headers.get("Range");
+        String ifRange = headers.get("If-Range");
+        if (range == null || (ifRange != null && !ifRange.equals(content.getEtag()))) {
+            return new StaticResponse(HttpURLConnection.HTTP_OK, responseHeaders,
+                    content.open(0, length), length);
+        }
+        long[] covering = parseRange(range, length);
+        if (covering == null) {
+            responseHeaders.put("Content-Range", "bytes */" + length);
+            return new StaticResponse(416, responseHeaders, null, 0);
+        }
+        long count = covering[1] - covering[0] + 1;
+        responseHeaders.put("Content-Range",
+                "bytes " + covering[0] + "-" + covering[1] + "/" + length);
+        return new StaticResponse(HttpURLConnection.HTTP_PARTIAL, responseHeaders,
+                content.open(covering[0], count), count);
+    }
+
+    @Override
+    public Response head(String url) throws IOException {
+        Content content = find(url);
+        if (content == null) {
+            return new StaticResponse(HttpURLConnection.HTTP_NOT_FOUND, new HashMap<>(), null, 0);
+        }
+        Map<String, String> responseHeaders = new HashMap<>();
+        responseHeaders.put("Accept-Ranges", "bytes");
+        responseHeaders.put("ETag", content.getEtag());
+        return new StaticResponse(HttpURLConnection.HTTP_OK, responseHeaders, null,
+                content.getLength());
+    }
+
+    /**
+     * Parses {@code bytes=a-b,c-,-n}.
+     *
+     * @return {@code {first, last}} covering all satisfiable ranges, or {@code null}
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        long first = Long.MAX_VALUE;
+        long last = -1;
+        for (String spec : range.substring("bytes=".length()).split(",")) {
+            String s = spec.trim();
+            int dash = s.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    start = Math.max(0, length - Long.parseLong(s.substring(1)));
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(s.substring(0, dash));
+                    end = dash == s.length() - 1
+                            ? length - 1
+                            : Math.min(length - 1, Long.parseLong(s.substring(dash + 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start > end || start >= length) {
+                continue;
+            }
+            first = Math.min(first, start);
+            last = Math.max(last, end);
+        }
+        return last < 0 ? null : new long[] {first, last};
+    }
+
+    private static final class StaticResponse implements Response {
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+        private final InputStream mBody;
+        private final long mContentLength;
+
+        StaticResponse(int code, Map<String, String> headers, InputStream body,
+                long contentLength) {
+            this.mCode = code;
+            this.mHeaders = headers;
+            this.mBody = body == null ? new ByteArrayInputStream(new byte[0]) : body;
+            this.mContentLength = contentLength;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public long getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                // nothing to release
+            }
+        }
+
+        @Override
+        public void abort() {
+            close();
+        }
+    }
+}
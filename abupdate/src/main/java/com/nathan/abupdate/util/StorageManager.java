@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Manages the storage the downloads are written to: checks there is enough free space
+ * before a download starts, preallocates destination files, and decides how often
+ * written data is synced to disk.
+ *
+ * <p>Preallocated files are written in place. {@code posix_fallocate} reserves their
+ * blocks up front, so a download can't run out of space half way and its file is
+ * laid out in as few extents as the filesystem can manage. Filesystems not
+ * supporting it get a sparse file of the right size instead.</p>
+ *
+ * <p>Files are never written at their final path. Downloads go to a
+ * {@link #PART_SUFFIX} file which is {@link #commit committed}, i.e. synced and renamed
+ * over the destination, once complete; small files are written with
+ * {@link #writeAtomically}. A crash leaves either the old or the new file, never a
+ * torn one.</p>
+ */
+public final class StorageManager {
+
+    private static final String TAG = "StorageManager";
+
+    /** Default number of bytes written between two syncs. */
+    public static final long DEFAULT_SYNC_INTERVAL_BYTES = DownloadJournal.CHECKPOINT_BYTES;
+
+    /** Suffix of files being downloaded. */
+    public static final String PART_SUFFIX = ".part";
+
+    /** Suffix of files being written by {@link #writeAtomically}. */
+    public static final String TMP_SUFFIX = ".tmp";
+
+    /** Default free space left to the system after the downloads. */
+    public static final long DEFAULT_RESERVED_BYTES = 64 * 1024 * 1024;
+
+    private static final StorageManager DEFAULT = new StorageManager();
+
+    private volatile long mSyncIntervalBytes = DEFAULT_SYNC_INTERVAL_BYTES;
+    private volatile long mReservedBytes = DEFAULT_RESERVED_BYTES;
+
+    /**
+     * Returns the process wide storage manager, used by all downloaders.
+     */
+    public static StorageManager getDefault() {
+        return DEFAULT;
+    }
+
+    private StorageManager() {
+    }
+
+    /**
+     * Sets the number of bytes written between two syncs to disk. Downloads are
+     * checkpointed in their journal after every sync, so a larger interval means fewer
+     * flushes but more data fetched again after a crash.
+     */
+    public void setSyncIntervalBytes(long syncIntervalBytes) {
+        this.mSyncIntervalBytes = Math.max(BufferPool.MIN_BUFFER_SIZE, syncIntervalBytes);
+    }
+
+    public long getSyncIntervalBytes() {
+        return mSyncIntervalBytes;
+    }
+
+    /**
+     * Sets the free space that must be left after the downloads,
+     * {@link #DEFAULT_RESERVED_BYTES} by default.
+     */
+    public void setReservedBytes(long reservedBytes) {
+        this.mReservedBytes = Math.max(0, reservedBytes);
+    }
+
+    /**
+     * @return bytes still needed to download {@code files} into {@code dir}. Space
+     *         already allocated to their partial files counts, while previous versions
+     *         of the files stay until replaced.
+     */
+    public static long getRequiredBytes(File dir, List<UpdateConfig.PackageFile> files) {
+        long required = 0;
+        for (UpdateConfig.PackageFile file : files) {
+            long existing = partFileOf(new File(dir, file.getFilename())).length();
+            required += Math.max(0, file.getSize() - existing);
+        }
+        return required;
+    }
+
+    /**
+     * Checks {@code requiredBytes} more bytes can be written to {@code dir}.
+     *
+     * @throws InsufficientStorageException when there isn't enough free space
+     */
+    public void checkFreeSpace(File dir, long requiredBytes) throws IOException {
+        if (requiredBytes <= 0) {
+            return;
+        }
+        File existing = dir;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (existing == null) {
+            throw new IOException("Can't find a filesystem for " + dir);
+        }
+        long available = existing.getUsableSpace() - mReservedBytes;
+        if (requiredBytes > available) {
+            throw new InsufficientStorageException(dir, requiredBytes, Math.max(0, available));
+        }
+    }
+
+    /**
+     * Sizes {@code file} to {@code size} bytes, allocating the blocks of its missing
+     * part after checking there is enough free space for them. Existing content is
+     * kept.
+     */
+    public void preallocate(File path, RandomAccessFile file, long size) throws IOException {
+        long length = file.length();
+        if (length < size) {
+            checkFreeSpace(path.getAbsoluteFile().getParentFile(), size - length);
+            try {
+                Os.posix_fallocate(file.getFD(), length, size - length);
+            } catch (ErrnoException e) {
+                Log.d(TAG, "Can't preallocate " + path + ", using a sparse file", e);
+            }
+        }
+        if (file.length() != size) {
+            file.setLength(size);
+        }
+    }
+
+    /**
+     * @return file {@code destination} is downloaded to until it's complete
+     */
+    public static File partFileOf(File destination) {
+        return new File(destination.getPath() + PART_SUFFIX);
+    }
+
+    /**
+     * Syncs {@code part} to disk and renames it to {@code destination}, replacing it
+     * atomically.
+     */
+    public static void commit(File part, File destination) throws IOException {
+        try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(part.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(destination.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Replaces the content of {@code destination} with {@code data}, going through a
+     * temporary file.
+     */
+    public static void writeAtomically(File destination, byte[] data) throws IOException {
+        File tmp = new File(destination.getPath() + TMP_SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(tmp)) {
+            output.write(data);
+            output.getFD().sync();
+        }
+        Files.move(tmp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(destination.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Makes a rename in {@code dir} durable. Not all platforms allow syncing a directory,
+     * the rename is still atomic then.
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            Log.d(TAG, "Can't sync directory " + dir, e);
+        }
+    }
+
+    /**
+     * Thrown when a filesystem doesn't have enough free space for a download.
+     */
+    public static class InsufficientStorageException extends IOException {
+        private final long mRequiredBytes;
+        private final long mAvailableBytes;
+
+        public InsufficientStorageException(File dir, long requiredBytes, long availableBytes) {
+            super("Not enough space in " + dir + ": " + requiredBytes + " bytes required, "
+                    + availableBytes + " bytes available");
+            this.mRequiredBytes = requiredBytes;
+            this.mAvailableBytes = availableBytes;
+        }
+
+        public long getRequiredBytes() {
+            return mRequiredBytes;
+        }
+
+        public long getAvailableBytes() {
+            return mAvailableBytes;
+        }
+    }
+}
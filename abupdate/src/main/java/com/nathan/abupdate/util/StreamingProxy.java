@@ -0,0 +1,651 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP server on the loopback interface serving one remote file to update_engine.
+ *
+ * <p>update_engine streams a payload over a single connection, one range after the
+ * other, so every round trip to the server stalls it. The proxy splits the remote file
+ * into chunks and fetches the chunks following the one being read in parallel, over
+ * its own connections. update_engine's range requests are then answered from a bounded
+ * cache of the chunks.</p>
+ *
+ * <p>The cache lives in a file in the {@link #setCacheDir cache directory}, not on the
+ * heap. It has a slot per cached chunk, a chunk is written to its slot while fetched
+ * and read from there when served. Chunks being fetched or served are never evicted,
+ * their slots aren't reused before.</p>
+ *
+ * <p>Usage:</p>
+ *
+ * {@code
+ *   StreamingProxy proxy = new StreamingProxy(transport, url);
+ *   String localUrl = proxy.start();
+ *   // pass localUrl to UpdateEngine#applyPayload, close the proxy when done
+ * }
+ */
+public final class StreamingProxy implements Closeable {
+
+    private static final String TAG = "StreamingProxy";
+
+    /** Default size of the chunks the remote file is fetched in. */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /** Default number of chunks fetched ahead of the one being read. */
+    public static final int DEFAULT_READ_AHEAD_CHUNKS = 8;
+
+    /** Default number of parallel upstream connections. */
+    public static final int DEFAULT_CONNECTIONS = 4;
+
+    /** Maximum length of a request line or header. */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private final DownloadTransport mTransport;
+    private final String mUpstreamUrl;
+    private final int mChunkSize;
+    private final int mReadAheadChunks;
+    private final int mMaxCachedChunks;
+    /** Random path, so other apps can't guess the url of the proxy. */
+    private final String mPath = "/" + UUID.randomUUID();
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private BandwidthLimiter mBandwidthLimiter = BandwidthLimiter.getGlobal();
+
+    private File mCacheDir = new File(System.getProperty("java.io.tmpdir"));
+    private File mCacheFile;
+    private FileChannel mCache;
+
+    /** Chunks by index in access order, fetched or being fetched. Guards the slots. */
+    private final LinkedHashMap<Long, Chunk> mChunks = new LinkedHashMap<>(16, 0.75f, true);
+    /** Slots of the cache file not used by any chunk. */
+    private final ArrayDeque<Integer> mFreeSlots = new ArrayDeque<>();
+    private int mSlotCount;
+    private final Set<Socket> mSockets = ConcurrentHashMap.newKeySet();
+    private final ExecutorService mFetchers;
+    private final ExecutorService mConnections;
+    private ServerSocket mServerSocket;
+    private long mSize;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mServedBytes = new AtomicLong();
+    private final AtomicLong mFetchedBytes = new AtomicLong();
+    private final AtomicLong mWaitNanos = new AtomicLong();
+
+    public StreamingProxy(DownloadTransport transport, String upstreamUrl) {
+        this(transport, upstreamUrl, DEFAULT_CHUNK_SIZE, DEFAULT_READ_AHEAD_CHUNKS,
+                DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * @param chunkSize       size of the chunks the remote file is fetched in
+     * @param readAheadChunks number of chunks fetched ahead of the one being read, about
+     *                        twice as many chunks are cached
+     * @param connections     number of parallel upstream connections
+     */
+    public StreamingProxy(DownloadTransport transport, String upstreamUrl, int chunkSize,
+            int readAheadChunks, int connections) {
+        this.mTransport = transport;
+        this.mUpstreamUrl = upstreamUrl;
+        this.mChunkSize = chunkSize;
+        this.mReadAheadChunks = Math.max(0, readAheadChunks);
+        // Room for the chunks being served, and for the ones ahead of them.
+        this.mMaxCachedChunks = 2 * (mReadAheadChunks + 1);
+        this.mFetchers = Executors.newFixedThreadPool(
+                Math.max(1, connections), daemonThreads("abupdate-proxy-fetch-"));
+        this.mConnections = Executors.newCachedThreadPool(daemonThreads("abupdate-proxy-"));
+    }
+
+    /**
+     * Sets how failed upstream requests are retried, {@link RetryPolicy#DEFAULT} by
+     * default.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the limiter throttling the upstream transfer,
+     * {@link BandwidthLimiter#getGlobal()} by default.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.mBandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Sets the directory of the cache file, {@code java.io.tmpdir} by default. The file
+     * is deleted when the proxy is closed.
+     */
+    public void setCacheDir(File cacheDir) {
+        this.mCacheDir = cacheDir;
+    }
+
+    /**
+     * Looks up the size of the remote file, makes sure the server answers range
+     * requests, and starts listening.
+     *
+     * @return url of the proxied file
+     * @throws IOException when the remote file isn't available, or can only be
+     *                     downloaded as a whole
+     */
+    public synchronized String start() throws IOException {
+        if (mServerSocket != null) {
+            return getUrl();
+        }
+        String acceptRanges;
+        try (DownloadTransport.Response head = mTransport.head(mUpstreamUrl)) {
+            int code = head.getCode();
+            if (code != HttpURLConnection.HTTP_OK || head.getContentLength() <= 0) {
+                throw new IOException("Can't stream " + mUpstreamUrl
+                        + ", server returned HTTP " + code);
+            }
+            mSize = head.getContentLength();
+            acceptRanges = head.getHeader("Accept-Ranges");
+        }
+        if (acceptRanges == null) {
+            // The header is optional, ask for a range to find out.
+            checkRangeRequests();
+        } else if (!"bytes".equalsIgnoreCase(acceptRanges.trim())) {
+            throw new IOException("Can't stream " + mUpstreamUrl
+                    + ", server doesn't accept range requests: " + acceptRanges);
+        }
+        mCacheFile = File.createTempFile("proxy", ".cache", mCacheDir);
+        mCache = FileChannel.open(mCacheFile.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        ServerSocket serverSocket = mServerSocket;
+        mConnections.execute(() -> accept(serverSocket));
+        Log.i(TAG, "Proxying " + mUpstreamUrl + " (" + mSize + " bytes) at " + getUrl());
+        return getUrl();
+    }
+
+    private void checkRangeRequests() throws IOException {
+        Map<String, String> headers = Collections.singletonMap("Range", "bytes=0-0");
+        try (DownloadTransport.Response response = mTransport.get(mUpstreamUrl, headers)) {
+            if (response.getCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Can't stream " + mUpstreamUrl + ", server returned HTTP "
+                        + response.getCode() + " to a range request");
+            }
+        }
+    }
+
+    /**
+     * @return url of the proxied file, once started
+     */
+    public synchronized String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + mPath;
+    }
+
+    /**
+     * @return number of bytes fetched from upstream so far
+     */
+    long getFetchedBytes() {
+        return mFetchedBytes.get();
+    }
+
+    /**
+     * Stops listening, closes the open connections and deletes the cache.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            closeQuietly(mServerSocket);
+        }
+        for (Socket socket : mSockets) {
+            closeQuietly(socket);
+        }
+        mFetchers.shutdownNow();
+        mConnections.shutdownNow();
+        synchronized (mChunks) {
+            mChunks.clear();
+            mFreeSlots.clear();
+        }
+        closeQuietly(mCache);
+        if (mCacheFile != null) {
+            mCacheFile.delete();
+        }
+        Log.i(TAG, "Closed proxy of " + mUpstreamUrl + ": served " + mServedBytes
+                + " bytes, fetched " + mFetchedBytes + " bytes, waited "
+                + mWaitNanos.get() / 1000000 + " ms for upstream");
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!mClosed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Log.e(TAG, "Proxy of " + mUpstreamUrl + " stopped accepting", e);
+                }
+                return;
+            }
+            mSockets.add(socket);
+            mConnections.execute(() -> serve(socket));
+        }
+    }
+
+    /**
+     * Answers the requests sent over one keep-alive connection.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                respond(requestLine, headers, out, keepAlive);
+                out.flush();
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.d(TAG, "Connection to the proxy of " + mUpstreamUrl + " failed", e);
+            }
+        } finally {
+            mSockets.remove(socket);
+        }
+    }
+
+    private void respond(String requestLine, Map<String, String> headers, OutputStream out,
+            boolean keepAlive) throws IOException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !parts[1].equals(mPath)) {
+            writeHead(out, HttpURLConnection.HTTP_NOT_FOUND, "Not Found", 0, null, keepAlive);
+            return;
+        }
+        boolean get = "GET".equals(parts[0]);
+        if (!get && !"HEAD".equals(parts[0])) {
+            writeHead(out, HttpURLConnection.HTTP_BAD_METHOD, "Method Not Allowed", 0, null,
+                    keepAlive);
+            return;
+        }
+        long[] range = parseRange(headers.get("range"), mSize);
+        if (range == null) {
+            writeHead(out, HttpURLConnection.HTTP_OK, "OK", mSize, null, keepAlive);
+            range = new long[] {0, mSize - 1};
+        } else if (range.length == 0) {
+            writeHead(out, 416, "Range Not Satisfiable", 0, "bytes */" + mSize, keepAlive);
+            return;
+        } else {
+            writeHead(out, HttpURLConnection.HTTP_PARTIAL, "Partial Content",
+                    range[1] - range[0] + 1,
+                    "bytes " + range[0] + "-" + range[1] + "/" + mSize, keepAlive);
+        }
+        if (get) {
+            copy(out, range[0], range[1]);
+        }
+    }
+
+    private static void writeHead(OutputStream out, int code, String reason,
+            long contentLength, String contentRange, boolean keepAlive) throws IOException {
+        StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n")
+                .append("Content-Type: application/octet-stream\r\n")
+                .append("Content-Length: ").append(contentLength).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Connection: ").append(keepAlive ? "keep-alive" : "close")
+                .append("\r\n");
+        if (contentRange != null) {
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses a single {@code Range} header.
+     *
+     * @return {@code {first, last}} byte positions, an empty array if the range can't
+     *         be satisfied, or {@code null} to send the whole file
+     */
+    static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            // Multiple ranges aren't needed by update_engine, answering with the whole
+            // file is allowed.
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1
+                        ? size - 1
+                        : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (first >= size || first > last) {
+                return new long[0];
+            }
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes bytes {@code first} to {@code last} of the remote file from the cache,
+     * fetching the chunks ahead while doing so.
+     */
+    private void copy(OutputStream out, long first, long last) throws IOException {
+        byte[] buffer = BufferPool.getDefault().acquire(BufferPool.MIN_BUFFER_SIZE * 4);
+        try {
+            long position = first;
+            while (position <= last) {
+                long index = position / mChunkSize;
+                Chunk chunk = chunk(index, true);
+                try {
+                    for (long ahead = index + 1; ahead <= index + mReadAheadChunks
+                            && ahead * mChunkSize < mSize; ahead++) {
+                        chunk(ahead, false);
+                    }
+                    int length = await(chunk.mFetched);
+                    int from = (int) (position - index * mChunkSize);
+                    int count = (int) Math.min(length - from, last - position + 1);
+                    readSlot(chunk.mSlot, from, count, buffer, out);
+                    position += count;
+                    mServedBytes.addAndGet(count);
+                } finally {
+                    unpin(chunk);
+                }
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+    }
+
+    /**
+     * Chunk of the remote file, cached in a slot of the cache file.
+     */
+    private static final class Chunk {
+        final long mIndex;
+        final int mSlot;
+        /** Completes with the length of the chunk once it is in its slot. */
+        CompletableFuture<Integer> mFetched;
+        /** Number of requests serving the chunk, guarded by {@code mChunks}. */
+        int mReaders;
+        /** Whether the chunk left the cache, guarded by {@code mChunks}. */
+        boolean mDropped;
+
+        Chunk(long index, int slot) {
+            this.mIndex = index;
+            this.mSlot = slot;
+        }
+    }
+
+    /**
+     * @param pin whether the chunk stays in the cache until {@link #unpin unpinned}
+     * @return the cached chunk, fetching it if needed
+     */
+    private Chunk chunk(long index, boolean pin) {
+        synchronized (mChunks) {
+            Chunk chunk = mChunks.get(index);
+            if (chunk == null) {
+                Integer free = mFreeSlots.poll();
+                chunk = new Chunk(index, free != null ? free : mSlotCount++);
+                mChunks.put(index, chunk);
+                Chunk fetching = chunk;
+                fetching.mFetched = DownloadExecutors.supply(() -> fetch(fetching), mFetchers);
+                // Failed chunks are fetched again by the next request.
+                fetching.mFetched.whenComplete((length, e) -> {
+                    if (e != null) {
+                        synchronized (mChunks) {
+                            if (mChunks.remove(index, fetching)) {
+                                drop(fetching);
+                            }
+                        }
+                    }
+                });
+            }
+            if (pin) {
+                chunk.mReaders++;
+            }
+            evict();
+            return chunk;
+        }
+    }
+
+    private void unpin(Chunk chunk) {
+        synchronized (mChunks) {
+            chunk.mReaders--;
+            if (chunk.mDropped && chunk.mReaders == 0) {
+                mFreeSlots.add(chunk.mSlot);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used chunks above the cache size. Chunks still being
+     * fetched or served are skipped, the cache may exceed its size until they are done.
+     */
+    private void evict() {
+        Iterator<Chunk> eldest = mChunks.values().iterator();
+        while (mChunks.size() > mMaxCachedChunks && eldest.hasNext()) {
+            Chunk chunk = eldest.next();
+            if (chunk.mFetched.isDone() && chunk.mReaders == 0) {
+                eldest.remove();
+                drop(chunk);
+            }
+        }
+    }
+
+    /** Frees the slot of a chunk removed from the cache once nobody reads it. */
+    private void drop(Chunk chunk) {
+        chunk.mDropped = true;
+        if (chunk.mReaders == 0) {
+            mFreeSlots.add(chunk.mSlot);
+        }
+    }
+
+    private int await(CompletableFuture<Integer> future) throws IOException {
+        long start = future.isDone() ? 0 : System.nanoTime();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while proxying " + mUpstreamUrl);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Can't proxy " + mUpstreamUrl, cause);
+        } finally {
+            if (start != 0) {
+                mWaitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code count} bytes at {@code from} of the chunk in {@code slot} to
+     * {@code out}.
+     */
+    private void readSlot(int slot, int from, int count, byte[] buffer, OutputStream out)
+            throws IOException {
+        long position = (long) slot * mChunkSize + from;
+        long end = position + count;
+        while (position < end) {
+            ByteBuffer dst = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length,
+                    end - position));
+            int read = mCache.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Cache of " + mUpstreamUrl + " truncated");
+            }
+            out.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * Fetches {@code chunk} into its slot.
+     *
+     * @return length of the chunk
+     */
+    private int fetch(Chunk chunk) throws IOException {
+        long offset = chunk.mIndex * mChunkSize;
+        int length = (int) Math.min(mChunkSize, mSize - offset);
+        long slotPosition = (long) chunk.mSlot * mChunkSize;
+        return mRetryPolicy.execute("Fetching range " + offset + "+" + length, () -> {
+            Map<String, String> headers = Collections.singletonMap(
+                    "Range", "bytes=" + offset + "-" + (offset + length - 1));
+            try (DownloadTransport.Response response = mTransport.get(mUpstreamUrl, headers)) {
+                int code = response.getCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Can't fetch range " + offset + "+" + length
+                            + " of " + mUpstreamUrl + ", server returned HTTP " + code);
+                }
+                long start = FileDownloader.parseContentRangeStart(
+                        response.getHeader("Content-Range"));
+                if (start != offset) {
+                    throw new IOException("Can't fetch range " + offset + "+" + length
+                            + " of " + mUpstreamUrl + ", server returned range starting at "
+                            + start);
+                }
+                InputStream input = response.getBody();
+                RetryPolicy.StallDetector stallDetector = mRetryPolicy.newStallDetector();
+                byte[] data = BufferPool.getDefault().acquire();
+                try {
+                    int total = 0;
+                    while (total < length) {
+                        if (mClosed) {
+                            throw new InterruptedIOException(
+                                    "Proxy of " + mUpstreamUrl + " closed");
+                        }
+                        int count = input.read(data, 0, Math.min(data.length, length - total));
+                        if (count < 0) {
+                            throw new IOException("Can't fetch range " + offset + "+" + length
+                                    + " of " + mUpstreamUrl + ", got only " + total + " bytes");
+                        }
+                        stallDetector.onProgress(count);
+                        mBandwidthLimiter.acquire(count, () -> mClosed);
+                        ByteBuffer src = ByteBuffer.wrap(data, 0, count);
+                        while (src.hasRemaining()) {
+                            mCache.write(src, slotPosition + total + src.position());
+                        }
+                        total += count;
+                    }
+                } finally {
+                    BufferPool.getDefault().release(data);
+                }
+                mFetchedBytes.addAndGet(length);
+                return length;
+            }
+        }, () -> mClosed);
+    }
+
+    /**
+     * @return line without its terminator, or {@code null} at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.US_ASCII);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to close " + closeable, e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nathan.abupdate.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Index of selected entries of a zip file, e.g. an OTA package, with the exact position
+ * of their data.
+ *
+ * <p>The end of central directory record is located at the end of the file, and the
+ * central directory is read with one positional read. It is scanned without creating
+ * objects for the entries that are not asked for; sizes are taken from it, so entries
+ * written with data descriptors are handled. The data offset of every requested entry
+ * is then computed from its own local header, whose extra field may differ from the
+ * one in the central directory.</p>
+ *
+ * <p>Zip64 files, e.g. full OTA packages larger than 4 GB, are supported: the Zip64 end
+ * of central directory record and the Zip64 extended information extra field of the
+ * entries are read when the 32-bit fields are saturated.</p>
+ *
+ * <p>Usage:</p>
+ *
+ * {@code
+ *   ZipIndex index = ZipIndex.read(ZipIndex.Source.of(channel),
+ *           Arrays.asList("payload.bin", "payload_properties.txt"));
+ *   ZipIndex.Entry payload = index.getEntry("payload.bin");
+ * }
+ */
+public final class ZipIndex {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /** Marks sizes and offsets stored in the Zip64 extra field instead. */
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_SHORT = 0xffff;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    /**
+     * Random access to the bytes of a zip file.
+     */
+    public interface Source {
+
+        /** @return size of the file */
+        long size() throws IOException;
+
+        /**
+         * Reads {@code dst.remaining()} bytes at {@code position}.
+         *
+         * @throws EOFException when the file ends before
+         */
+        void read(long position, ByteBuffer dst) throws IOException;
+
+        /**
+         * @return source reading {@code channel} with positional reads, which don't
+         *         move the position of the channel
+         */
+        static Source of(FileChannel channel) {
+            return new Source() {
+                @Override
+                public long size() throws IOException {
+                    return channel.size();
+                }
+
+                @Override
+                public void read(long position, ByteBuffer dst) throws IOException {
+                    while (dst.hasRemaining()) {
+                        int count = channel.read(dst, position);
+                        if (count < 0) {
+                            throw new EOFException("Unexpected end of zip file");
+                        }
+                        position += count;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * An indexed entry.
+     */
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCrc;
+        private long mCompressedSize;
+        private long mUncompressedSize;
+        private long mLocalHeaderOffset;
+        private long mDataOffset;
+
+        Entry(String name, int method, long crc, long compressedSize, long uncompressedSize,
+                long localHeaderOffset) {
+            this.mName = name;
+            this.mMethod = method;
+            this.mCrc = crc;
+            this.mCompressedSize = compressedSize;
+            this.mUncompressedSize = uncompressedSize;
+            this.mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getUncompressedSize() {
+            return mUncompressedSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+
+        /** @return position of the first byte of the (compressed) data in the file */
+        public long getDataOffset() {
+            return mDataOffset;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{name=" + mName + ", method=" + mMethod
+                    + ", dataOffset=" + mDataOffset + ", compressedSize=" + mCompressedSize
+                    + "}";
+        }
+    }
+
+    private final Map<String, Entry> mEntries;
+    private final long mTotalEntries;
+
+    private ZipIndex(Map<String, Entry> entries, long totalEntries) {
+        this.mEntries = entries;
+        this.mTotalEntries = totalEntries;
+    }
+
+    /**
+     * @return the entry named {@code name}, or {@code null} if it's not in the zip file
+     *         or wasn't requested
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /** @return requested entries found in the zip file, in central directory order */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(mEntries.values());
+    }
+
+    /** @return number of entries in the zip file */
+    public long getTotalEntries() {
+        return mTotalEntries;
+    }
+
+    /**
+     * Indexes the entries named {@code names} of the zip file read from {@code source}.
+     *
+     * @throws IOException when the file can't be read or isn't a valid zip file
+     */
+    public static ZipIndex read(Source source, Collection<String> names) throws IOException {
+        long size = source.size();
+        long[] directory = findCentralDirectory(source, size);
+        long directoryOffset = directory[0];
+        long directorySize = directory[1];
+        long totalEntries = directory[2];
+        if (directoryOffset + directorySize > size || directorySize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid zip file, central directory out of bounds");
+        }
+        ByteBuffer cd = ByteBuffer.allocate((int) directorySize).order(ByteOrder.LITTLE_ENDIAN);
+        source.read(directoryOffset, cd);
+        cd.flip();
+
+        List<byte[]> wanted = new ArrayList<>();
+        for (String name : names) {
+            wanted.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        for (long i = 0; i < totalEntries && entries.size() < wanted.size(); i++) {
+            int header = cd.position();
+            if (cd.remaining() < CENTRAL_HEADER_SIZE
+                    || cd.getInt(header) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid zip file, bad central directory entry " + i);
+            }
+            int nameLength = cd.getShort(header + 28) & 0xffff;
+            int extraLength = cd.getShort(header + 30) & 0xffff;
+            int commentLength = cd.getShort(header + 32) & 0xffff;
+            int next = header + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > cd.limit()) {
+                throw new IOException("Invalid zip file, truncated central directory");
+            }
+            byte[] match = match(cd, header + CENTRAL_HEADER_SIZE, nameLength, wanted);
+            if (match != null) {
+                Entry entry = new Entry(
+                        new String(match, StandardCharsets.UTF_8),
+                        cd.getShort(header + 10) & 0xffff,
+                        cd.getInt(header + 16) & ZIP64_MAGIC,
+                        cd.getInt(header + 20) & ZIP64_MAGIC,
+                        cd.getInt(header + 24) & ZIP64_MAGIC,
+                        cd.getInt(header + 42) & ZIP64_MAGIC);
+                if (entry.mCompressedSize == ZIP64_MAGIC
+                        || entry.mUncompressedSize == ZIP64_MAGIC
+                        || entry.mLocalHeaderOffset == ZIP64_MAGIC) {
+                    readZip64Extra(entry, cd, header + CENTRAL_HEADER_SIZE + nameLength,
+                            extraLength, (cd.getShort(header + 34) & 0xffff) == ZIP64_MAGIC_SHORT);
+                }
+                entries.put(entry.mName, entry);
+            }
+            cd.position(next);
+        }
+
+        ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (Entry entry : entries.values()) {
+            local.clear();
+            source.read(entry.mLocalHeaderOffset, local);
+            entry.mDataOffset = dataOffset(entry, local);
+            if (entry.mDataOffset + entry.mCompressedSize > directoryOffset) {
+                throw new IOException("Invalid zip file, data of " + entry.mName
+                        + " overlaps the central directory");
+            }
+        }
+        return new ZipIndex(entries, totalEntries);
+    }
+
+    /**
+     * Replaces the saturated fields of {@code entry} with the values of its Zip64
+     * extended information extra field, which holds them in a fixed order.
+     *
+     * @param zip64Disk whether the disk number field is saturated too
+     */
+    private static void readZip64Extra(Entry entry, ByteBuffer cd, int offset, int length,
+            boolean zip64Disk) throws IOException {
+        int end = offset + length;
+        while (offset + 4 <= end) {
+            int id = cd.getShort(offset) & 0xffff;
+            int size = cd.getShort(offset + 2) & 0xffff;
+            int data = offset + 4;
+            if (data + size > end) {
+                break;
+            }
+            if (id == ZIP64_EXTRA_ID) {
+                int needed = (entry.mUncompressedSize == ZIP64_MAGIC ? 8 : 0)
+                        + (entry.mCompressedSize == ZIP64_MAGIC ? 8 : 0)
+                        + (entry.mLocalHeaderOffset == ZIP64_MAGIC ? 8 : 0)
+                        + (zip64Disk ? 4 : 0);
+                if (size < needed) {
+                    break;
+                }
+                if (entry.mUncompressedSize == ZIP64_MAGIC) {
+                    entry.mUncompressedSize = unsigned64(cd, data);
+                    data += 8;
+                }
+                if (entry.mCompressedSize == ZIP64_MAGIC) {
+                    entry.mCompressedSize = unsigned64(cd, data);
+                    data += 8;
+                }
+                if (entry.mLocalHeaderOffset == ZIP64_MAGIC) {
+                    entry.mLocalHeaderOffset = unsigned64(cd, data);
+                }
+                return;
+            }
+            offset = data + size;
+        }
+        throw new IOException("Invalid zip file, bad Zip64 extra field of " + entry.mName);
+    }
+
+    private static long unsigned64(ByteBuffer buffer, int offset) throws IOException {
+        long value = buffer.getLong(offset);
+        if (value < 0) {
+            throw new IOException("Invalid zip file, Zip64 value out of range");
+        }
+        return value;
+    }
+
+    /**
+     * @param local the local file header of {@code entry}
+     * @return position of the data of {@code entry}
+     */
+    static long dataOffset(Entry entry, ByteBuffer local) throws IOException {
+        if (local.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid zip file, bad local header of " + entry.mName);
+        }
+        int nameLength = local.getShort(26) & 0xffff;
+        int extraLength = local.getShort(28) & 0xffff;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * @return the element of {@code wanted} equal to the {@code length} bytes at
+     *         {@code offset} of {@code buffer}, or {@code null}
+     */
+    private static byte[] match(ByteBuffer buffer, int offset, int length, List<byte[]> wanted) {
+        for (byte[] name : wanted) {
+            if (name.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && buffer.get(offset + i) == name[i]) {
+                i++;
+            }
+            if (i == length) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Locates the end of central directory record, which is followed by a comment of up
+     * to 64 KB, by scanning the end of the file backwards.
+     *
+     * @return {@code {offset, size, entry count}} of the central directory
+     */
+    private static long[] findCentralDirectory(Source source, long size) throws IOException {
+        if (size < EOCD_SIZE) {
+            throw new IOException("Invalid zip file, too small");
+        }
+        int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = size - tailSize;
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        source.read(tailOffset, tail);
+        for (int eocd = tailSize - EOCD_SIZE; eocd >= 0; eocd--) {
+            if (tail.getInt(eocd) != EOCD_SIGNATURE) {
+                continue;
+            }
+            int commentLength = tail.getShort(eocd + 20) & 0xffff;
+            if (eocd + EOCD_SIZE + commentLength != tailSize) {
+                // Signature bytes inside the comment.
+                continue;
+            }
+            if ((tail.getShort(eocd + 4) & 0xffff) != 0
+                    || (tail.getShort(eocd + 6) & 0xffff) != 0) {
+                throw new IOException("Multi-disk zip files are not supported");
+            }
+            long entries = tail.getShort(eocd + 10) & 0xffff;
+            long directorySize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+            long directoryOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+            if (entries == ZIP64_MAGIC_SHORT || directorySize == ZIP64_MAGIC
+                    || directoryOffset == ZIP64_MAGIC) {
+                return findZip64CentralDirectory(source, tailOffset + eocd);
+            }
+            return new long[] {directoryOffset, directorySize, entries};
+        }
+        throw new IOException("Invalid zip file, end of central directory not found");
+    }
+
+    /**
+     * Reads the Zip64 end of central directory record through the locator that precedes
+     * the end of central directory record at {@code eocdOffset}.
+     *
+     * @return {@code {offset, size, entry count}} of the central directory
+     */
+    private static long[] findZip64CentralDirectory(Source source, long eocdOffset)
+            throws IOException {
+        if (eocdOffset < ZIP64_LOCATOR_SIZE + ZIP64_EOCD_SIZE) {
+            throw new IOException("Invalid zip file, Zip64 locator not found");
+        }
+        ByteBuffer locator = ByteBuffer.allocate(ZIP64_LOCATOR_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        source.read(eocdOffset - ZIP64_LOCATOR_SIZE, locator);
+        if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+            throw new IOException("Invalid zip file, Zip64 locator not found");
+        }
+        if (locator.getInt(4) != 0 || locator.getInt(16) > 1) {
+            throw new IOException("Multi-disk zip files are not supported");
+        }
+        long recordOffset = unsigned64(locator, 8);
+        if (recordOffset > eocdOffset - ZIP64_LOCATOR_SIZE - ZIP64_EOCD_SIZE) {
+            throw new IOException("Invalid zip file, Zip64 record out of bounds");
+        }
+        ByteBuffer record = ByteBuffer.allocate(ZIP64_EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        source.read(recordOffset, record);
+        if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+            throw new IOException("Invalid zip file, bad Zip64 end of central directory");
+        }
+        if (record.getInt(16) != 0 || record.getInt(20) != 0) {
+            throw new IOException("Multi-disk zip files are not supported");
+        }
+        return new long[] {unsigned64(record, 48), unsigned64(record, 40),
+                unsigned64(record, 32)};
+    }
+
+    /**
+     * Reads and, if needed, inflates the data of a small {@code entry}.
+     */
+    public static byte[] readEntry(Source source, Entry entry) throws IOException {
+        if (entry.mUncompressedSize > Integer.MAX_VALUE
+                || entry.mCompressedSize > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + entry.mName + " is too large to be read");
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) entry.mCompressedSize);
+        source.read(entry.mDataOffset, data);
+        if (entry.mMethod == ZipEntry.STORED) {
+            return data.array();
+        }
+        if (entry.mMethod != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod
+                    + " of " + entry.mName);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            byte[] content = new byte[(int) entry.mUncompressedSize];
+            int inflated = 0;
+            while (inflated < content.length) {
+                int count = inflater.inflate(content, inflated, content.length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != content.length) {
+                throw new IOException("Corrupt data of " + entry.mName);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt data of " + entry.mName, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.nathan.abupdate;
+
+import com.nathan.abupdate.util.CancellableDownload;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Host tests of {@link PrepareStages}.
+ */
+public class PrepareStagesTest {
+
+    @Test
+    public void failWith_stopsStartedStagesAndFailsPhase() throws Exception {
+        PrepareStages stages = new PrepareStages();
+        AtomicInteger aborted = new AtomicInteger();
+        CompletableFuture<Void> running = new CompletableFuture<>();
+        CompletableFuture<Void> phase = stages.failFast(
+                stages.add("metadata", running, new CancellableDownload() {
+                    @Override
+                    public void abort() {
+                        aborted.incrementAndGet();
+                    }
+
+                    @Override
+                    public void cancel() {
+                        fail("Partial files deleted");
+                    }
+                }));
+        IllegalArgumentException error = new IllegalArgumentException("bad METADATA_HASH");
+
+        CompletableFuture<String> failed = stages.failWith(error);
+
+        assertEquals(1, aborted.get());
+        assertFalse(stages.isCancelled());
+        assertTrue(phase.isCompletedExceptionally());
+        try {
+            failed.get();
+            fail("Not failed");
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void cancel_afterFailure_deletesPartialFiles() {
+        PrepareStages stages = new PrepareStages();
+        AtomicInteger aborted = new AtomicInteger();
+        AtomicInteger cancelled = new AtomicInteger();
+        stages.add("pre-streaming files", new CompletableFuture<Void>(),
+                new CancellableDownload() {
+                    @Override
+                    public void abort() {
+                        aborted.incrementAndGet();
+                    }
+
+                    @Override
+                    public void cancel() {
+                        cancelled.incrementAndGet();
+                    }
+                });
+        stages.failWith(new IllegalArgumentException("bad METADATA_HASH"));
+
+        stages.cancel(true);
+
+        assertEquals(1, aborted.get());
+        assertEquals(1, cancelled.get());
+        assertTrue(stages.isCancelled());
+    }
+}
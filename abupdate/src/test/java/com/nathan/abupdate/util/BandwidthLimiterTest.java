@@ -0,0 +1,175 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Host tests of {@link BandwidthLimiter}. Rates are checked against wall time with wide
+ * margins, the limiter waits at least as long as the rate requires.
+ */
+public class BandwidthLimiterTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void acquire_unlimited_doesNotWait() throws InterruptedIOException {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED);
+
+        long millis = millis(() -> limiter.acquire(1024L * MB));
+
+        assertTrue(millis + " ms", millis < 100);
+    }
+
+    @Test
+    public void acquire_rate_boundsThroughput() throws InterruptedIOException {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(4 * MB);
+
+        long millis = millis(() -> {
+            for (int i = 0; i < 32; i++) {
+                limiter.acquire(64 * 1024);
+            }
+        });
+
+        // 2 MB at 4 MB/s.
+        assertTrue(millis + " ms", millis >= 450 && millis < 2000);
+    }
+
+    @Test
+    public void acquire_afterIdle_burstCapped() throws Exception {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(4 * MB);
+        TimeUnit.MILLISECONDS.sleep(1000);
+
+        long millis = millis(() -> limiter.acquire(3 * MB));
+
+        // 750 ms worth of tokens, only 250 ms of them saved up while idle.
+        assertTrue(millis + " ms", millis >= 450 && millis < 2000);
+    }
+
+    @Test
+    public void acquire_globalRate_boundsPerDownloadLimiter() throws InterruptedIOException {
+        BandwidthLimiter global = BandwidthLimiter.getGlobal();
+        global.setBytesPerSecond(4 * MB);
+        try {
+            BandwidthLimiter limiter = BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED);
+
+            long millis = millis(() -> limiter.acquire(3 * MB));
+
+            assertTrue(millis + " ms", millis >= 450 && millis < 2000);
+        } finally {
+            global.setBytesPerSecond(BandwidthLimiter.UNLIMITED);
+        }
+    }
+
+    @Test
+    public void setBytesPerSecond_forgetsDebtOfOldRate() throws Exception {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(MB);
+        // Takes a burst of tokens at the old rate, and waits for the rest of 10 s worth.
+        CompletableFuture<Void> waiting = acquireAsync(limiter, 10 * MB, () -> false);
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        limiter.setBytesPerSecond(100 * MB);
+        long millis = millis(() -> limiter.acquire(MB));
+
+        assertTrue(millis + " ms", millis < 1000);
+        waiting.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void setBytesPerSecond_waitingThread_picksUpNewRate() throws Exception {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(64 * 1024);
+        // One burst is free, the second one would take 1 s at the old rate.
+        long start = System.nanoTime();
+        CompletableFuture<Void> waiting = acquireAsync(limiter, 128 * 1024, () -> false);
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        limiter.setBytesPerSecond(64 * MB);
+        waiting.get(5, TimeUnit.SECONDS);
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis + " ms", millis < 500);
+    }
+
+    @Test
+    public void acquire_aborted_stopsWaiting() throws Exception {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(64 * 1024);
+        AtomicBoolean aborted = new AtomicBoolean();
+        long start = System.nanoTime();
+        CompletableFuture<Void> waiting = acquireAsync(limiter, 10 * MB, aborted::get);
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        aborted.set(true);
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            fail("Acquired 160 s of tokens");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis + " ms", millis < 500);
+    }
+
+    @Test
+    public void acquire_aborted_debtCappedAtOneBurst() throws Exception {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(4 * MB);
+        AtomicBoolean aborted = new AtomicBoolean();
+        CompletableFuture<Void> waiting = acquireAsync(limiter, 100 * MB, aborted::get);
+        TimeUnit.MILLISECONDS.sleep(100);
+        aborted.set(true);
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            fail("Acquired 25 s of tokens");
+        } catch (ExecutionException expected) {
+            // Aborted.
+        }
+
+        long millis = millis(() -> limiter.acquire(64 * 1024));
+
+        // The aborted transfer didn't leave 25 s of tokens to pay for.
+        assertTrue(millis + " ms", millis < 1000);
+    }
+
+    @Test
+    public void setBytesPerSecond_negative_throws() {
+        BandwidthLimiter limiter = BandwidthLimiter.newLimiter(MB);
+        try {
+            limiter.setBytesPerSecond(-1);
+            fail("Accepted a negative rate");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(MB, limiter.getBytesPerSecond());
+        }
+    }
+
+    private interface Transfer {
+        void run() throws InterruptedIOException;
+    }
+
+    private static CompletableFuture<Void> acquireAsync(BandwidthLimiter limiter, long count,
+            BooleanSupplier aborted) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        new Thread(() -> {
+            try {
+                limiter.acquire(count, aborted);
+                done.complete(null);
+            } catch (InterruptedIOException e) {
+                done.completeExceptionally(e);
+            }
+        }).start();
+        return done;
+    }
+
+    private static long millis(Transfer transfer) throws InterruptedIOException {
+        long start = System.nanoTime();
+        transfer.run();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,153 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Host tests of {@link BufferPool}.
+ */
+public class BufferPoolTest {
+
+    /** Size of the file copied by the benchmark, {@code -Dabupdate.benchmark.mb=}. */
+    private static final int BENCHMARK_MB = Integer.getInteger("abupdate.benchmark.mb", 64);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void indexOf_roundsUpToPooledSize() {
+        assertEquals(0, BufferPool.indexOf(1));
+        assertEquals(0, BufferPool.indexOf(BufferPool.MIN_BUFFER_SIZE));
+        assertEquals(1, BufferPool.indexOf(BufferPool.MIN_BUFFER_SIZE + 1));
+        assertEquals(1, BufferPool.indexOf(2 * BufferPool.MIN_BUFFER_SIZE));
+        assertEquals(2, BufferPool.indexOf(2 * BufferPool.MIN_BUFFER_SIZE + 1));
+        assertEquals(5, BufferPool.indexOf(BufferPool.MAX_BUFFER_SIZE / 2));
+        assertEquals(6, BufferPool.indexOf(BufferPool.MAX_BUFFER_SIZE / 2 + 1));
+        assertEquals(6, BufferPool.indexOf(BufferPool.MAX_BUFFER_SIZE));
+    }
+
+    @Test
+    public void indexOf_everySize_smallestHoldingIt() {
+        for (int size = 1; size <= BufferPool.MAX_BUFFER_SIZE; size += 511) {
+            int pooled = BufferPool.MIN_BUFFER_SIZE << BufferPool.indexOf(size);
+            assertTrue("size " + size, pooled >= size);
+            assertTrue("size " + size,
+                    pooled == BufferPool.MIN_BUFFER_SIZE || pooled / 2 < size);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indexOf_tooLarge_throws() {
+        BufferPool.indexOf(BufferPool.MAX_BUFFER_SIZE + 1);
+    }
+
+    @Test
+    public void bufferSizeFor_targetsReadTime() {
+        // Unknown throughput.
+        assertEquals(64 * 1024, BufferPool.bufferSizeFor(0));
+        // 100 KB/s wants 2 KB per 20 ms read, the smallest buffer.
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.bufferSizeFor(100 * 1024));
+        // 5 MB/s wants ~102 KB.
+        assertEquals(128 * 1024, BufferPool.bufferSizeFor(5L * 1024 * 1024));
+        // 1 GB/s is capped.
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, BufferPool.bufferSizeFor(1L << 30));
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, BufferPool.bufferSizeFor(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void acquire_afterRelease_reusesBuffer() {
+        BufferPool pool = new BufferPool();
+        byte[] buffer = pool.acquire(100 * 1024);
+        assertEquals(128 * 1024, buffer.length);
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(128 * 1024));
+        assertNotSame(buffer, pool.acquire(128 * 1024));
+    }
+
+    @Test
+    public void release_foreignBuffer_dropped() {
+        BufferPool pool = new BufferPool();
+        byte[] foreign = new byte[100 * 1024];
+        pool.release(foreign);
+        pool.release(new byte[2 * BufferPool.MAX_BUFFER_SIZE]);
+
+        assertEquals(128 * 1024, pool.acquire(100 * 1024).length);
+    }
+
+    @Test
+    public void acquire_followsRecordedThroughput() {
+        BufferPool pool = new BufferPool();
+        assertEquals(64 * 1024, pool.acquire().length);
+
+        // 50 MB in one second.
+        pool.recordTransfer(50L * 1024 * 1024, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.acquire().length);
+
+        // Short transfers don't count.
+        pool.recordTransfer(1024, TimeUnit.SECONDS.toNanos(10));
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.acquire().length);
+    }
+
+    /**
+     * Reads a file through each pooled buffer size and prints the read calls per MB,
+     * each one a {@code read} syscall on a {@link FileInputStream}, and the throughput.
+     * The 4 KB buffer the downloaders used before is measured for comparison.
+     *
+     * <p>Only runs with {@code -Dabupdate.benchmark=true}.</p>
+     */
+    @Test
+    public void benchmark_readsPerMbAndThroughput() throws IOException {
+        assumeTrue(Boolean.getBoolean("abupdate.benchmark"));
+        long size = BENCHMARK_MB * 1024L * 1024L;
+        File file = mFolder.newFile("payload.bin");
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            byte[] block = FileDownloaderTest.random(1024 * 1024, 1);
+            for (long written = 0; written < size; written += block.length) {
+                output.write(block);
+            }
+        }
+        BufferPool pool = new BufferPool();
+        StringBuilder report = new StringBuilder("reads of " + BENCHMARK_MB + " MB:");
+        for (int bufferSize = 4 * 1024; bufferSize <= BufferPool.MAX_BUFFER_SIZE;
+                bufferSize *= 2) {
+            long reads = 0;
+            long bestNanos = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                byte[] buffer = bufferSize < BufferPool.MIN_BUFFER_SIZE
+                        ? new byte[bufferSize] : pool.acquire(bufferSize);
+                long start = System.nanoTime();
+                reads = 0;
+                long total = 0;
+                try (InputStream input = new FileInputStream(file)) {
+                    int count;
+                    while ((count = input.read(buffer)) > 0) {
+                        total += count;
+                        reads++;
+                    }
+                }
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                pool.release(buffer);
+                assertEquals(size, total);
+            }
+            report.append(String.format("\n  %5d KB buffer: %6.1f reads/MB, %7.1f MB/s",
+                    bufferSize / 1024, reads / (double) BENCHMARK_MB,
+                    BENCHMARK_MB / (bestNanos / 1e9)));
+        }
+        System.out.println(report);
+    }
+}
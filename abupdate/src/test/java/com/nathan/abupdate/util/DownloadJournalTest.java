@@ -0,0 +1,144 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Host tests of {@link DownloadJournal}.
+ */
+public class DownloadJournalTest {
+
+    private static final String URL = "https://example.com/update.zip";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void markCompleted_overlappingAndAdjacentRanges_merged() throws IOException {
+        DownloadJournal journal = DownloadJournal.open(destination(0), URL, 10000);
+
+        journal.markCompleted(1000, 1000);
+        journal.markCompleted(1500, 1000);
+        journal.markCompleted(2500, 500);
+
+        assertEquals(2000, journal.getCompleted(1000));
+        assertEquals(500, journal.getCompleted(2500));
+        assertEquals(0, journal.getCompleted(0));
+        assertEquals(0, journal.getCompleted(3000));
+    }
+
+    @Test
+    public void markCompleted_rangeBridgingOthers_mergesAll() throws IOException {
+        DownloadJournal journal = DownloadJournal.open(destination(0), URL, 10000);
+        journal.markCompleted(0, 100);
+        journal.markCompleted(200, 100);
+        journal.markCompleted(400, 100);
+
+        journal.markCompleted(50, 400);
+
+        assertEquals(500, journal.getCompleted(0));
+    }
+
+    @Test
+    public void markCompleted_rangeInsideAnother_unchanged() throws IOException {
+        DownloadJournal journal = DownloadJournal.open(destination(0), URL, 10000);
+        journal.markCompleted(0, 1000);
+
+        journal.markCompleted(100, 100);
+        journal.markCompleted(500, 0);
+
+        assertEquals(1000, journal.getCompleted(0));
+        assertEquals(900, journal.getCompleted(100));
+    }
+
+    @Test
+    public void save_open_restoresRangesAndValidator() throws IOException {
+        File destination = destination(3000);
+        DownloadJournal journal = DownloadJournal.open(destination, URL, 10000);
+        journal.setValidator("\"v1\"");
+        journal.markCompleted(0, 3000);
+        journal.markCompleted(5000, 1000);
+        journal.save();
+
+        DownloadJournal reopened = DownloadJournal.open(destination, URL, 10000);
+
+        assertEquals("\"v1\"", reopened.getValidator());
+        assertEquals(3000, reopened.getCompleted(0));
+        assertEquals(1000, reopened.getCompleted(5000));
+    }
+
+    @Test
+    public void open_otherDownload_empty() throws IOException {
+        File destination = destination(3000);
+        DownloadJournal journal = DownloadJournal.open(destination, URL, 10000);
+        journal.markCompleted(0, 3000);
+        journal.save();
+
+        assertEquals(0, DownloadJournal.open(destination, URL, 20000).getCompleted(0));
+        assertEquals(0, DownloadJournal.open(destination, URL + "?v=2", 10000).getCompleted(0));
+    }
+
+    @Test
+    public void open_truncatedDestination_empty() throws IOException {
+        DownloadJournal journal = DownloadJournal.open(destination(3000), URL, 10000);
+        journal.markCompleted(0, 3000);
+        journal.save();
+
+        assertEquals(0, DownloadJournal.open(destination(1000), URL, 10000).getCompleted(0));
+    }
+
+    @Test
+    public void setValidator_changed_dropsRanges() throws IOException {
+        DownloadJournal journal = DownloadJournal.open(destination(0), URL, 10000);
+        journal.setValidator("\"v1\"");
+        journal.markCompleted(0, 3000);
+
+        journal.setValidator("\"v1\"");
+        assertEquals(3000, journal.getCompleted(0));
+
+        journal.setValidator("\"v2\"");
+        assertEquals(0, journal.getCompleted(0));
+
+        journal.reset();
+        assertNull(journal.getValidator());
+    }
+
+    @Test
+    public void validatorOf_strongEtagElseLastModified() {
+        String date = "Wed, 21 Oct 2026 07:28:00 GMT";
+
+        assertEquals("\"v1\"", DownloadJournal.validatorOf(response("\"v1\"", date)));
+        assertEquals(date, DownloadJournal.validatorOf(response("W/\"v1\"", date)));
+        assertEquals(date, DownloadJournal.validatorOf(response(null, date)));
+        assertNull(DownloadJournal.validatorOf(response("W/\"v1\"", null)));
+    }
+
+    /** @return partial file of {@code length} bytes the journal belongs to */
+    private File destination(int length) throws IOException {
+        File file = new File(mFolder.getRoot(), "update.zip.part");
+        Files.write(file.toPath(), new byte[length]);
+        return file;
+    }
+
+    private static DownloadTransport.Response response(String etag, String lastModified) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("ETag", etag);
+        headers.put("Last-Modified", lastModified);
+        return new ForwardingResponse(null) {
+            @Override
+            public String getHeader(String name) {
+                return headers.get(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,517 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Host tests of {@link FileDownloader}.
+ */
+public class FileDownloaderTest {
+
+    /** Size of the synthetic package of the benchmark, {@code -Dabupdate.benchmark.mb=}. */
+    private static final int BENCHMARK_MB = Integer.getInteger("abupdate.benchmark.mb", 64);
+
+    private static final String PACKAGE_URL = "https://example.com/update.zip";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void download_local_copiesRangeAtOffset() throws IOException {
+        byte[] content = random(3 * 1024 * 1024 + 17, 1);
+        File source = write("package.zip", content);
+        File destination = new File(mFolder.getRoot(), "payload.bin");
+
+        new FileDownloader(source.toURI().toString(), 1000, 2 * 1024 * 1024, destination)
+                .download();
+
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 1000 + 2 * 1024 * 1024),
+                Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void download_local_verifiesSha256() throws Exception {
+        byte[] content = random(10 * 1024 * 1024, 2);
+        File source = write("package.zip", content);
+        File destination = new File(mFolder.getRoot(), "payload.bin");
+        FileDownloader downloader = new FileDownloader(source.toURI().toString(), 0,
+                content.length, destination);
+        downloader.setExpectedSha256(sha256(content, 4096), 4096);
+
+        downloader.download();
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void download_local_sha256Mismatch_fails() throws Exception {
+        byte[] content = random(1024 * 1024, 3);
+        File source = write("package.zip", content);
+        File destination = new File(mFolder.getRoot(), "payload.bin");
+        FileDownloader downloader = new FileDownloader(source.toURI().toString(), 0,
+                content.length, destination);
+        downloader.setExpectedSha256(new byte[32], content.length);
+
+        try {
+            downloader.download();
+            fail("Digest mismatch not detected");
+        } catch (FileDownloader.DigestMismatchException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void download_serverIgnoresRange_skipsToOffset() throws IOException {
+        byte[] content = random(256 * 1024, 8);
+        InMemoryTransport origin = new InMemoryTransport();
+        origin.put(PACKAGE_URL, content);
+        File destination = new File(mFolder.getRoot(), "payload.bin");
+        FileDownloader downloader = new FileDownloader(PACKAGE_URL, 1000, 100 * 1024,
+                destination);
+        downloader.setTransport(rewritingRanges(origin, null));
+        downloader.setRetryPolicy(RetryPolicy.NO_RETRY);
+
+        downloader.download();
+
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 1000 + 100 * 1024),
+                Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void download_unexpectedContentRange_fails() throws IOException {
+        InMemoryTransport origin = new InMemoryTransport();
+        origin.put(PACKAGE_URL, random(256 * 1024, 9));
+        File destination = new File(mFolder.getRoot(), "payload.bin");
+        FileDownloader downloader = new FileDownloader(PACKAGE_URL, 1000, 100 * 1024,
+                destination);
+        downloader.setTransport(rewritingRanges(origin, "bytes 0-102399/262144"));
+        downloader.setRetryPolicy(RetryPolicy.NO_RETRY);
+
+        try {
+            downloader.download();
+            fail("Accepted a range starting at 0 for offset 1000");
+        } catch (IOException expected) {
+            // The body isn't the requested range.
+        }
+        assertFalse(destination.exists());
+    }
+
+    @Test
+    public void cancel_afterFailedDownload_deletesPartialFile() throws IOException {
+        InMemoryTransport origin = new InMemoryTransport();
+        origin.put(PACKAGE_URL, random(256 * 1024, 10));
+        // The connection drops halfway, the partial file is kept to resume.
+        DownloadTransport dropping = new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                return new ForwardingResponse(origin.get(url, headers)) {
+                    @Override
+                    public InputStream getBody() throws IOException {
+                        byte[] half = new byte[50 * 1024];
+                        new DataInputStream(super.getBody()).readFully(half);
+                        return new ByteArrayInputStream(half);
+                    }
+                };
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return origin.head(url);
+            }
+        };
+        File destination = new File(mFolder.getRoot(), "payload.bin");
+        FileDownloader downloader = new FileDownloader(PACKAGE_URL, 0, 100 * 1024,
+                destination);
+        downloader.setTransport(dropping);
+        downloader.setRetryPolicy(RetryPolicy.NO_RETRY);
+        try {
+            downloader.download();
+            fail("Accepted half of the file");
+        } catch (IOException expected) {
+            assertTrue(StorageManager.partFileOf(destination).exists());
+        }
+
+        downloader.cancel();
+
+        assertFalse(StorageManager.partFileOf(destination).exists());
+    }
+
+    @Test
+    public void parseContentRangeStart() {
+        assertEquals(100, FileDownloader.parseContentRangeStart("bytes 100-199/2000"));
+        assertEquals(0, FileDownloader.parseContentRangeStart("bytes 0-0/*"));
+        assertEquals(5L << 30,
+                FileDownloader.parseContentRangeStart("bytes 5368709120-5368709129/6000000000"));
+        assertEquals(-1, FileDownloader.parseContentRangeStart("bytes */2000"));
+        assertEquals(-1, FileDownloader.parseContentRangeStart("items 1-2/3"));
+        assertEquals(-1, FileDownloader.parseContentRangeStart("bytes x-1/3"));
+        assertEquals(-1, FileDownloader.parseContentRangeStart(null));
+    }
+
+    @Test
+    public void download_hedged_slowRequest_duplicateWins() throws IOException {
+        byte[] content = random(256 * 1024, 5);
+        StallingTransport transport = new StallingTransport(1);
+        transport.mMemory.put(PACKAGE_URL, content);
+        File destination = new File(mFolder.getRoot(), "metadata");
+        FileDownloader downloader =
+                new FileDownloader(PACKAGE_URL, 0, content.length, destination);
+        downloader.setTransport(transport);
+        downloader.setRetryPolicy(RetryPolicy.newBuilder().hedgeDelayMillis(100).build());
+
+        downloader.download();
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(2, transport.mRequests.get());
+        assertEquals(1, transport.mAborted.get());
+    }
+
+    @Test
+    public void download_hedged_fastRequest_notDuplicated() throws IOException {
+        byte[] content = random(256 * 1024, 6);
+        StallingTransport transport = new StallingTransport(0);
+        transport.mMemory.put(PACKAGE_URL, content);
+        File destination = new File(mFolder.getRoot(), "metadata");
+        FileDownloader downloader =
+                new FileDownloader(PACKAGE_URL, 0, content.length, destination);
+        downloader.setTransport(transport);
+        downloader.setRetryPolicy(RetryPolicy.newBuilder().hedgeDelayMillis(5000).build());
+
+        long start = System.nanoTime();
+        downloader.download();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(1, transport.mRequests.get());
+        // Neither waited for the hedge delay nor for a duplicate that never started.
+        assertTrue(millis + " ms", millis < 2000);
+    }
+
+    @Test
+    public void download_hedged_duplicateLosesLate_filesDeleted() throws Exception {
+        byte[] content = random(256 * 1024, 8);
+        InMemoryTransport memory = new InMemoryTransport();
+        memory.put(PACKAGE_URL, content);
+        AtomicInteger requests = new AtomicInteger();
+        // The first request is slow to send its body, the duplicate one is slow to
+        // connect and only then notices it lost, after creating its partial file.
+        DownloadTransport transport = new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                if (requests.incrementAndGet() > 1) {
+                    sleep(1000);
+                    return memory.get(url, headers);
+                }
+                return new ForwardingResponse(memory.get(url, headers)) {
+                    @Override
+                    public InputStream getBody() throws IOException {
+                        sleep(300);
+                        return super.getBody();
+                    }
+                };
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return memory.head(url);
+            }
+        };
+        File destination = new File(mFolder.getRoot(), "metadata");
+        FileDownloader downloader =
+                new FileDownloader(PACKAGE_URL, 0, content.length, destination);
+        downloader.setTransport(transport);
+        downloader.setRetryPolicy(RetryPolicy.newBuilder().hedgeDelayMillis(100).build());
+
+        downloader.download();
+        // Time for a duplicate request still running to leave files behind.
+        TimeUnit.MILLISECONDS.sleep(1500);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(2, requests.get());
+        assertArrayEquals(new String[] {"metadata"}, mFolder.getRoot().list());
+    }
+
+    @Test
+    public void download_hedged_poolBusy_doesNotWaitForPool() throws Exception {
+        byte[] content = random(256 * 1024, 7);
+        StallingTransport transport = new StallingTransport(0);
+        transport.mMemory.put(PACKAGE_URL, content);
+        File destination = new File(mFolder.getRoot(), "metadata");
+        FileDownloader downloader =
+                new FileDownloader(PACKAGE_URL, 0, content.length, destination);
+        downloader.setTransport(transport);
+        downloader.setRetryPolicy(RetryPolicy.newBuilder().hedgeDelayMillis(100).build());
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < DownloadExecutors.MAX_THREADS; i++) {
+            DownloadExecutors.getDefault().execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        try {
+            downloader.download();
+        } finally {
+            release.countDown();
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    /**
+     * Extracts most of a synthetic package through the former {@code URLConnection}
+     * copy loop with a 4 KB buffer, and through {@link FileDownloader}, and prints the
+     * throughput of both. The former loop never syncs, so {@link FileDownloader} is also
+     * measured without its periodic checkpoints to compare the copies alone.
+     *
+     * <p>Only runs with {@code -Dabupdate.benchmark=true}.</p>
+     */
+    @Test
+    public void benchmark_local_urlConnectionVsTransferTo() throws IOException {
+        assumeTrue(Boolean.getBoolean("abupdate.benchmark"));
+        long size = BENCHMARK_MB * 1024L * 1024L;
+        File source = mFolder.newFile("package.zip");
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            byte[] block = random(1024 * 1024, 4);
+            for (long written = 0; written < size; written += block.length) {
+                file.write(block);
+            }
+        }
+        long offset = 4096;
+        long length = size - 2 * offset;
+        String url = source.toURI().toString();
+        File oldCopy = new File(mFolder.getRoot(), "old.bin");
+        File newCopy = new File(mFolder.getRoot(), "new.bin");
+
+        StorageManager storage = StorageManager.getDefault();
+        long syncInterval = storage.getSyncIntervalBytes();
+        long oldNanos = Long.MAX_VALUE;
+        long newNanos = Long.MAX_VALUE;
+        long unsyncedNanos = Long.MAX_VALUE;
+        try {
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                copyWithUrlConnection(url, offset, length, oldCopy);
+                oldNanos = Math.min(oldNanos, System.nanoTime() - start);
+
+                storage.setSyncIntervalBytes(syncInterval);
+                start = System.nanoTime();
+                new FileDownloader(url, offset, length, newCopy).download();
+                newNanos = Math.min(newNanos, System.nanoTime() - start);
+
+                storage.setSyncIntervalBytes(Long.MAX_VALUE);
+                start = System.nanoTime();
+                new FileDownloader(url, offset, length, newCopy).download();
+                unsyncedNanos = Math.min(unsyncedNanos, System.nanoTime() - start);
+            }
+        } finally {
+            storage.setSyncIntervalBytes(syncInterval);
+        }
+
+        assertEquals(length, newCopy.length());
+        assertArrayEquals(sha256(oldCopy), sha256(newCopy));
+        System.out.println(String.format("local copy of %d MB: URLConnection %.1f MB/s, "
+                        + "FileDownloader %.1f MB/s, without checkpoints %.1f MB/s",
+                length >> 20, mbPerSecond(length, oldNanos), mbPerSecond(length, newNanos),
+                mbPerSecond(length, unsyncedNanos)));
+    }
+
+    /**
+     * Serves an {@link InMemoryTransport}, the bodies of the first {@code stalls}
+     * responses hang until aborted.
+     */
+    private static final class StallingTransport implements DownloadTransport {
+        final InMemoryTransport mMemory = new InMemoryTransport();
+        final AtomicInteger mRequests = new AtomicInteger();
+        final AtomicInteger mAborted = new AtomicInteger();
+        private final int mStalls;
+
+        StallingTransport(int stalls) {
+            mStalls = stalls;
+        }
+
+        @Override
+        public Response get(String url, Map<String, String> headers) throws IOException {
+            Response response = mMemory.get(url, headers);
+            if (mRequests.incrementAndGet() > mStalls) {
+                return response;
+            }
+            CountDownLatch aborted = new CountDownLatch(1);
+            return new Response() {
+                @Override
+                public int getCode() {
+                    return response.getCode();
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return response.getHeader(name);
+                }
+
+                @Override
+                public String getContentType() {
+                    return response.getContentType();
+                }
+
+                @Override
+                public long getContentLength() {
+                    return response.getContentLength();
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            try {
+                                aborted.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            throw new IOException("aborted");
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    response.close();
+                }
+
+                @Override
+                public void abort() {
+                    if (aborted.getCount() > 0) {
+                        mAborted.incrementAndGet();
+                    }
+                    aborted.countDown();
+                    response.abort();
+                }
+            };
+        }
+
+        @Override
+        public Response head(String url) throws IOException {
+            return mMemory.head(url);
+        }
+    }
+
+    /** The copy loop {@link FileDownloader} used for {@code file://} urls before. */
+    private static void copyWithUrlConnection(String url, long offset, long size,
+            File destination) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.connect();
+        try (InputStream input = connection.getInputStream();
+             OutputStream output = new FileOutputStream(destination)) {
+            if (input.skip(offset) != offset) {
+                throw new IOException("Can't skip to " + offset);
+            }
+            byte[] data = new byte[4096];
+            long total = 0;
+            while (total < size) {
+                int count = input.read(data, 0, (int) Math.min(data.length, size - total));
+                if (count <= 0) {
+                    break;
+                }
+                output.write(data, 0, count);
+                total += count;
+            }
+        }
+    }
+
+    /**
+     * @param contentRange {@code Content-Range} of the partial responses of {@code origin},
+     *         or {@code null} to ignore {@code Range} headers and send the whole file
+     */
+    private static DownloadTransport rewritingRanges(DownloadTransport origin,
+            String contentRange) {
+        return new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                if (contentRange == null) {
+                    return origin.get(url, Collections.emptyMap());
+                }
+                return new ForwardingResponse(origin.get(url, headers)) {
+                    @Override
+                    public String getHeader(String name) {
+                        return "Content-Range".equalsIgnoreCase(name)
+                                ? contentRange : super.getHeader(name);
+                    }
+                };
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return origin.head(url);
+            }
+        };
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = mFolder.newFile(name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static byte[] sha256(File file) throws IOException {
+        return sha256(Files.readAllBytes(file.toPath()), (int) file.length());
+    }
+
+    private static byte[] sha256(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,52 @@
+package com.nathan.abupdate.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link DownloadTransport.Response} forwarding to another response, tests override the
+ * methods they need to change.
+ */
+class ForwardingResponse implements DownloadTransport.Response {
+
+    private final DownloadTransport.Response mDelegate;
+
+    ForwardingResponse(DownloadTransport.Response delegate) {
+        this.mDelegate = delegate;
+    }
+
+    @Override
+    public int getCode() {
+        return mDelegate.getCode();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return mDelegate.getHeader(name);
+    }
+
+    @Override
+    public String getContentType() {
+        return mDelegate.getContentType();
+    }
+
+    @Override
+    public long getContentLength() {
+        return mDelegate.getContentLength();
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+        return mDelegate.getBody();
+    }
+
+    @Override
+    public void close() {
+        mDelegate.close();
+    }
+
+    @Override
+    public void abort() {
+        mDelegate.abort();
+    }
+}
@@ -0,0 +1,132 @@
+package com.nathan.abupdate.util;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Host tests of {@link HttpTransport} against a local HTTP server.
+ */
+public class HttpTransportTest {
+
+    private HttpServer mServer;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Sends the headers, then holds the body until the test releases it.
+        mServer.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, 1);
+            try (OutputStream body = exchange.getResponseBody()) {
+                mRelease.await(30, TimeUnit.SECONDS);
+                body.write(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // Sends the first bytes of a large body, then holds the rest.
+        mServer.createContext("/large", exchange -> {
+            exchange.sendResponseHeaders(200, 10 * 1024 * 1024);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(new byte[1024]);
+                body.flush();
+                mRelease.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/update.zip";
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mServer.stop(0);
+    }
+
+    @Test
+    public void close_largeBodyLeft_doesNotDrain() throws Exception {
+        DownloadTransport.Response response = HttpTransport.getDefault().get(
+                mUrl.replace("/update.zip", "/large"), Collections.emptyMap());
+        response.getBody().read();
+
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(response::close);
+
+        // Draining would wait for the server to send the rest.
+        closed.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void close_restOfBodyNotArrived_doesNotWait() throws Exception {
+        DownloadTransport.Response response =
+                HttpTransport.getDefault().get(mUrl, Collections.emptyMap());
+
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(response::close);
+
+        // The one byte left is small, but the server holds it.
+        closed.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void get_allConnectionsInUse_abortStopsWaiting() throws Exception {
+        HttpTransport transport = HttpTransport.getDefault();
+        List<DownloadTransport.Response> held = new ArrayList<>();
+        try {
+            for (int i = 0; i < HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST; i++) {
+                held.add(transport.get(mUrl, Collections.emptyMap()));
+            }
+            long start = System.nanoTime();
+            long abortAt = start + TimeUnit.MILLISECONDS.toNanos(300);
+            BooleanSupplier aborted = () -> System.nanoTime() - abortAt >= 0;
+            try {
+                transport.get(mUrl, Collections.emptyMap(), aborted).close();
+                fail("Request didn't wait for a connection");
+            } catch (InterruptedIOException expected) {
+                // Aborted.
+            }
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Waited " + waitedMillis + " ms", waitedMillis < 5000);
+
+            // The aborted request didn't take a permit.
+            held.remove(0).abort();
+            try {
+                transport.get(mUrl, Collections.emptyMap(), aborted).close();
+                fail("Aborted request was sent");
+            } catch (InterruptedIOException expected) {
+                // Aborted before sending.
+            }
+            try (DownloadTransport.Response response =
+                         transport.get(mUrl, Collections.emptyMap())) {
+                assertEquals(200, response.getCode());
+                mRelease.countDown();
+            }
+        } finally {
+            for (DownloadTransport.Response response : held) {
+                response.abort();
+            }
+        }
+    }
+}
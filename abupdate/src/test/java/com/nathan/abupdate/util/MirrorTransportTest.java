@@ -0,0 +1,152 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Host tests of {@link MirrorTransport} against an {@link InMemoryTransport}.
+ */
+public class MirrorTransportTest {
+
+    private static final String PRIMARY_URL = "https://a.example.com/update.zip";
+    private static final String MIRROR_URL = "https://b.example.com/update.zip";
+
+    private final byte[] mContent = FileDownloaderTest.random(256 * 1024, 1);
+    private BreakingTransport mTransport;
+    private MirrorTransport mMirrors;
+
+    @Before
+    public void setUp() {
+        mTransport = new BreakingTransport();
+        mTransport.mMemory.put(PRIMARY_URL, mContent);
+        mTransport.mMemory.put(MIRROR_URL, mContent);
+        mMirrors = new MirrorTransport(mTransport, PRIMARY_URL,
+                Collections.singletonList(MIRROR_URL));
+    }
+
+    @Test
+    public void get_readFails_failsOverToNextMirror() throws IOException {
+        String selected = mMirrors.getSelectedUrl();
+        mTransport.mBroken.add(selected);
+
+        try (DownloadTransport.Response response =
+                     mMirrors.get(PRIMARY_URL, Collections.emptyMap())) {
+            response.getBody().read(new byte[1024]);
+            fail("Read from a broken mirror succeeded");
+        } catch (IOException expected) {
+            // Connection reset.
+        }
+
+        assertNotEquals(selected, mMirrors.getSelectedUrl());
+    }
+
+    @Test
+    public void get_readAfterAbort_keepsMirror() throws IOException {
+        String selected = mMirrors.getSelectedUrl();
+
+        DownloadTransport.Response response = mMirrors.get(PRIMARY_URL, Collections.emptyMap());
+        InputStream body = response.getBody();
+        response.abort();
+        try {
+            body.read(new byte[1024]);
+            fail("Read from an aborted response succeeded");
+        } catch (IOException expected) {
+            // Aborted.
+        }
+
+        assertEquals(selected, mMirrors.getSelectedUrl());
+    }
+
+    @Test
+    public void get_mirrorMissingFile_failsOver() throws IOException {
+        String selected = mMirrors.getSelectedUrl();
+        mTransport.mMemory.remove(selected);
+
+        try (DownloadTransport.Response response = mMirrors.get(PRIMARY_URL,
+                Collections.singletonMap("Range", "bytes=0-1023"))) {
+            assertEquals(206, response.getCode());
+        }
+
+        assertNotEquals(selected, mMirrors.getSelectedUrl());
+    }
+
+    /**
+     * Serves an {@link InMemoryTransport}. Reads of the bodies of broken urls fail, and
+     * so do reads of aborted responses, like a dropped connection.
+     */
+    private static final class BreakingTransport implements DownloadTransport {
+        final InMemoryTransport mMemory = new InMemoryTransport();
+        final Set<String> mBroken = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public Response get(String url, Map<String, String> headers) throws IOException {
+            Response response = mMemory.get(url, headers);
+            boolean[] aborted = new boolean[1];
+            return new Response() {
+                @Override
+                public int getCode() {
+                    return response.getCode();
+                }
+
+                @Override
+                public String getHeader(String name) {
+                    return response.getHeader(name);
+                }
+
+                @Override
+                public String getContentType() {
+                    return response.getContentType();
+                }
+
+                @Override
+                public long getContentLength() {
+                    return response.getContentLength();
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return new FilterInputStream(response.getBody()) {
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            if (aborted[0]) {
+                                throw new IOException("Socket closed");
+                            }
+                            if (mBroken.contains(url)) {
+                                throw new IOException("Connection reset");
+                            }
+                            return super.read(b, off, len);
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    response.close();
+                }
+
+                @Override
+                public void abort() {
+                    aborted[0] = true;
+                    response.abort();
+                }
+            };
+        }
+
+        @Override
+        public Response head(String url) throws IOException {
+            return mMemory.head(url);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host tests of {@link PackageDirSweeper}.
+ */
+public class PackageDirSweeperTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void sweep_overBudget_deletesLeastRecentlyUsed() throws IOException {
+        File oldest = file("old.zip", 1000, 3);
+        File older = file("older.zip", 1000, 2);
+        File inUse = file("update.zip", 1000, 5);
+        PackageDirSweeper sweeper = new PackageDirSweeper(mFolder.getRoot());
+        sweeper.setBudgetBytes(2000);
+
+        assertEquals(1000, sweeper.sweep(Collections.singleton("update.zip")));
+
+        assertFalse(oldest.exists());
+        assertTrue(older.exists());
+        assertTrue(inUse.exists());
+    }
+
+    @Test
+    public void sweep_orphanedPartialFile_deleted() throws IOException {
+        File orphan = file("old.zip.part", 1000, 2);
+        File recent = file("other.zip.part", 1000, 0);
+        File kept = file("update.zip.part.journal", 100, 2);
+
+        new PackageDirSweeper(mFolder.getRoot()).sweep(Collections.singleton("update.zip"));
+
+        assertFalse(orphan.exists());
+        assertTrue(recent.exists());
+        assertTrue(kept.exists());
+    }
+
+    @Test
+    public void sweep_subdirectory_neitherCountedNorSwept() throws IOException {
+        File cacheDir = mFolder.newFolder("cache");
+        File entry = new File(cacheDir, "entry");
+        Files.write(entry.toPath(), new byte[5000]);
+        File inUse = file("update.zip", 1000, 0);
+        PackageDirSweeper sweeper = new PackageDirSweeper(mFolder.getRoot());
+        sweeper.setBudgetBytes(2000);
+
+        assertEquals(0, sweeper.sweep(Collections.singleton("update.zip")));
+
+        assertTrue(entry.exists());
+        assertTrue(inUse.exists());
+    }
+
+    @Test
+    public void baseName_stripsPartialSuffixes() {
+        assertEquals("update.zip", PackageDirSweeper.baseName("update.zip.part.journal"));
+        assertEquals("metadata", PackageDirSweeper.baseName("metadata.hedge1.part"));
+        assertEquals("update.zip", PackageDirSweeper.baseName("update.zip"));
+    }
+
+    /**
+     * @return file of {@code size} bytes last modified {@code hoursAgo}
+     */
+    private File file(String name, int size, int hoursAgo) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        Files.write(file.toPath(), new byte[size]);
+        file.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hoursAgo));
+        return file;
+    }
+}
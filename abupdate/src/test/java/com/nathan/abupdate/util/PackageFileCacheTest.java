@@ -0,0 +1,112 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host tests of {@link PackageFileCache}.
+ */
+public class PackageFileCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void restore_storedEntry_restoresFile() throws IOException {
+        PackageFileCache cache = new PackageFileCache(mFolder.newFolder("cache"));
+        byte[] content = FileDownloaderTest.random(10000, 1);
+        String key = PackageFileCache.keyOf("payload:abc", 100, content.length);
+        cache.store(key, write("metadata", content));
+        File destination = new File(mFolder.getRoot(), "restored");
+
+        assertTrue(cache.restore(key, content.length, destination));
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void restore_unknownKey_false() throws IOException {
+        PackageFileCache cache = new PackageFileCache(mFolder.newFolder("cache"));
+
+        assertFalse(cache.restore("missing", 10, new File(mFolder.getRoot(), "restored")));
+    }
+
+    @Test
+    public void restore_matchingHash_restoresFile() throws Exception {
+        PackageFileCache cache = new PackageFileCache(mFolder.newFolder("cache"));
+        byte[] content = FileDownloaderTest.random(10000, 2);
+        cache.store("key", write("metadata", content));
+        byte[] sha256 = MessageDigest.getInstance("SHA-256")
+                .digest(Arrays.copyOf(content, 4000));
+
+        assertTrue(cache.restore("key", content.length, new File(mFolder.getRoot(), "restored"),
+                sha256, 4000));
+    }
+
+    @Test
+    public void restore_hashMismatch_dropsEntry() throws IOException {
+        PackageFileCache cache = new PackageFileCache(mFolder.newFolder("cache"));
+        byte[] content = FileDownloaderTest.random(10000, 3);
+        cache.store("key", write("metadata", content));
+        File destination = new File(mFolder.getRoot(), "restored");
+
+        assertFalse(cache.restore("key", content.length, destination, new byte[32], 4000));
+
+        assertFalse(destination.exists());
+        // Dropped, even without verification.
+        assertFalse(cache.restore("key", content.length, destination));
+    }
+
+    @Test
+    public void restore_sizeMismatch_dropsEntry() throws IOException {
+        PackageFileCache cache = new PackageFileCache(mFolder.newFolder("cache"));
+        cache.store("key", write("metadata", new byte[100]));
+
+        assertFalse(cache.restore("key", 200, new File(mFolder.getRoot(), "restored")));
+        assertFalse(cache.restore("key", 100, new File(mFolder.getRoot(), "restored")));
+    }
+
+    @Test
+    public void store_overLimit_evictsLeastRecentlyUsed() throws IOException {
+        File dir = mFolder.newFolder("cache");
+        PackageFileCache cache = new PackageFileCache(dir);
+        cache.setMaxBytes(2500);
+        cache.store("a", write("a", new byte[1000]));
+        new File(dir, "a").setLastModified(System.currentTimeMillis() - 60 * 1000);
+        cache.store("b", write("b", new byte[1000]));
+        cache.store("c", write("c", new byte[1000]));
+
+        assertFalse(new File(dir, "a").exists());
+        assertTrue(new File(dir, "b").exists());
+        assertTrue(new File(dir, "c").exists());
+    }
+
+    @Test
+    public void keyOf_differsByPositionAndPackage() {
+        String key = PackageFileCache.keyOf("url:https://example.com/a.zip", 0, 100);
+
+        assertEquals(64, key.length());
+        assertEquals(key, PackageFileCache.keyOf("url:https://example.com/a.zip", 0, 100));
+        assertNotEquals(key, PackageFileCache.keyOf("url:https://example.com/a.zip", 1, 100));
+        assertNotEquals(key, PackageFileCache.keyOf("url:https://example.com/b.zip", 0, 100));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
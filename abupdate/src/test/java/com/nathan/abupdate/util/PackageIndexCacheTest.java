@@ -0,0 +1,129 @@
+package com.nathan.abupdate.util;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Host tests of {@link PackageIndexCache}. Keys are built directly, {@code Os.stat} isn't
+ * available on the host.
+ */
+public class PackageIndexCacheTest {
+
+    private static final String PATH = "/data/ota_package/update.zip";
+    private static final long MTIME_NANOS = 1_700_000_000_123_456_789L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void put_newCache_readsPersistedIndex() throws IOException {
+        File file = new File(mFolder.getRoot(), "package_index");
+        PackageIndexCache.PackageIndex index = new PackageIndexCache.PackageIndex(
+                Arrays.asList(
+                        new UpdateConfig.PackageFile("payload.bin", 1000, 5L << 30),
+                        new UpdateConfig.PackageFile("payload_properties.txt", 50, 154)),
+                Arrays.asList("FILE_HASH=abc", "FILE_SIZE=" + (5L << 30)));
+        new PackageIndexCache(file).put(key(PATH, MTIME_NANOS), index);
+
+        PackageIndexCache.PackageIndex read =
+                new PackageIndexCache(file).get(key(PATH, MTIME_NANOS));
+
+        assertNotNull(read);
+        assertEquals(2, read.getEntries().size());
+        UpdateConfig.PackageFile payload = read.getEntry("payload.bin").get();
+        assertEquals(1000, payload.getOffset());
+        assertEquals(5L << 30, payload.getSize());
+        assertEquals(50, read.getEntry("payload_properties.txt").get().getOffset());
+        assertEquals(index.getProperties(), read.getProperties());
+    }
+
+    @Test
+    public void get_modifiedWithinTheSameSecond_misses() throws IOException {
+        File file = new File(mFolder.getRoot(), "package_index");
+        new PackageIndexCache(file).put(key(PATH, MTIME_NANOS), index("payload.bin"));
+
+        PackageIndexCache cache = new PackageIndexCache(file);
+
+        assertNull(cache.get(key(PATH, MTIME_NANOS + 1000)));
+        assertNotNull(cache.get(key(PATH, MTIME_NANOS)));
+    }
+
+    @Test
+    public void put_samePath_replacesIndex() throws IOException {
+        File file = new File(mFolder.getRoot(), "package_index");
+        PackageIndexCache cache = new PackageIndexCache(file);
+        cache.put(key(PATH, MTIME_NANOS), index("old"));
+
+        cache.put(key(PATH, MTIME_NANOS + 1), index("new"));
+
+        PackageIndexCache reloaded = new PackageIndexCache(file);
+        assertNull(reloaded.get(key(PATH, MTIME_NANOS)));
+        assertNotNull(reloaded.get(key(PATH, MTIME_NANOS + 1)).getEntry("new").orElse(null));
+    }
+
+    @Test
+    public void put_overMaxEntries_evictsLeastRecentlyUsed() throws IOException {
+        PackageIndexCache cache =
+                new PackageIndexCache(new File(mFolder.getRoot(), "package_index"), 2);
+        cache.put(key("/a.zip", 1), index("a"));
+        cache.put(key("/b.zip", 1), index("b"));
+        cache.get(key("/a.zip", 1));
+
+        cache.put(key("/c.zip", 1), index("c"));
+
+        assertNotNull(cache.get(key("/a.zip", 1)));
+        assertNull(cache.get(key("/b.zip", 1)));
+        assertNotNull(cache.get(key("/c.zip", 1)));
+    }
+
+    @Test
+    public void get_corruptFile_dropped() throws IOException {
+        File file = new File(mFolder.getRoot(), "package_index");
+        new PackageIndexCache(file).put(key(PATH, MTIME_NANOS), index("payload.bin"));
+        byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 10));
+
+        assertNull(new PackageIndexCache(file).get(key(PATH, MTIME_NANOS)));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void get_previousFormat_dropped() throws IOException {
+        // Version 1 keyed packages by modification time in seconds.
+        File file = new File(mFolder.getRoot(), "package_index");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeInt(0);
+        Files.write(file.toPath(), bytes.toByteArray());
+
+        assertNull(new PackageIndexCache(file).get(key(PATH, MTIME_NANOS)));
+        assertFalse(file.exists());
+    }
+
+    private static PackageIndexCache.Key key(String path, long modifiedTimeNanos) {
+        return new PackageIndexCache.Key(path, 0xfd00, 1234, 10000, modifiedTimeNanos);
+    }
+
+    private static PackageIndexCache.PackageIndex index(String entry) {
+        return new PackageIndexCache.PackageIndex(
+                Collections.singletonList(new UpdateConfig.PackageFile(entry, 0, 100)),
+                Collections.emptyList());
+    }
+}
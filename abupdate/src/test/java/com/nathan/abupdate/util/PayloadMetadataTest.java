@@ -0,0 +1,244 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Host tests of {@link PayloadMetadata} on payloads encoded by {@link Proto}, following
+ * system/update_engine/update_metadata.proto.
+ */
+public class PayloadMetadataTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void read_manifest_totals() throws IOException {
+        byte[] manifest = manifest();
+        File file = mFolder.newFile("payload.bin");
+        Files.write(file.toPath(), payload(manifest, 100, 10000));
+
+        PayloadMetadata metadata = PayloadMetadata.read(file);
+
+        assertEquals(2, metadata.getHeader().getMajorVersion());
+        assertEquals(24 + manifest.length + 100, metadata.getHeader().getMetadataSize());
+        assertEquals(BLOCK_SIZE, metadata.getBlockSize());
+        assertEquals(2, metadata.getPartitions().size());
+        PayloadMetadata.Partition system = metadata.getPartitions().get(0);
+        assertEquals("system", system.getName());
+        assertEquals(0, system.getOldSize());
+        assertEquals(1 << 20, system.getNewSize());
+        assertEquals(2, system.getOperationCount());
+        assertEquals(71000, system.getDataBytes());
+        assertEquals((10 + 5 + 300) * BLOCK_SIZE, system.getWriteBytes());
+        PayloadMetadata.Partition vendor = metadata.getPartitions().get(1);
+        assertEquals(500000, vendor.getOldSize());
+        assertEquals(7 * BLOCK_SIZE, vendor.getSourceReadBytes());
+        assertEquals(3, metadata.getOperationCount());
+        assertEquals(71000 + 7 * BLOCK_SIZE, metadata.getReadBytes());
+        assertEquals((10 + 5 + 300 + 7) * BLOCK_SIZE, metadata.getWriteBytes());
+        assertEquals((1 << 20) + 600000, metadata.getNewPartitionsSize());
+    }
+
+    @Test
+    public void read_payloadMetadataFile_sameAsPayload() throws IOException {
+        byte[] manifest = manifest();
+        byte[] payload = payload(manifest, 100, 0);
+        File file = mFolder.newFile("payload_metadata.bin");
+        Files.write(file.toPath(), payload);
+
+        PayloadMetadata metadata = PayloadMetadata.read(file);
+
+        assertEquals(payload.length, metadata.getHeader().getMetadataSize());
+        assertEquals(3, metadata.getOperationCount());
+    }
+
+    @Test
+    public void read_atOffset_readsOnlyMetadata() throws IOException {
+        byte[] payload = payload(manifest(), 100, 1000);
+        ZipWriter zip = new ZipWriter();
+        zip.add("META-INF/com/android/metadata", new byte[50]);
+        long offset = zip.add("payload.bin", payload);
+        ZipIndex.Source source = zip.finish();
+
+        PayloadMetadata metadata = PayloadMetadata.read(source, offset, payload.length);
+
+        assertEquals(3, metadata.getOperationCount());
+    }
+
+    @Test
+    public void read_version1_noSignatureSize() throws IOException {
+        byte[] manifest = new Proto().varint(3, 512).toByteArray();
+        ByteBuffer payload = ByteBuffer.allocate(20 + manifest.length);
+        payload.put("CrAU".getBytes(StandardCharsets.US_ASCII)).putLong(1)
+                .putLong(manifest.length).put(manifest);
+        File file = mFolder.newFile("payload.bin");
+        Files.write(file.toPath(), payload.array());
+
+        PayloadMetadata metadata = PayloadMetadata.read(file);
+
+        assertEquals(20, metadata.getHeader().getSize());
+        assertEquals(512, metadata.getBlockSize());
+        assertEquals(0, metadata.getPartitions().size());
+    }
+
+    @Test
+    public void read_manifestLargerThanPayload_throws() throws IOException {
+        byte[] payload = payload(manifest(), 100, 0);
+        ByteBuffer.wrap(payload).putLong(12, 1 << 20);
+        File file = mFolder.newFile("payload.bin");
+        Files.write(file.toPath(), payload);
+
+        try {
+            PayloadMetadata.read(file);
+            fail("Read a manifest past the end of the payload");
+        } catch (IOException expected) {
+            // Corrupt header.
+        }
+    }
+
+    @Test
+    public void read_truncatedManifest_throws() throws IOException {
+        // A partition running past the end of the manifest.
+        byte[] manifest = new Proto().varint(3, BLOCK_SIZE).bytes(13, new byte[100])
+                .toByteArray();
+        manifest = Arrays.copyOf(manifest, manifest.length - 50);
+        File file = mFolder.newFile("payload.bin");
+        Files.write(file.toPath(), payload(manifest, 0, 0));
+
+        try {
+            PayloadMetadata.read(file);
+            fail("Parsed a corrupt manifest");
+        } catch (IOException expected) {
+            // Truncated field.
+        }
+    }
+
+    /**
+     * @return manifest of a full update of system, with operations writing 15 and 300
+     *         blocks, and a delta update of vendor, with one operation copying 7 blocks.
+     *         Fields unknown to the parser are interleaved.
+     */
+    private static byte[] manifest() {
+        Proto system = new Proto()
+                .string(1, "system")
+                .bytes(7, new Proto().varint(1, 1 << 20).bytes(2, new byte[32]))
+                .bytes(8, operation(1000, 0, 10, 5))
+                .bytes(8, operation(70000, 0, 300));
+        Proto vendor = new Proto()
+                .string(1, "vendor")
+                .bytes(6, new Proto().varint(1, 500000))
+                .bytes(7, new Proto().varint(1, 600000))
+                .bytes(8, operation(0, 7, 7))
+                .fixed32(99, 7);
+        return new Proto()
+                .varint(12, 7)
+                .bytes(13, system)
+                .bytes(13, vendor)
+                .fixed64(14, 12345)
+                // The block size after the partitions.
+                .varint(3, BLOCK_SIZE)
+                .toByteArray();
+    }
+
+    /**
+     * @param sourceBlocks blocks of the source extent, none if {@code 0}
+     * @param targetBlocks blocks of each target extent
+     */
+    private static Proto operation(long dataLength, long sourceBlocks, long... targetBlocks) {
+        Proto operation = new Proto().varint(1, 0).varint(2, 123).varint(3, dataLength);
+        if (sourceBlocks > 0) {
+            operation.bytes(4, new Proto().varint(1, 0).varint(2, sourceBlocks));
+        }
+        for (long blocks : targetBlocks) {
+            operation.bytes(6, new Proto().varint(1, 100).varint(2, blocks));
+        }
+        return operation.bytes(8, new byte[32]);
+    }
+
+    /**
+     * @return version 2 payload with {@code manifest}, a signature of
+     *         {@code signatureSize} bytes and {@code dataSize} bytes of data
+     */
+    private static byte[] payload(byte[] manifest, int signatureSize, int dataSize) {
+        ByteBuffer payload = ByteBuffer.allocate(24 + manifest.length + signatureSize + dataSize);
+        payload.put("CrAU".getBytes(StandardCharsets.US_ASCII)).putLong(2)
+                .putLong(manifest.length).putInt(signatureSize).put(manifest);
+        return payload.array();
+    }
+
+    /**
+     * Minimal protobuf encoder.
+     */
+    private static final class Proto {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        Proto varint(int field, long value) {
+            tag(field, 0);
+            writeVarint(value);
+            return this;
+        }
+
+        Proto fixed32(int field, int value) {
+            tag(field, 5);
+            write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+            return this;
+        }
+
+        Proto fixed64(int field, long value) {
+            tag(field, 1);
+            write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array());
+            return this;
+        }
+
+        Proto bytes(int field, byte[] value) {
+            tag(field, 2);
+            writeVarint(value.length);
+            write(value);
+            return this;
+        }
+
+        Proto bytes(int field, Proto message) {
+            return bytes(field, message.toByteArray());
+        }
+
+        Proto string(int field, String value) {
+            return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+
+        private void tag(int field, int wireType) {
+            writeVarint(field << 3 | wireType);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                mBytes.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mBytes.write((int) value);
+        }
+
+        private void write(byte[] bytes) {
+            mBytes.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.nathan.abupdate.util;
+
+import com.nathan.abupdate.PayloadSpec;
+import com.nathan.abupdate.UpdateConfig;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Host tests of {@link PayloadSpecs} on packages written by {@link ZipWriter}.
+ */
+public class PayloadSpecsTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mProperties =
+            "FILE_HASH=abc\nFILE_SIZE=123\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void forNonStreaming_storedPayload_offsetSizeAndProperties() throws IOException {
+        byte[] payload = payload(1000, 10, 5);
+        ZipWriter zip = new ZipWriter();
+        zip.add("META-INF/com/android/metadata", new byte[50], ZipEntry.STORED,
+                new byte[0], new byte[0], true);
+        zip.add("payload_properties.txt", mProperties, ZipEntry.DEFLATED, new byte[0],
+                new byte[0], true);
+        long payloadOffset = zip.add("payload.bin", payload, ZipEntry.STORED,
+                new byte[] {(byte) 0xd9, (byte) 0xd9, 2, 0, 0, 0}, new byte[0], false);
+        File file = zip.writeTo(mFolder.newFile("update.zip"));
+
+        PayloadSpec spec = new PayloadSpecs().forNonStreaming(file);
+
+        assertEquals("file://" + file.getAbsolutePath(), spec.getUrl());
+        assertEquals(payloadOffset, spec.getOffset());
+        assertEquals(payload.length, spec.getSize());
+        assertEquals(Arrays.asList("FILE_HASH=abc", "FILE_SIZE=123"), spec.getProperties());
+    }
+
+    @Test
+    public void forNonStreaming_compressedPayload_throws() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("payload.bin", payload(1000, 10, 5), ZipEntry.DEFLATED, new byte[0],
+                new byte[0], false);
+        File file = zip.writeTo(mFolder.newFile("update.zip"));
+
+        try {
+            new PayloadSpecs().forNonStreaming(file);
+            fail("Accepted a compressed payload");
+        } catch (IOException expected) {
+            // update_engine reads the payload in place.
+        }
+    }
+
+    @Test
+    public void forNonStreaming_noPayload_throws() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("payload_properties.txt", mProperties);
+        File file = zip.writeTo(mFolder.newFile("update.zip"));
+
+        try {
+            new PayloadSpecs().forNonStreaming(file);
+            fail("Accepted a package without payload");
+        } catch (IOException expected) {
+            // Not an A/B package.
+        }
+    }
+
+    @Test
+    public void derivePropertyFiles_storedEntriesAndPayloadMetadata() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        long metadataOffset = zip.add("META-INF/com/android/metadata", new byte[50]);
+        zip.add("care_map.txt", new byte[500], ZipEntry.DEFLATED, new byte[0], new byte[0],
+                false);
+        long propertiesOffset = zip.add("payload_properties.txt", mProperties);
+        byte[] payload = payload(10000, 300, 40);
+        long payloadOffset = zip.add("payload.bin", payload);
+
+        Map<String, UpdateConfig.PackageFile> files = new LinkedHashMap<>();
+        for (UpdateConfig.PackageFile file : new PayloadSpecs().derivePropertyFiles(
+                zip.finish())) {
+            files.put(file.getFilename(), file);
+        }
+
+        assertFile(files.get("metadata"), metadataOffset, 50);
+        assertFile(files.get("payload_properties.txt"), propertiesOffset, mProperties.length);
+        assertFile(files.get("payload.bin"), payloadOffset, payload.length);
+        // The header, the manifest and the metadata signature.
+        assertFile(files.get("payload_metadata.bin"), payloadOffset, 24 + 300 + 40);
+        // update_engine can't read compressed entries in place.
+        assertFalse(files.containsKey("care_map.txt"));
+        assertEquals(4, files.size());
+    }
+
+    @Test
+    public void derivePropertyFiles_badPayloadHeader_throws() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("payload.bin", new byte[1000]);
+
+        try {
+            new PayloadSpecs().derivePropertyFiles(zip.finish());
+            fail("Accepted a payload without CrAU header");
+        } catch (IOException expected) {
+            // Bad magic.
+        }
+    }
+
+    private static void assertFile(UpdateConfig.PackageFile file, long offset, long size) {
+        assertEquals(file.getFilename() + " offset", offset, file.getOffset());
+        assertEquals(file.getFilename() + " size", size, file.getSize());
+    }
+
+    /**
+     * @return payload of {@code size} bytes starting with a version 2 {@code CrAU} header
+     *         announcing a manifest and a metadata signature of the given sizes
+     */
+    static byte[] payload(int size, long manifestSize, int signatureSize) {
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put("CrAU".getBytes(StandardCharsets.US_ASCII)).putLong(2)
+                .putLong(manifestSize).putInt(signatureSize);
+        return payload.array();
+    }
+}
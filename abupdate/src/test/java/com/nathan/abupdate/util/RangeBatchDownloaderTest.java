@@ -0,0 +1,128 @@
+package com.nathan.abupdate.util;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host tests of {@link RangeBatchDownloader}.
+ */
+public class RangeBatchDownloaderTest {
+
+    private static final String URL = "https://example.com/update.zip";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mPackage = FileDownloaderTest.random(4 * 1024 * 1024, 6);
+    private final List<UpdateConfig.PackageFile> mFiles = Arrays.asList(
+            new UpdateConfig.PackageFile("metadata", 100, 50),
+            new UpdateConfig.PackageFile("care_map.txt", 2000, 300),
+            new UpdateConfig.PackageFile("payload_metadata.bin", 3 * 1024 * 1024, 5000));
+
+    @Test
+    public void download_batchedRange_oneRequest() throws IOException {
+        RecordingTransport transport = new RecordingTransport(false);
+
+        download(transport);
+
+        assertFiles();
+        assertEquals(1, transport.mRanges.size());
+    }
+
+    @Test
+    public void download_serverIgnoresRanges_filesFetchedOneByOne() throws IOException {
+        RecordingTransport transport = new RecordingTransport(true);
+
+        download(transport);
+
+        assertFiles();
+        assertEquals(Arrays.asList("bytes=100-2299,3145728-3150727",
+                "bytes=100-149", "bytes=2000-2299", "bytes=3145728-3150727"),
+                transport.mRanges);
+        // Not read up to payload_metadata.bin, 3 MB into the package.
+        assertTrue(transport.mWholePackageRead.get() < 1024 * 1024);
+    }
+
+    private void download(DownloadTransport transport) throws IOException {
+        RangeBatchDownloader downloader =
+                new RangeBatchDownloader(URL, mFiles, mFolder.getRoot());
+        downloader.setTransport(transport);
+        downloader.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        downloader.download();
+    }
+
+    private void assertFiles() throws IOException {
+        for (UpdateConfig.PackageFile file : mFiles) {
+            byte[] expected = Arrays.copyOfRange(mPackage, (int) file.getOffset(),
+                    (int) (file.getOffset() + file.getSize()));
+            assertArrayEquals(file.getFilename(), expected,
+                    Files.readAllBytes(new File(mFolder.getRoot(), file.getFilename()).toPath()));
+        }
+    }
+
+    /**
+     * Serves the package, records the requested ranges, and optionally answers
+     * multi-range requests with the whole package like servers without multipart
+     * support do.
+     */
+    private final class RecordingTransport implements DownloadTransport {
+        final InMemoryTransport mMemory = new InMemoryTransport();
+        final boolean mIgnoreMultiRange;
+        final List<String> mRanges = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong mWholePackageRead = new AtomicLong();
+
+        RecordingTransport(boolean ignoreMultiRange) {
+            mMemory.put(URL, mPackage);
+            mIgnoreMultiRange = ignoreMultiRange;
+        }
+
+        @Override
+        public Response get(String url, Map<String, String> headers) throws IOException {
+            String range = headers.get("Range");
+            mRanges.add(range);
+            if (!mIgnoreMultiRange || range == null || !range.contains(",")) {
+                return mMemory.get(url, headers);
+            }
+            Map<String, String> whole = new HashMap<>(headers);
+            whole.remove("Range");
+            return new ForwardingResponse(mMemory.get(url, whole)) {
+                @Override
+                public InputStream getBody() throws IOException {
+                    return new FilterInputStream(super.getBody()) {
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int count = super.read(b, off, len);
+                            mWholePackageRead.addAndGet(Math.max(count, 0));
+                            return count;
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public Response head(String url) throws IOException {
+            return mMemory.head(url);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.nathan.abupdate.util;
+
+import com.nathan.abupdate.UpdateConfig;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host tests of {@link RangePlanner}.
+ */
+public class RangePlannerTest {
+
+    @Test
+    public void plan_closeFiles_merged() {
+        UpdateConfig.PackageFile metadata = file("metadata", 100, 50);
+        UpdateConfig.PackageFile careMap = file("care_map.txt", 150, 10);
+        UpdateConfig.PackageFile properties = file("payload_properties.txt", 1160, 40);
+
+        List<RangePlanner.Span> spans =
+                RangePlanner.plan(Arrays.asList(properties, careMap, metadata), 1000);
+
+        assertEquals(1, spans.size());
+        assertSpan(spans.get(0), 100, 1200);
+        assertEquals(Arrays.asList(metadata, careMap, properties), spans.get(0).getFiles());
+    }
+
+    @Test
+    public void plan_gapOverMax_separateSpans() {
+        List<RangePlanner.Span> spans = RangePlanner.plan(Arrays.asList(
+                file("payload_metadata.bin", 5000, 500),
+                file("metadata", 100, 50),
+                file("care_map.txt", 1151, 10)), 1000);
+
+        assertEquals(3, spans.size());
+        assertSpan(spans.get(0), 100, 150);
+        assertSpan(spans.get(1), 1151, 1161);
+        assertSpan(spans.get(2), 5000, 5500);
+        assertEquals("bytes=100-149,1151-1160,5000-5499", RangePlanner.toRangeHeader(spans));
+    }
+
+    @Test
+    public void plan_overlappingFiles_spanCoversBoth() {
+        // payload_metadata.bin is the beginning of payload.bin.
+        List<RangePlanner.Span> spans = RangePlanner.plan(Arrays.asList(
+                file("payload.bin", 1000, 100000),
+                file("payload_metadata.bin", 1000, 300)), 0);
+
+        assertEquals(1, spans.size());
+        assertSpan(spans.get(0), 1000, 101000);
+        assertEquals(2, spans.get(0).getFiles().size());
+    }
+
+    @Test
+    public void plan_emptyFiles_ignored() {
+        assertTrue(RangePlanner.plan(Collections.singletonList(file("empty", 100, 0)),
+                RangePlanner.DEFAULT_MAX_GAP).isEmpty());
+        assertTrue(RangePlanner.plan(Collections.emptyList(),
+                RangePlanner.DEFAULT_MAX_GAP).isEmpty());
+    }
+
+    private static void assertSpan(RangePlanner.Span span, long offset, long end) {
+        assertEquals(offset, span.getOffset());
+        assertEquals(end, span.getEnd());
+        assertEquals(end - offset, span.getLength());
+    }
+
+    private static UpdateConfig.PackageFile file(String name, long offset, long size) {
+        return new UpdateConfig.PackageFile(name, offset, size);
+    }
+}
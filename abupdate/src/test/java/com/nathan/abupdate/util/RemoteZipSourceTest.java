@@ -0,0 +1,170 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host tests of {@link RemoteZipSource} against an {@link InMemoryTransport}.
+ */
+public class RemoteZipSourceTest {
+
+    private static final String URL = "https://example.com/update.zip";
+
+    private final byte[] mContent = FileDownloaderTest.random(300 * 1024, 1);
+    private final InMemoryTransport mOrigin = new InMemoryTransport();
+
+    @Test
+    public void read_fetchesWindowOnce() throws IOException {
+        mOrigin.put(URL, mContent);
+        RemoteZipSource source = new RemoteZipSource(mOrigin, URL);
+
+        assertArrayEquals(Arrays.copyOfRange(mContent, 1000, 2000), read(source, 1000, 1000));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 5000, 6000), read(source, 5000, 1000));
+
+        // The tail, and one window.
+        assertEquals(2, source.getRequestCount());
+        assertEquals(mContent.length, source.size());
+    }
+
+    @Test
+    public void read_serverSendsShorterRanges_fetchesTheRest() throws IOException {
+        mOrigin.put(URL, mContent);
+        RemoteZipSource source = new RemoteZipSource(new TruncatingTransport(mOrigin, 10000),
+                URL);
+
+        assertArrayEquals(Arrays.copyOfRange(mContent, 50 * 1024, 150 * 1024),
+                read(source, 50 * 1024, 100 * 1024));
+
+        assertTrue(source.getRequestCount() > 10);
+        int requests = source.getRequestCount();
+        assertArrayEquals(Arrays.copyOfRange(mContent, 60 * 1024, 70 * 1024),
+                read(source, 60 * 1024, 10 * 1024));
+        assertEquals(requests, source.getRequestCount());
+    }
+
+    @Test
+    public void read_noContentLength_readsRangeToItsEnd() throws IOException {
+        mOrigin.put(URL, mContent);
+        // Chunked responses carry no Content-Length.
+        DownloadTransport chunked = new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                return new ForwardingResponse(mOrigin.get(url, headers)) {
+                    @Override
+                    public long getContentLength() {
+                        return -1;
+                    }
+                };
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return mOrigin.head(url);
+            }
+        };
+        RemoteZipSource source = new RemoteZipSource(chunked, URL, 16 * 1024);
+
+        assertArrayEquals(Arrays.copyOfRange(mContent, 1000, 2000), read(source, 1000, 1000));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 5000, 6000), read(source, 5000, 1000));
+
+        // The tail, and one window, not the rest of the file.
+        assertEquals(2, source.getRequestCount());
+        assertEquals(mContent.length, source.size());
+        assertTrue(source.getFetchedBytes() < 100 * 1024);
+    }
+
+    @Test(expected = EOFException.class)
+    public void read_pastEnd_throws() throws IOException {
+        mOrigin.put(URL, mContent);
+        read(new RemoteZipSource(mOrigin, URL), mContent.length - 10, 20);
+    }
+
+    @Test
+    public void parseContentRangeTotal() {
+        assertEquals(1000, RemoteZipSource.parseContentRangeTotal("bytes 0-99/1000"));
+        assertEquals(-1, RemoteZipSource.parseContentRangeTotal("bytes 0-99/*"));
+        assertEquals(-1, RemoteZipSource.parseContentRangeTotal("bytes 0-99"));
+        assertEquals(-1, RemoteZipSource.parseContentRangeTotal(null));
+    }
+
+    private static byte[] read(RemoteZipSource source, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        source.read(position, buffer);
+        assertEquals(0, buffer.remaining());
+        return buffer.array();
+    }
+
+    /**
+     * Answers range requests with at most {@code maxBytes} of the requested range, as
+     * servers may.
+     */
+    private static final class TruncatingTransport implements DownloadTransport {
+        private final DownloadTransport mOrigin;
+        private final int mMaxBytes;
+
+        TruncatingTransport(DownloadTransport origin, int maxBytes) {
+            this.mOrigin = origin;
+            this.mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public Response get(String url, Map<String, String> headers) throws IOException {
+            Response response = mOrigin.get(url, headers);
+            String contentRange = response.getHeader("Content-Range");
+            if (response.getCode() != 206 || response.getContentLength() <= mMaxBytes) {
+                return response;
+            }
+            long start = FileDownloader.parseContentRangeStart(contentRange);
+            long total = RemoteZipSource.parseContentRangeTotal(contentRange);
+            return new ForwardingResponse(response) {
+                @Override
+                public String getHeader(String name) {
+                    return "Content-Range".equalsIgnoreCase(name)
+                            ? "bytes " + start + "-" + (start + mMaxBytes - 1) + "/" + total
+                            : super.getHeader(name);
+                }
+
+                @Override
+                public long getContentLength() {
+                    return mMaxBytes;
+                }
+
+                @Override
+                public InputStream getBody() throws IOException {
+                    return new FilterInputStream(super.getBody()) {
+                        private int mLeft = mMaxBytes;
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            if (mLeft == 0) {
+                                return -1;
+                            }
+                            int count = super.read(b, off, Math.min(len, mLeft));
+                            if (count > 0) {
+                                mLeft -= count;
+                            }
+                            return count;
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public Response head(String url) throws IOException {
+            return mOrigin.head(url);
+        }
+    }
+}
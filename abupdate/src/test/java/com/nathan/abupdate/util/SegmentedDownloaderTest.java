@@ -0,0 +1,203 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host tests of {@link SegmentedDownloader} against an {@link InMemoryTransport}.
+ */
+public class SegmentedDownloaderTest {
+
+    private static final String URL = "https://example.com/update.zip";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2026 07:28:00 GMT";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void download_segments() throws IOException {
+        byte[] content = random(9 * 1024 * 1024, 1);
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.put(URL, content);
+        File destination = new File(mFolder.getRoot(), "update.zip");
+
+        SegmentedDownloader downloader = new SegmentedDownloader(URL, destination, 2);
+        downloader.setTransport(transport);
+        downloader.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        downloader.download();
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void download_sourceReplacedDuringDownload_startsOver() throws IOException {
+        byte[] oldContent = random(9 * 1024 * 1024, 1);
+        byte[] newContent = random(9 * 1024 * 1024, 2);
+        InMemoryTransport memory = new InMemoryTransport();
+        memory.put(URL, oldContent);
+        AtomicBoolean replaced = new AtomicBoolean();
+        // Replaces the file after the HEAD request, so If-Range doesn't match anymore.
+        DownloadTransport transport = new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                if (replaced.compareAndSet(false, true)) {
+                    memory.put(URL, newContent);
+                }
+                return memory.get(url, headers);
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return memory.head(url);
+            }
+        };
+        File destination = new File(mFolder.getRoot(), "update.zip");
+
+        SegmentedDownloader downloader = new SegmentedDownloader(URL, destination, 2);
+        downloader.setTransport(transport);
+        downloader.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        downloader.download();
+
+        assertArrayEquals(newContent, Files.readAllBytes(destination.toPath()));
+        assertFalse(StorageManager.partFileOf(destination).exists());
+    }
+
+    @Test
+    public void download_weakEtag_ifRangeWithLastModified() throws IOException {
+        byte[] content = random(9 * 1024 * 1024, 3);
+        WeakEtagTransport transport = new WeakEtagTransport(content, LAST_MODIFIED);
+        File destination = new File(mFolder.getRoot(), "update.zip");
+
+        SegmentedDownloader downloader = new SegmentedDownloader(URL, destination, 2);
+        downloader.setTransport(transport);
+        downloader.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        downloader.download();
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(Collections.singleton(LAST_MODIFIED), transport.mIfRanges);
+        assertEquals(0, transport.mWholeFiles.get());
+    }
+
+    @Test
+    public void download_weakEtagOnly_noIfRange() throws IOException {
+        byte[] content = random(9 * 1024 * 1024, 4);
+        WeakEtagTransport transport = new WeakEtagTransport(content, null);
+        File destination = new File(mFolder.getRoot(), "update.zip");
+
+        SegmentedDownloader downloader = new SegmentedDownloader(URL, destination, 2);
+        downloader.setTransport(transport);
+        downloader.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        downloader.download();
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertTrue(transport.mIfRanges.isEmpty());
+    }
+
+    @Test
+    public void download_serverIgnoresIfRange_sameFile_retriesWithoutIt() throws IOException {
+        byte[] content = random(9 * 1024 * 1024, 5);
+        InMemoryTransport memory = new InMemoryTransport();
+        memory.put(URL, content);
+        AtomicInteger wholeFiles = new AtomicInteger();
+        // Answers every request carrying If-Range with the whole, unchanged file.
+        DownloadTransport transport = new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                if (headers.containsKey("If-Range")) {
+                    wholeFiles.incrementAndGet();
+                    return memory.get(url, Collections.emptyMap());
+                }
+                return memory.get(url, headers);
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return memory.head(url);
+            }
+        };
+        File destination = new File(mFolder.getRoot(), "update.zip");
+
+        SegmentedDownloader downloader = new SegmentedDownloader(URL, destination, 2);
+        downloader.setTransport(transport);
+        downloader.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        downloader.download();
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertTrue(wholeFiles.get() > 0);
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Serves {@code content} with a weak ETag, and a {@code Last-Modified} date if given,
+     * evaluating {@code If-Range} like RFC 7233: only a matching strong validator gets a
+     * range, a weak ETag gets the whole file.
+     */
+    private static final class WeakEtagTransport implements DownloadTransport {
+        final InMemoryTransport mMemory = new InMemoryTransport();
+        final String mLastModified;
+        final Set<String> mIfRanges = ConcurrentHashMap.newKeySet();
+        final AtomicInteger mWholeFiles = new AtomicInteger();
+
+        WeakEtagTransport(byte[] content, String lastModified) {
+            mMemory.put(URL, content);
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public Response get(String url, Map<String, String> headers) throws IOException {
+            Map<String, String> forwarded = new HashMap<>(headers);
+            String ifRange = forwarded.remove("If-Range");
+            if (ifRange != null) {
+                mIfRanges.add(ifRange);
+                if (!ifRange.equals(mLastModified)) {
+                    mWholeFiles.incrementAndGet();
+                    forwarded.remove("Range");
+                }
+            }
+            return withValidators(mMemory.get(url, forwarded));
+        }
+
+        @Override
+        public Response head(String url) throws IOException {
+            return withValidators(mMemory.head(url));
+        }
+
+        private Response withValidators(Response response) {
+            return new ForwardingResponse(response) {
+                @Override
+                public String getHeader(String name) {
+                    if ("ETag".equalsIgnoreCase(name)) {
+                        return "W/\"abc\"";
+                    }
+                    if ("Last-Modified".equalsIgnoreCase(name)) {
+                        return mLastModified;
+                    }
+                    return super.getHeader(name);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.nathan.abupdate.util;
+
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Host tests of the HTTP semantics of the stand-in transports, {@link InMemoryTransport}
+ * and {@link LocalFileTransport}, which the downloaders are tested against.
+ */
+public class StaticContentTransportTest {
+
+    private static final String URL = "https://example.com/ota/update.zip";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mContent = FileDownloaderTest.random(10000, 1);
+
+    @Test
+    public void get_noRange_wholeContent() throws IOException {
+        try (DownloadTransport.Response response = memory().get(URL, Collections.emptyMap())) {
+            assertEquals(200, response.getCode());
+            assertEquals(mContent.length, response.getContentLength());
+            assertEquals("bytes", response.getHeader("accept-ranges"));
+            assertArrayEquals(mContent, readAll(response));
+        }
+    }
+
+    @Test
+    public void get_range_partialContent() throws IOException {
+        try (DownloadTransport.Response response = memory().get(URL, range("bytes=100-199"))) {
+            assertEquals(206, response.getCode());
+            assertEquals("bytes 100-199/10000", response.getHeader("Content-Range"));
+            assertEquals(100, response.getContentLength());
+            assertArrayEquals(Arrays.copyOfRange(mContent, 100, 200), readAll(response));
+        }
+    }
+
+    @Test
+    public void get_severalRanges_coveringRange() throws IOException {
+        try (DownloadTransport.Response response =
+                     memory().get(URL, range("bytes=5000-5009,100-199,-10"))) {
+            assertEquals(206, response.getCode());
+            assertEquals("bytes 100-9999/10000", response.getHeader("Content-Range"));
+        }
+    }
+
+    @Test
+    public void get_unsatisfiableRange_416() throws IOException {
+        try (DownloadTransport.Response response = memory().get(URL, range("bytes=10000-"))) {
+            assertEquals(416, response.getCode());
+            assertEquals("bytes */10000", response.getHeader("Content-Range"));
+        }
+    }
+
+    @Test
+    public void get_ifRange_matchingEtagPartial_otherwiseWhole() throws IOException {
+        InMemoryTransport transport = memory();
+        String etag;
+        try (DownloadTransport.Response head = transport.head(URL)) {
+            etag = head.getHeader("ETag");
+        }
+        Map<String, String> headers = range("bytes=0-9");
+
+        headers.put("If-Range", etag);
+        try (DownloadTransport.Response response = transport.get(URL, headers)) {
+            assertEquals(206, response.getCode());
+        }
+        transport.put(URL, FileDownloaderTest.random(10000, 2));
+        try (DownloadTransport.Response response = transport.get(URL, headers)) {
+            assertEquals(200, response.getCode());
+            assertNotEquals(etag, response.getHeader("ETag"));
+        }
+    }
+
+    @Test
+    public void get_missing_404() throws IOException {
+        try (DownloadTransport.Response response =
+                     memory().get(URL + ".missing", Collections.emptyMap())) {
+            assertEquals(404, response.getCode());
+        }
+    }
+
+    @Test
+    public void localFile_rootDirectory_servesUrlPath() throws IOException {
+        File dir = mFolder.newFolder("ota");
+        Files.write(new File(dir, "update.zip").toPath(), mContent);
+        LocalFileTransport transport = new LocalFileTransport(mFolder.getRoot());
+
+        try (DownloadTransport.Response head = transport.head(URL)) {
+            assertEquals(200, head.getCode());
+            assertEquals(mContent.length, head.getContentLength());
+            assertNotNull(head.getHeader("ETag"));
+        }
+        try (DownloadTransport.Response response = transport.get(URL, range("bytes=-10"))) {
+            assertEquals(206, response.getCode());
+            assertArrayEquals(Arrays.copyOfRange(mContent, 9990, 10000), readAll(response));
+        }
+    }
+
+    @Test
+    public void localFile_fileUrls() throws IOException {
+        File file = mFolder.newFile("update.zip");
+        Files.write(file.toPath(), mContent);
+        LocalFileTransport transport = new LocalFileTransport();
+
+        try (DownloadTransport.Response response =
+                     transport.get(file.toURI().toString(), Collections.emptyMap())) {
+            assertArrayEquals(mContent, readAll(response));
+        }
+        try (DownloadTransport.Response response = transport.get(URL, Collections.emptyMap())) {
+            assertEquals(404, response.getCode());
+        }
+    }
+
+    private InMemoryTransport memory() {
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.put(URL, mContent);
+        return transport;
+    }
+
+    private static Map<String, String> range(String range) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", range);
+        return headers;
+    }
+
+    private static byte[] readAll(DownloadTransport.Response response) throws IOException {
+        try (InputStream body = response.getBody()) {
+            return ByteStreams.toByteArray(body);
+        }
+    }
+}
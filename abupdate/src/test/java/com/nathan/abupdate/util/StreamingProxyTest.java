@@ -0,0 +1,318 @@
+package com.nathan.abupdate.util;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Host tests of {@link StreamingProxy} in front of an {@link InMemoryTransport} origin.
+ */
+public class StreamingProxyTest {
+
+    private static final String URL = "https://example.com/payload.bin";
+
+    /** Size of the payload streamed by the benchmark, {@code -Dabupdate.benchmark.mb=}. */
+    private static final int BENCHMARK_MB = Integer.getInteger("abupdate.benchmark.mb", 4);
+
+    /** Bytes update_engine asks for per request in the benchmark. */
+    private static final int REQUEST_BYTES = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final InMemoryTransport mOrigin = new InMemoryTransport();
+    private StreamingProxy mProxy;
+
+    @After
+    public void tearDown() {
+        if (mProxy != null) {
+            mProxy.close();
+        }
+    }
+
+    @Test
+    public void get_ranges_servedFromOrigin() throws IOException {
+        byte[] content = FileDownloaderTest.random(1024 * 1024 + 123, 1);
+        mOrigin.put(URL, content);
+        String url = startProxy(mOrigin, 64 * 1024, 2);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 20; i++) {
+            int first = random.nextInt(content.length);
+            int last = first + random.nextInt(Math.min(300 * 1024, content.length - first));
+            assertArrayEquals("bytes " + first + "-" + last,
+                    Arrays.copyOfRange(content, first, last + 1),
+                    get(url, "bytes=" + first + "-" + last));
+        }
+        assertArrayEquals(content, get(url, null));
+    }
+
+    @Test
+    public void get_sequentialReads_fetchEveryChunkOnce() throws IOException {
+        byte[] content = FileDownloaderTest.random(2 * 1024 * 1024, 3);
+        mOrigin.put(URL, content);
+        // Read-ahead of 8 chunks into a cache of 18, with a slow origin so the fetches
+        // ahead are still running when the cache is full.
+        String url = startProxy(new SlowLinkTransport(mOrigin, 5, 16 * 1024), 32 * 1024, 8);
+
+        for (int first = 0; first < content.length; first += 48 * 1024) {
+            int last = Math.min(content.length, first + 48 * 1024) - 1;
+            assertArrayEquals(Arrays.copyOfRange(content, first, last + 1),
+                    get(url, "bytes=" + first + "-" + last));
+        }
+
+        // No chunk was evicted while in flight or being served, and fetched again.
+        assertEquals(content.length, mProxy.getFetchedBytes());
+    }
+
+    @Test
+    public void get_unsatisfiableRange_416() throws IOException {
+        mOrigin.put(URL, new byte[1000]);
+        String url = startProxy(mOrigin, 64 * 1024, 2);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Range", "bytes=1000-");
+        assertEquals(416, connection.getResponseCode());
+        connection.disconnect();
+    }
+
+    @Test
+    public void start_serverRefusesRanges_fails() throws IOException {
+        mOrigin.put(URL, new byte[1000]);
+        DownloadTransport transport = withAcceptRanges(mOrigin, "none");
+        mProxy = new StreamingProxy(transport, URL);
+        mProxy.setCacheDir(mFolder.getRoot());
+
+        try {
+            mProxy.start();
+            fail("Proxy started without range support");
+        } catch (IOException expected) {
+            // Falls back to streaming directly.
+        }
+    }
+
+    @Test
+    public void start_noAcceptRanges_probesRangeRequest() throws IOException {
+        byte[] content = FileDownloaderTest.random(1000, 4);
+        mOrigin.put(URL, content);
+        mProxy = new StreamingProxy(withAcceptRanges(mOrigin, null), URL);
+        mProxy.setCacheDir(mFolder.getRoot());
+
+        String url = mProxy.start();
+
+        assertArrayEquals(content, get(url, null));
+    }
+
+    @Test
+    public void close_deletesCache() throws IOException {
+        mOrigin.put(URL, FileDownloaderTest.random(256 * 1024, 5));
+        String url = startProxy(mOrigin, 64 * 1024, 2);
+        get(url, null);
+        assertEquals(1, mFolder.getRoot().listFiles().length);
+
+        mProxy.close();
+
+        assertEquals(0, mFolder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void parseRange() {
+        assertArrayEquals(new long[] {0, 99}, StreamingProxy.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {500, 999}, StreamingProxy.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 999}, StreamingProxy.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] {0, 999}, StreamingProxy.parseRange("bytes=-5000", 1000));
+        // Clamped to the end of the file.
+        assertArrayEquals(new long[] {990, 999},
+                StreamingProxy.parseRange("bytes=990-2000", 1000));
+        assertArrayEquals(new long[0], StreamingProxy.parseRange("bytes=1000-", 1000));
+        assertArrayEquals(new long[0], StreamingProxy.parseRange("bytes=20-10", 1000));
+        // The whole file.
+        assertNull(StreamingProxy.parseRange(null, 1000));
+        assertNull(StreamingProxy.parseRange("bytes=0-9,20-29", 1000));
+        assertNull(StreamingProxy.parseRange("items=0-9", 1000));
+        assertNull(StreamingProxy.parseRange("bytes=a-b", 1000));
+    }
+
+    /**
+     * Streams a payload like update_engine does, one range after the other over a
+     * single connection, directly from an origin behind a link with the given round
+     * trip time, and through the proxy. Prints the throughput of both at 50, 150 and
+     * 300 ms RTT. Every round trip moves at most 256 KB per connection.
+     *
+     * <p>Only runs with {@code -Dabupdate.benchmark=true}.</p>
+     */
+    @Test
+    public void benchmark_directVsProxy() throws IOException {
+        assumeTrue(Boolean.getBoolean("abupdate.benchmark"));
+        int size = BENCHMARK_MB * 1024 * 1024;
+        byte[] content = FileDownloaderTest.random(size, 6);
+        mOrigin.put(URL, content);
+        StringBuilder report = new StringBuilder("streaming " + BENCHMARK_MB + " MB:");
+        for (int rtt : new int[] {50, 150, 300}) {
+            SlowLinkTransport link = new SlowLinkTransport(mOrigin, rtt, 256 * 1024);
+
+            long start = System.nanoTime();
+            ByteArrayOutputStream direct = new ByteArrayOutputStream(size);
+            for (int first = 0; first < size; first += REQUEST_BYTES) {
+                int last = Math.min(size, first + REQUEST_BYTES) - 1;
+                try (DownloadTransport.Response response = link.get(URL,
+                        Collections.singletonMap("Range", "bytes=" + first + "-" + last))) {
+                    direct.write(readAll(response.getBody()));
+                }
+            }
+            long directNanos = System.nanoTime() - start;
+
+            String url = startProxy(link, StreamingProxy.DEFAULT_CHUNK_SIZE,
+                    StreamingProxy.DEFAULT_READ_AHEAD_CHUNKS);
+            start = System.nanoTime();
+            ByteArrayOutputStream proxied = new ByteArrayOutputStream(size);
+            for (int first = 0; first < size; first += REQUEST_BYTES) {
+                int last = Math.min(size, first + REQUEST_BYTES) - 1;
+                proxied.write(get(url, "bytes=" + first + "-" + last));
+            }
+            long proxyNanos = System.nanoTime() - start;
+            mProxy.close();
+            mProxy = null;
+
+            assertArrayEquals(content, direct.toByteArray());
+            assertArrayEquals(content, proxied.toByteArray());
+            report.append(String.format("\n  RTT %3d ms: direct %6.2f MB/s, proxy %6.2f MB/s",
+                    rtt, BENCHMARK_MB / (directNanos / 1e9), BENCHMARK_MB / (proxyNanos / 1e9)));
+        }
+        System.out.println(report);
+    }
+
+    private String startProxy(DownloadTransport transport, int chunkSize, int readAheadChunks)
+            throws IOException {
+        mProxy = new StreamingProxy(transport, URL, chunkSize, readAheadChunks,
+                StreamingProxy.DEFAULT_CONNECTIONS);
+        mProxy.setCacheDir(mFolder.getRoot());
+        mProxy.setBandwidthLimiter(BandwidthLimiter.newLimiter(BandwidthLimiter.UNLIMITED));
+        return mProxy.start();
+    }
+
+    /**
+     * @return body of a {@code GET} of {@code url} with the {@code Range} header
+     */
+    private static byte[] get(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        int code = connection.getResponseCode();
+        assertTrue("HTTP " + code, code == 200 || code == 206);
+        try (InputStream body = connection.getInputStream()) {
+            return readAll(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        return output.toByteArray();
+    }
+
+    private static DownloadTransport withAcceptRanges(DownloadTransport origin,
+            String acceptRanges) {
+        return new DownloadTransport() {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException {
+                return origin.get(url, headers);
+            }
+
+            @Override
+            public Response head(String url) throws IOException {
+                return new ForwardingResponse(origin.head(url)) {
+                    @Override
+                    public String getHeader(String name) {
+                        return "Accept-Ranges".equalsIgnoreCase(name)
+                                ? acceptRanges : super.getHeader(name);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Origin behind a high latency link: every request takes a round trip before the
+     * response arrives, and every {@code window} bytes of a body take another one, like
+     * a TCP connection limited by its window.
+     */
+    static final class SlowLinkTransport implements DownloadTransport {
+        private final DownloadTransport mOrigin;
+        private final long mRttMillis;
+        private final int mWindow;
+
+        SlowLinkTransport(DownloadTransport origin, long rttMillis, int window) {
+            this.mOrigin = origin;
+            this.mRttMillis = rttMillis;
+            this.mWindow = window;
+        }
+
+        @Override
+        public Response get(String url, Map<String, String> headers) throws IOException {
+            roundTrip();
+            return new ForwardingResponse(mOrigin.get(url, headers)) {
+                @Override
+                public InputStream getBody() throws IOException {
+                    return new FilterInputStream(super.getBody()) {
+                        private long mWindowLeft = mWindow;
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            if (mWindowLeft == 0) {
+                                roundTrip();
+                                mWindowLeft = mWindow;
+                            }
+                            int count = super.read(b, off, (int) Math.min(len, mWindowLeft));
+                            if (count > 0) {
+                                mWindowLeft -= count;
+                            }
+                            return count;
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public Response head(String url) throws IOException {
+            roundTrip();
+            return mOrigin.head(url);
+        }
+
+        private void roundTrip() throws InterruptedIOException {
+            try {
+                TimeUnit.MILLISECONDS.sleep(mRttMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.nathan.abupdate.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Host tests of {@link ZipIndex} against zip files written by {@link ZipWriter}.
+ */
+public class ZipIndexTest {
+
+    /** Entries of the package indexed by the benchmark, {@code -Dabupdate.benchmark.entries=}. */
+    private static final int BENCHMARK_ENTRIES =
+            Integer.getInteger("abupdate.benchmark.entries", 3000);
+
+    /** Entries of the Zip64 package indexed by the benchmark, more than 16-bit counts hold. */
+    private static final int BENCHMARK_ZIP64_ENTRIES = 70000;
+
+    private static final List<String> NAMES = PackageFiles.PACKAGE_ENTRY_NAMES;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mPayload = FileDownloaderTest.random(100 * 1024, 1);
+    private final byte[] mProperties =
+            "FILE_HASH=abc\nFILE_SIZE=123\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void read_storedAndDeflatedEntries() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("META-INF/MANIFEST.MF", new byte[100]);
+        long payloadOffset = zip.add("payload.bin", mPayload);
+        zip.add("payload_properties.txt", mProperties, ZipEntry.DEFLATED, new byte[0],
+                new byte[0], false);
+        ZipIndex.Source source = zip.finish();
+
+        ZipIndex index = ZipIndex.read(source, NAMES);
+
+        assertEquals(3, index.getTotalEntries());
+        assertEquals(2, index.getEntries().size());
+        ZipIndex.Entry payload = index.getEntry("payload.bin");
+        assertEquals(payloadOffset, payload.getDataOffset());
+        assertEquals(mPayload.length, payload.getCompressedSize());
+        assertArrayEquals(mPayload, ZipIndex.readEntry(source, payload));
+        ZipIndex.Entry properties = index.getEntry("payload_properties.txt");
+        assertEquals(ZipEntry.DEFLATED, properties.getMethod());
+        assertArrayEquals(mProperties, ZipIndex.readEntry(source, properties));
+        assertNull(index.getEntry("META-INF/MANIFEST.MF"));
+        assertNull(index.getEntry("care_map.txt"));
+    }
+
+    @Test
+    public void read_dataDescriptors_sizesFromCentralDirectory() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        long payloadOffset = zip.add("payload.bin", mPayload, ZipEntry.STORED, new byte[0],
+                new byte[0], true);
+        zip.add("payload_properties.txt", mProperties, ZipEntry.DEFLATED, new byte[0],
+                new byte[0], true);
+        ZipIndex.Source source = zip.finish();
+
+        ZipIndex index = ZipIndex.read(source, NAMES);
+
+        ZipIndex.Entry payload = index.getEntry("payload.bin");
+        assertEquals(payloadOffset, payload.getDataOffset());
+        assertEquals(mPayload.length, payload.getCompressedSize());
+        assertArrayEquals(mProperties,
+                ZipIndex.readEntry(source, index.getEntry("payload_properties.txt")));
+    }
+
+    @Test
+    public void read_localExtraDiffers_offsetFromLocalHeader() throws IOException {
+        // Alignment padding, e.g. by zipalign, is only in the local header.
+        ZipWriter zip = new ZipWriter();
+        zip.add("care_map.txt", new byte[3], ZipEntry.STORED, new byte[0],
+                new byte[] {(byte) 0xfe, (byte) 0xca, 4, 0, 1, 2, 3, 4}, false);
+        long payloadOffset = zip.add("payload.bin", mPayload, ZipEntry.STORED,
+                new byte[] {(byte) 0xd9, (byte) 0xd9, 5, 0, 0, 0, 0, 0, 0}, new byte[0], false);
+        ZipIndex.Source source = zip.finish();
+
+        ZipIndex index = ZipIndex.read(source, NAMES);
+
+        assertEquals(payloadOffset, index.getEntry("payload.bin").getDataOffset());
+        assertArrayEquals(mPayload, ZipIndex.readEntry(source, index.getEntry("payload.bin")));
+        assertArrayEquals(new byte[3],
+                ZipIndex.readEntry(source, index.getEntry("care_map.txt")));
+    }
+
+    @Test
+    public void read_eocdSignatureInComment_skipped() throws IOException {
+        // A complete end of central directory record pointing nowhere, in the comment.
+        ByteBuffer comment = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        comment.put("signed by ".getBytes(StandardCharsets.US_ASCII));
+        comment.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 7).putShort((short) 7).putInt(1000).putInt(5)
+                .putShort((short) 0);
+        ZipWriter zip = new ZipWriter().comment(comment.array());
+        long payloadOffset = zip.add("payload.bin", mPayload);
+
+        ZipIndex index = ZipIndex.read(zip.finish(), NAMES);
+
+        assertEquals(1, index.getTotalEntries());
+        assertEquals(payloadOffset, index.getEntry("payload.bin").getDataOffset());
+    }
+
+    @Test
+    public void read_zip64_saturatedFieldsFromExtra() throws IOException {
+        ZipWriter zip = new ZipWriter().zip64();
+        zip.add("care_map.txt", new byte[3], ZipEntry.STORED,
+                new byte[] {(byte) 0xd9, (byte) 0xd9, 1, 0, 0},
+                new byte[] {(byte) 0xfe, (byte) 0xca, 2, 0, 1, 2}, false);
+        zip.add("payload_properties.txt", mProperties, ZipEntry.DEFLATED, new byte[0],
+                new byte[0], true);
+        long payloadOffset = zip.add("payload.bin", mPayload);
+        ZipIndex.Source source = zip.finish();
+
+        ZipIndex index = ZipIndex.read(source, NAMES);
+
+        assertEquals(3, index.getTotalEntries());
+        ZipIndex.Entry payload = index.getEntry("payload.bin");
+        assertEquals(payloadOffset, payload.getDataOffset());
+        assertEquals(mPayload.length, payload.getCompressedSize());
+        assertEquals(mPayload.length, payload.getUncompressedSize());
+        assertArrayEquals(mProperties,
+                ZipIndex.readEntry(source, index.getEntry("payload_properties.txt")));
+        assertArrayEquals(new byte[3],
+                ZipIndex.readEntry(source, index.getEntry("care_map.txt")));
+    }
+
+    @Test
+    public void read_zip64_entriesBeyond4GB() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("care_map.txt", new byte[3]);
+        zip.skip(5L << 30);
+        long propertiesOffset = zip.add("payload_properties.txt", mProperties,
+                ZipEntry.DEFLATED, new byte[0], new byte[0], false);
+        long payloadOffset = zip.add("payload.bin", mPayload);
+        ZipIndex.Source source = zip.finish();
+
+        ZipIndex index = ZipIndex.read(source, NAMES);
+
+        assertEquals(propertiesOffset,
+                index.getEntry("payload_properties.txt").getDataOffset());
+        assertEquals(payloadOffset, index.getEntry("payload.bin").getDataOffset());
+        assertTrue(index.getEntry("payload.bin").getLocalHeaderOffset() > 0xffffffffL);
+        assertArrayEquals(mPayload, ZipIndex.readEntry(source, index.getEntry("payload.bin")));
+        assertArrayEquals(mProperties,
+                ZipIndex.readEntry(source, index.getEntry("payload_properties.txt")));
+    }
+
+    @Test
+    public void read_zip64_matchesZipFile() throws IOException {
+        ZipWriter zip = new ZipWriter().zip64();
+        zip.add("payload_properties.txt", mProperties, ZipEntry.DEFLATED, new byte[0],
+                new byte[0], false);
+        zip.add("payload.bin", mPayload);
+        File file = zip.writeTo(mFolder.newFile("update.zip"));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ZipFile zipFile = new ZipFile(file)) {
+            ZipIndex index = ZipIndex.read(ZipIndex.Source.of(channel), NAMES);
+            for (ZipIndex.Entry entry : index.getEntries()) {
+                ZipEntry zipEntry = zipFile.getEntry(entry.getName());
+                assertEquals(zipEntry.getCompressedSize(), entry.getCompressedSize());
+                assertEquals(zipEntry.getSize(), entry.getUncompressedSize());
+            }
+            assertEquals(2, index.getEntries().size());
+        }
+    }
+
+    @Test
+    public void read_zip64LocatorMissing_throws() throws IOException {
+        ZipWriter zip = new ZipWriter().zip64();
+        zip.add("payload.bin", mPayload);
+        ZipIndex.Source source = zip.finish();
+        long size = source.size();
+
+        try {
+            ZipIndex.read(new ZipIndex.Source() {
+                @Override
+                public long size() {
+                    return size;
+                }
+
+                @Override
+                public void read(long position, ByteBuffer dst) throws IOException {
+                    source.read(position, dst);
+                    // Corrupts the signature of the locator, before the 22 byte record.
+                    long locator = size - 22 - 20;
+                    if (position <= locator && locator < position + dst.position()) {
+                        dst.put((int) (locator - position), (byte) 0);
+                    }
+                }
+            }, NAMES);
+            fail("Indexed a Zip64 file without locator");
+        } catch (IOException expected) {
+            // Zip64 locator not found.
+        }
+    }
+
+    @Test
+    public void read_readsOnlyHeaders() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        for (int i = 0; i < 1000; i++) {
+            zip.add("system/file" + i, new byte[10]);
+        }
+        zip.add("payload.bin", mPayload);
+        int[] reads = new int[1];
+        ZipIndex.Source source = zip.finish();
+
+        ZipIndex.read(new ZipIndex.Source() {
+            @Override
+            public long size() throws IOException {
+                return source.size();
+            }
+
+            @Override
+            public void read(long position, ByteBuffer dst) throws IOException {
+                reads[0]++;
+                source.read(position, dst);
+            }
+        }, NAMES);
+
+        // The tail, the central directory and the local header of payload.bin.
+        assertEquals(3, reads[0]);
+    }
+
+    @Test
+    public void read_notAZip_throws() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("payload.bin", mPayload);
+        ZipIndex.Source source = zip.finish();
+        try {
+            ZipIndex.read(new ZipIndex.Source() {
+                @Override
+                public long size() throws IOException {
+                    return source.size() - 1;
+                }
+
+                @Override
+                public void read(long position, ByteBuffer dst) throws IOException {
+                    source.read(position, dst);
+                }
+            }, NAMES);
+            fail("Indexed a truncated zip file");
+        } catch (IOException expected) {
+            // End of central directory not found.
+        }
+    }
+
+    @Test
+    public void read_file_matchesZipFile() throws IOException {
+        ZipWriter zip = new ZipWriter();
+        zip.add("META-INF/com/android/metadata", mProperties, ZipEntry.STORED,
+                new byte[] {0, 0, 0, 0}, new byte[0], true);
+        zip.add("payload.bin", mPayload);
+        File file = zip.writeTo(mFolder.newFile("update.zip"));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ZipFile zipFile = new ZipFile(file)) {
+            ZipIndex index = ZipIndex.read(ZipIndex.Source.of(channel), NAMES);
+            for (ZipIndex.Entry entry : index.getEntries()) {
+                ZipEntry zipEntry = zipFile.getEntry(entry.getName());
+                assertEquals(zipEntry.getCompressedSize(), entry.getCompressedSize());
+                assertEquals(zipEntry.getCrc(), entry.getCrc());
+            }
+            assertEquals(2, index.getEntries().size());
+        }
+    }
+
+    /**
+     * Indexes a package of {@link #BENCHMARK_ENTRIES} entries and a Zip64 package of
+     * {@link #BENCHMARK_ZIP64_ENTRIES}, with the OTA entries last in the central
+     * directory, and prints the best of 10 runs next to opening the package with
+     * {@link ZipFile} and enumerating its entries, as done before {@link ZipIndex}. Five
+     * untimed runs first let the JIT compile both, the packages are small enough for
+     * its warm up to dominate otherwise.
+     *
+     * <p>Only runs with {@code -Dabupdate.benchmark=true}.</p>
+     */
+    @Test
+    public void benchmark_indexVsZipFile() throws IOException {
+        assumeTrue(Boolean.getBoolean("abupdate.benchmark"));
+        StringBuilder report = new StringBuilder("indexing packages:");
+        for (int entries : new int[] {BENCHMARK_ENTRIES, BENCHMARK_ZIP64_ENTRIES}) {
+            ZipWriter zip = new ZipWriter();
+            for (int i = 0; i < entries - 2; i++) {
+                zip.add("system/app/file" + i + ".apk", new byte[16]);
+            }
+            zip.add("payload_properties.txt", mProperties, ZipEntry.DEFLATED, new byte[0],
+                    new byte[0], false);
+            long payloadOffset = zip.add("payload.bin", mPayload);
+            File file = zip.writeTo(mFolder.newFile("update" + entries + ".zip"));
+
+            long indexNanos = Long.MAX_VALUE;
+            long zipFileNanos = Long.MAX_VALUE;
+            // Negative runs warm up.
+            for (int run = -5; run < 10; run++) {
+                long start = System.nanoTime();
+                try (FileChannel channel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ)) {
+                    ZipIndex index = ZipIndex.read(ZipIndex.Source.of(channel), NAMES);
+                    assertEquals(entries, index.getTotalEntries());
+                    assertEquals(payloadOffset, index.getEntry("payload.bin").getDataOffset());
+                }
+                if (run >= 0) {
+                    indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+                }
+
+                start = System.nanoTime();
+                int count = 0;
+                try (ZipFile zipFile = new ZipFile(file)) {
+                    Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                    while (zipEntries.hasMoreElements()) {
+                        zipEntries.nextElement().getExtra();
+                        count++;
+                    }
+                }
+                if (run >= 0) {
+                    zipFileNanos = Math.min(zipFileNanos, System.nanoTime() - start);
+                }
+                assertEquals(entries, count);
+            }
+            report.append(String.format("\n  %6d entries: ZipIndex %7.2f ms, ZipFile %7.2f ms",
+                    entries, indexNanos / 1e6, zipFileNanos / 1e6));
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,261 @@
+package com.nathan.abupdate.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes zip files for host tests, with layouts {@link java.util.zip.ZipOutputStream}
+ * doesn't produce: local extra fields differing from the central ones, data descriptors
+ * on stored entries, Zip64 records on small files, and entries beyond 4 GB, whose
+ * offsets are skipped over instead of written.
+ */
+final class ZipWriter {
+
+    private static final long MAGIC = 0xffffffffL;
+
+    /** Written bytes by position, the gaps between them read as zeros. */
+    private final TreeMap<Long, byte[]> mSegments = new TreeMap<>();
+    private final ByteArrayOutputStream mSegment = new ByteArrayOutputStream();
+    private long mSegmentStart;
+    private final ByteArrayOutputStream mCentralDirectory = new ByteArrayOutputStream();
+    private int mCount;
+    private boolean mZip64;
+    private byte[] mComment = new byte[0];
+    private long mSize = -1;
+
+    /**
+     * Writes Zip64 headers and records for every entry, with the 32-bit fields
+     * saturated, even where the values would fit.
+     */
+    ZipWriter zip64() {
+        mZip64 = true;
+        return this;
+    }
+
+    ZipWriter comment(byte[] comment) {
+        mComment = comment;
+        return this;
+    }
+
+    /** Leaves {@code count} bytes of zeros, without storing them. */
+    ZipWriter skip(long count) {
+        flushSegment();
+        mSegmentStart += count;
+        return this;
+    }
+
+    /** Adds a stored entry. @return position of its data */
+    long add(String name, byte[] content) {
+        return add(name, content, ZipEntry.STORED, new byte[0], new byte[0], false);
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param localExtra extra field of the local header, e.g. alignment padding
+     * @param centralExtra extra field of the central directory header
+     * @param dataDescriptor whether the sizes and CRC follow the data instead of being in
+     *         the local header
+     * @return position of the data
+     */
+    long add(String name, byte[] content, int method, byte[] localExtra, byte[] centralExtra,
+            boolean dataDescriptor) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] data = method == ZipEntry.DEFLATED ? deflate(content) : content;
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        long offset = position();
+        boolean zip64 = mZip64 || offset >= MAGIC || data.length >= MAGIC;
+        int flags = dataDescriptor ? 0x08 : 0;
+        int version = zip64 ? 45 : 20;
+
+        ByteBuffer local = buffer(30);
+        local.putInt(0x04034b50).putShort((short) version).putShort((short) flags)
+                .putShort((short) method).putInt(0);
+        if (zip64) {
+            localExtra = concat(zip64Extra(dataDescriptor ? 0 : content.length,
+                    dataDescriptor ? 0 : data.length), localExtra);
+            local.putInt(dataDescriptor ? 0 : (int) crc.getValue())
+                    .putInt((int) MAGIC).putInt((int) MAGIC);
+        } else if (dataDescriptor) {
+            local.putInt(0).putInt(0).putInt(0);
+        } else {
+            local.putInt((int) crc.getValue()).putInt(data.length).putInt(content.length);
+        }
+        local.putShort((short) nameBytes.length).putShort((short) localExtra.length);
+        write(local.array());
+        write(nameBytes);
+        write(localExtra);
+        long dataOffset = position();
+        write(data);
+        if (dataDescriptor) {
+            ByteBuffer descriptor = buffer(zip64 ? 24 : 16);
+            descriptor.putInt(0x08074b50).putInt((int) crc.getValue());
+            if (zip64) {
+                descriptor.putLong(data.length).putLong(content.length);
+            } else {
+                descriptor.putInt(data.length).putInt(content.length);
+            }
+            write(descriptor.array());
+        }
+
+        if (zip64) {
+            // After the other extra fields, the Zip64 one isn't always the first.
+            centralExtra = concat(centralExtra, zip64Extra(content.length, data.length, offset));
+        }
+        ByteBuffer central = buffer(46);
+        central.putInt(0x02014b50).putShort((short) version).putShort((short) version)
+                .putShort((short) flags).putShort((short) method).putInt(0)
+                .putInt((int) crc.getValue())
+                .putInt(zip64 ? (int) MAGIC : data.length)
+                .putInt(zip64 ? (int) MAGIC : content.length)
+                .putShort((short) nameBytes.length).putShort((short) centralExtra.length)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                .putInt(zip64 ? (int) MAGIC : (int) offset);
+        mCentralDirectory.write(central.array(), 0, 46);
+        mCentralDirectory.write(nameBytes, 0, nameBytes.length);
+        mCentralDirectory.write(centralExtra, 0, centralExtra.length);
+        mCount++;
+        return dataOffset;
+    }
+
+    /** Writes the central directory and the end records. @return source of the zip file */
+    ZipIndex.Source finish() {
+        if (mSize < 0) {
+            long directoryOffset = position();
+            byte[] directory = mCentralDirectory.toByteArray();
+            write(directory);
+            boolean zip64 = mZip64 || mCount >= 0xffff || directoryOffset >= MAGIC;
+            if (zip64) {
+                long recordOffset = position();
+                ByteBuffer record = buffer(56 + 20);
+                record.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                        .putInt(0).putInt(0).putLong(mCount).putLong(mCount)
+                        .putLong(directory.length).putLong(directoryOffset);
+                record.putInt(0x07064b50).putInt(0).putLong(recordOffset).putInt(1);
+                write(record.array());
+            }
+            ByteBuffer eocd = buffer(22);
+            eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) (zip64 ? 0xffff : mCount))
+                    .putShort((short) (zip64 ? 0xffff : mCount))
+                    .putInt(zip64 ? (int) MAGIC : directory.length)
+                    .putInt(zip64 ? (int) MAGIC : (int) directoryOffset)
+                    .putShort((short) mComment.length);
+            write(eocd.array());
+            write(mComment);
+            flushSegment();
+            mSize = mSegmentStart;
+        }
+        return new ZipIndex.Source() {
+            @Override
+            public long size() {
+                return mSize;
+            }
+
+            @Override
+            public void read(long position, ByteBuffer dst) throws IOException {
+                if (position + dst.remaining() > mSize) {
+                    throw new EOFException("Unexpected end of zip file");
+                }
+                while (dst.hasRemaining()) {
+                    Map.Entry<Long, byte[]> segment = mSegments.floorEntry(position);
+                    int count;
+                    if (segment != null
+                            && position < segment.getKey() + segment.getValue().length) {
+                        int from = (int) (position - segment.getKey());
+                        count = Math.min(dst.remaining(), segment.getValue().length - from);
+                        dst.put(segment.getValue(), from, count);
+                    } else {
+                        Long next = mSegments.higherKey(position);
+                        count = (int) Math.min(dst.remaining(),
+                                (next != null ? next : mSize) - position);
+                        dst.put(new byte[count]);
+                    }
+                    position += count;
+                }
+            }
+        };
+    }
+
+    /** Finishes the zip file and writes it to {@code file}, gaps included. */
+    File writeTo(File file) throws IOException {
+        finish();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<Long, byte[]> segment : mSegments.entrySet()) {
+                ByteBuffer data = ByteBuffer.wrap(segment.getValue());
+                long position = segment.getKey();
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+            if (channel.size() < mSize) {
+                channel.write(ByteBuffer.allocate(1), mSize - 1);
+            }
+        }
+        return file;
+    }
+
+    private long position() {
+        return mSegmentStart + mSegment.size();
+    }
+
+    private void write(byte[] bytes) {
+        mSegment.write(bytes, 0, bytes.length);
+    }
+
+    private void flushSegment() {
+        if (mSegment.size() > 0) {
+            mSegments.put(mSegmentStart, mSegment.toByteArray());
+            mSegmentStart += mSegment.size();
+            mSegment.reset();
+        }
+    }
+
+    private static byte[] zip64Extra(long... values) {
+        ByteBuffer extra = buffer(4 + 8 * values.length);
+        extra.putShort((short) 0x0001).putShort((short) (8 * values.length));
+        for (long value : values) {
+            extra.putLong(value);
+        }
+        return extra.array();
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(content);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}